@@ -36,6 +36,20 @@ class LogStash::Filters::UserAgent < LogStash::Filters::Base
   # <https://github.com/ua-parser/uap-core/blob/master/regexes.yaml>
   config :regexes, :validate => :string
 
+  # How often, in seconds, to check the `regexes` file for changes. Changed files are reloaded
+  # without restarting the pipeline, keeping the cached results the changes don't affect.
+  # Set to 0 to never reload.
+  config :regexes_refresh_interval, :validate => :number, :default => 300
+
+  # Refuses a `regexes` file with patterns that crafted user agents make backtrack until they reach
+  # `regex_step_budget`, or 5000000 characters when it's 0, failing to register or, when the file is
+  # modified, keeping the current patterns.
+  # Patterns identical to those of the bundled `regexes.yaml` are trusted and not analyzed.
+  # Analyze a file beforehand with:
+  #
+  #   java -cp logstash-filter-useragent.jar org.logstash.uaparser.RegexAnalyzer regexes.yaml
+  config :reject_dangerous_regexes, :validate => :boolean, :default => false
+
   # A string to prepend to all of the extracted keys
   config :prefix, :validate => :string, :default => '' # not supported in ECS mode
 
@@ -44,71 +58,97 @@ class LogStash::Filters::UserAgent < LogStash::Filters::Base
   # The higher you set this the more likely an item is to be in the cache and the faster this filter will run.
   # However, if you set this too high you can use more memory than desired.
   #
-  # Experiment with different values for this option to find the best performance for your dataset.
+  # Each cached user agent takes about 240 bytes on top of its own length, the estimate the cache simulator below
+  # uses. The filter also keeps the field values of user agents served more than once ready to be set on events,
+  # about 1.2KB more each. Both were measured on Java 17 with 100000 distinct generated user agents.
+  #
+  # To size it for your dataset, replay a sample of its user agents, or an access log, through the cache simulator,
+  # which prints the hit ratio and estimated memory of every cache size and recommends one:
+  #
+  #   java -cp logstash-filter-useragent.jar org.logstash.uaparser.tools.CacheSimulator --log access.log
   #
   # This MUST be set to a value > 0. There is really no reason to not want this behavior, the overhead is minimal
   # and the speed gains are large.
   #
-  # It is important to note that this config value is global. That is to say all instances of the user agent filter
-  # share the same cache. The last declared cache size will 'win'. The reason for this is that there would be no benefit
-  # to having multiple caches for different instances at different points in the pipeline, that would just increase the
-  # number of cache misses and waste memory.
+  # Each instance of the filter has a cache of its own, shared by the pipeline workers.
   config :lru_cache_size, :validate => :number, :default => 100_000
 
-  def initialize(*params)
-    super
-
-    # make @target in the format [field name] if defined, i.e. surrounded by brackets
-    target = @target || ecs_select[disabled: '', v1: '[user_agent]']
-    target = "[#{@target}]" if !target.empty? && target !~ /^\[[^\[\]]+\]$/
+  # The parts of the user agent data to extract: `user_agent` (name and version), `os` and `device`.
+  #
+  # Each component is matched against its own set of patterns, the device ones being the most
+  # expensive, so leaving out the unused components makes parsing faster.
+  config :components, :validate => ['user_agent', 'os', 'device'], :list => true,
+         :default => ['user_agent', 'os', 'device']
 
-    @name_field = ecs_select[disabled: "[#{@prefix}name]", v1: '[name]']
-    @name_field = "#{target}#{@name_field}"
+  # Patterns are compiled when first needed, set this to compile all of them in the background
+  # once registered instead.
+  config :precompile_regexes, :validate => :boolean, :default => false
 
-    @device_name_field = ecs_select[disabled: "[#{@prefix}device]", v1: '[device][name]']
-    @device_name_field = "#{target}#{@device_name_field}"
+  # User agents longer than this many characters aren't parsed, their fields being set to `Other`.
+  # 0, the default, parses user agents of any length. 8192 is well above legitimate user agents.
+  config :max_user_agent_length, :validate => :number, :default => 0
 
-    @version_field = ecs_select[disabled: "[#{@prefix}version]", v1: '[version]']
-    @version_field = "#{target}#{@version_field}"
-    @major_field = ecs_select[disabled: "#{target}[#{@prefix}major]", v1: "[@metadata][filter][user_agent][version][major]"]
-    @minor_field = ecs_select[disabled: "#{target}[#{@prefix}minor]", v1: "[@metadata][filter][user_agent][version][minor]"]
-    @patch_field = ecs_select[disabled: "#{target}[#{@prefix}patch]", v1: "[@metadata][filter][user_agent][version][patch]"]
+  # The number of characters the patterns may read while parsing a single user agent. User agents
+  # reaching it, i.e. hostile ones making patterns backtrack heavily, get their fields set to `Other`.
+  # 0, the default, doesn't bound parsing. 5000000 is well above what legitimate user agents need.
+  config :regex_step_budget, :validate => :number, :default => 0
 
-    @os_full_name_field = ecs_select[disabled: "[#{@prefix}os_full]", v1: '[os][full]'] # did not exist in legacy prior to ECS-ification
-    @os_full_name_field = "#{target}#{@os_full_name_field}"
+  # Profiles the patterns, logging the ones parsing spent the most time on every this many seconds.
+  # Set to 0 to not profile the patterns.
+  config :rule_profile_interval, :validate => :number, :default => 0
 
-    @os_name_field = ecs_select[disabled: "[#{@prefix}os_name]", v1: '[os][name]']
-    @os_name_field = "#{target}#{@os_name_field}"
-    @legacy_os_field = ecs_select[disabled: "#{target}[#{@prefix}os]", v1: nil] # same as [os_name] in legacy mode
+  # Logs the 10 slowest user agents parsed in the last this many seconds, with the time spent on each
+  # component. Set to 0 to not log them.
+  config :slow_parse_log_interval, :validate => :number, :default => 0
 
-    @os_version_field = ecs_select[disabled: "[#{@prefix}os_version]", v1: '[os][version]']
-    @os_version_field = "#{target}#{@os_version_field}"
-    @os_major_field = ecs_select[disabled: "#{target}[#{@prefix}os_major]", v1: "[@metadata][filter][user_agent][os][version][major]"]
-    @os_minor_field = ecs_select[disabled: "#{target}[#{@prefix}os_minor]", v1: "[@metadata][filter][user_agent][os][version][minor]"]
-    @os_patch_field = ecs_select[disabled: "#{target}[#{@prefix}os_patch]", v1: "[@metadata][filter][user_agent][os][version][patch]"]
+  # Tracks this many of the most frequent user agents in bounded memory. Set to 0 to not track them.
+  config :heavy_hitters_size, :validate => :number, :default => 0
 
-    # NOTE: unfortunately we can not reliably provide `user_agent.original` since the patterns do not
-    # reliably give back the matched group and they support the UA string prefixed and/or suffixed
-  end
+  # File the most frequent user agents are exported to when the pipeline stops. When it exists on
+  # start, the cache is warmed with the user agents it lists, parsed with the current patterns.
+  config :heavy_hitters_path, :validate => :string
 
   def register
     if ecs_compatibility != :disabled && @prefix && !@prefix.empty?
       @logger.warn "Field prefix isn't supported in ECS compatibility mode, please remove `prefix => #{@prefix.inspect}`"
     end
 
+    components = org.logstash.uaparser.Component.setOf(@components)
     if @regexes.nil?
-      @parser = org.logstash.uaparser.CachingParser.new(lru_cache_size)
+      @parser = org.logstash.uaparser.CachingParser.new(lru_cache_size, components)
     else
       @logger.debug("Using user agent regexes", :regexes => @regexes)
-      @parser = org.logstash.uaparser.CachingParser.new(@regexes, lru_cache_size)
+      @parser = org.logstash.uaparser.CachingParser.new(@regexes, lru_cache_size, components)
+    end
+    @parser.limits.maxLength(@max_user_agent_length)
+    @parser.limits.stepBudget(@regex_step_budget)
+    if @reject_dangerous_regexes && !@regexes.nil?
+      begin
+        org.logstash.uaparser.RegexAnalyzer.new(@parser.limits).verify(@regexes)
+      rescue java.lang.IllegalArgumentException => e
+        raise LogStash::ConfigurationError, e.message
+      end
     end
+
+    # resolves the target fields once, according to the ECS mode, target and prefix
+    @ua_filter = org.logstash.filters.useragent.UserAgentFilter.new(@parser, @target, @prefix,
+                                                                    ecs_compatibility != :disabled)
+    @ua_filter.metrics(MetricAdapter.new(metric))
+    @ua_filter.precompileRegexes(@precompile_regexes)
+    @ua_filter.rejectDangerousRegexes(@reject_dangerous_regexes)
+    @ua_filter.watchRegexes(@regexes, @regexes_refresh_interval) unless @regexes.nil?
+    @ua_filter.profileRules(@rule_profile_interval)
+    @ua_filter.logSlowParses(@slow_parse_log_interval)
+    @ua_filter.trackHeavyHitters(@heavy_hitters_size, @heavy_hitters_path)
   end
 
-  def filter(event)
-    useragent = event.get(@source)
-    useragent = useragent.first if useragent.is_a?(Array)
+  def close
+    @ua_filter.close if @ua_filter
+  end
 
-    return if useragent.nil? || useragent.empty?
+  def filter(event)
+    useragent = get_useragent(event)
+    return if useragent.nil?
 
     begin
       ua_data = lookup_useragent(useragent)
@@ -119,120 +159,82 @@ class LogStash::Filters::UserAgent < LogStash::Filters::Base
       return
     end
 
-    return unless ua_data
+    apply_useragent(event, ua_data)
+  end
 
-    event.remove(@source) if @target == @source
-    set_fields(event, useragent, ua_data)
+  # Resolves all user agent strings of the batch at once: each distinct one is looked up
+  # in the cache only once.
+  def multi_filter(events)
+    LogStash::Util.set_thread_plugin(self)
+    events = events.reject(&:cancelled?)
+    useragents = events.map { |event| get_useragent(event) }
 
-    filter_matched(event)
+    begin
+      ua_data = lookup_useragents(useragents)
+    rescue => e
+      @logger.debug("Failed to parse user agent batch, parsing events one at a time",
+                    :exception => e.class, :message => e.message)
+      events.each { |event| filter(event) }
+      return events
+    end
+
+    events.each_with_index { |event, i| apply_useragent(event, ua_data[i]) }
+    events
   end
 
   private
 
+  def get_useragent(event)
+    useragent = event.get(@source)
+    useragent = useragent.first if useragent.is_a?(Array)
+
+    return nil if useragent.nil? || useragent.empty?
+    useragent
+  end
+
+  # looks up the cache straight from the string's bytes, no Java string is decoded on hits
   def lookup_useragent(useragent)
-    @parser.parse(useragent)
+    @ua_filter.lookup(useragent)
   end
 
-  def set_fields(event, ua_source, ua_data)
-    # UserAgentParser strings are US-ASCII
-
-    ua = ua_data.userAgent
-    event.set(@name_field, duped_string(ua.family))
-    event.set(@device_name_field, duped_string(ua_data.device)) if ua_data.device
-
-    event.set(@major_field, duped_string(ua.major)) if ua.major
-    event.set(@minor_field, duped_string(ua.minor)) if ua.minor
-    event.set(@patch_field, duped_string(ua.patch)) if ua.patch
-    set_version(event, ua_source, ua) # UA version string e.g. "89.0.4389.90"
-
-    os = ua_data.os
-    if os
-      # os.major, os.minor, ... are all strings
-      event.set(@os_major_field, duped_string(os.major)) if os.major # e.g. 'Vista' or '10'
-      event.set(@os_minor_field, duped_string(os.minor)) if os.minor
-      event.set(@os_patch_field, duped_string(os.patch)) if os.patch
-      os_version = build_os_version(os)
-      event.set(@os_version_field, os_version) if os_version
-
-      os_name = os.family
-      if os_name
-        os_name = duped_string(os_name)
-        event.set(@os_name_field, os_name)
-        event.set(@legacy_os_field, os_name.dup) if @legacy_os_field
-        os_full_name = os_name.dup
-        os_full_name << ' ' << os_version if os_version
-        event.set(@os_full_name_field, os_full_name)
-      end
-    end
+  def lookup_useragents(useragents)
+    @ua_filter.lookupAll(useragents)
   end
 
-  # reconstruct and set the User-Agent version string
-  def set_version(event, ua_source, ua)
-    if @version_field && ua.major
-      # only Chrome has all 4 segments, while Firefox only uses major.minor
-      version = duped_string(ua.major)
-      if ua.minor
-        version << '.' << ua.minor
-        if ua.patch
-          version << '.' << ua.patch
-          if ua.patchMinor
-            version << '.' << ua.patchMinor
-          else
-            adjusted_version = check_and_adjust_version(ua_source, version)
-            version = adjusted_version if adjusted_version
-          end
-        end
-      end
-      event.set(@version_field, version)
-    end
+  def apply_useragent(event, ua_data)
+    return unless ua_data
+
+    event.remove(@source) if @target == @source
+    set_fields(event, ua_data)
+
+    filter_matched(event)
   end
 
-  def check_and_adjust_version(ua_source, version)
-    # only set OS version if it's not 'interpreted' (contained in UA string)
-    return nil if !version || (i = ua_source.index(version)).nil?
-    i += version.size
-    # complete version when patchMinor is not matched but still there
-    if ua_source[i] == '.' # we built the version with dots
-      if patch_minor = ua_source.index(' ', i + 1)
-        patch_minor = ua_source[i + 1...patch_minor]
-        if patch_minor.eql? patch_minor.to_i.to_s
-          version = "#{version}.#{patch_minor}"
-        end
-      end
-    end
-    version
+  def set_fields(event, ua_data)
+    # values are set as new strings, later filters modifying them can not corrupt the cache
+    @ua_filter.setFields(event, ua_data)
   end
 
-  # reconstructs the OS version string
-  def build_os_version(os)
-    # NOTE: UA regexes don't always give us the versions back
-    # they do get "corrected" for various OSes such as:
-    # - Windows (Windows NT 6.0 => 'Vista')
-    # - Windows ('Windows NT 6.3' => '8','1')
-    # - Windows ('Windows NT 10.0' => '10')
-    # - iOS ('Darwin/15.5' => '9','3','2')
-    return unless major = os.major
-    if major.to_i.to_s == major
-      version, sep = duped_string(major), '.'
-    else
-      version, sep = duped_string(major), ' '
+  # Exposes the plugin's metric to the Java filter, to report the cache and parse statistics
+  # (see ParserMetrics) to.
+  class MetricAdapter
+    include Java::OrgLogstashFiltersUseragent::PluginMetric
+
+    def initialize(metric)
+      @metric = metric
     end
-    if os.minor
-      version << sep << os.minor
-      if os.patch
-        version << '.' << os.patch
-        if os.patchMinor
-          version << '.' << os.patchMinor
-        end
-      end
+
+    def namespace(key)
+      MetricAdapter.new(@metric.namespace(key.to_sym))
     end
-    version
-  end
 
-  def duped_string(str)
-    # Calls in here use #dup because there's potential for later filters to modify these values
-    # and corrupt the cache. See uap source here for details https://github.com/ua-parser/uap-ruby/tree/master/lib/user_agent_parser
-    str.dup.force_encoding(Encoding::UTF_8)
+    def increment(key, delta = 1)
+      @metric.increment(key.to_sym, delta)
+    end
+
+    def gauge(key, value)
+      @metric.gauge(key.to_sym, value)
+    end
   end
 
 end
@@ -0,0 +1,137 @@
+# encoding: utf-8
+#
+# End-to-end benchmark of the filter, driving the Ruby plugin and the Java side through the
+# same calls as a pipeline worker: batches of events go through #multi_filter (or #filter, one
+# event at a time) from several worker threads sharing the filter.
+#
+#   bundle exec rake benchmark
+#
+# Settings are read from the environment, comma separated lists being measured in every
+# combination:
+#
+#   UA_BENCH_AGENTS       file of user agents, one per line, replayed in order, e.g. extracted from
+#                         an access log or generated by org.logstash.uaparser.tools.WorkloadGenerator
+#                         (default: the uap-core test yamls fetched by `./gradlew downloadTestYaml`)
+#   UA_BENCH_EVENTS       events per run (default 200000)
+#   UA_BENCH_BATCH        events per batch (default 125, the pipeline default)
+#   UA_BENCH_WORKERS      worker threads (default 1,4)
+#   UA_BENCH_CACHE_SIZES  lru_cache_size (default 1000,100000)
+#   UA_BENCH_ECS          ecs_compatibility (default disabled,v8)
+#   UA_BENCH_PATHS        multi_filter and/or filter (default multi_filter,filter)
+#
+# The user agents of the test yamls are drawn following a Zipf distribution, a few of them making
+# most of the events as in production traffic. Every run reports events per second, the bytes the worker threads
+# allocated per event (events and batches are built ahead of the measured loop) and the cache
+# hit ratio.
+require "logstash/devutils/rspec/spec_helper"
+require "logstash/filters/useragent"
+require "yaml"
+
+module UserAgentBenchmark
+  extend self
+
+  TEST_YAMLS = %w(test_ua.yaml test_os.yaml test_device.yaml pgts_browser_list.yaml)
+
+  def setting(name, default)
+    (ENV["UA_BENCH_#{name}"] || default).to_s.split(',').map(&:strip)
+  end
+
+  def agents
+    directory = File.expand_path('../../build/resources/test', __dir__)
+    agents = TEST_YAMLS.map { |name| File.join(directory, name) }.select { |path| File.exist?(path) }.flat_map do |path|
+      (YAML.load_file(path)['test_cases'] || []).map { |test_case| test_case['user_agent_string'] }.compact
+    end.uniq
+    raise "No user agents found, set UA_BENCH_AGENTS or run ./gradlew downloadTestYaml" if agents.empty?
+    agents
+  end
+
+  # Zipf distributed draws (exponent 1) over the user agents, in a fixed random order
+  def draws(agents, count)
+    random = Random.new(42)
+    ranked = agents.shuffle(random: random)
+    cumulative = []
+    sum = 0.0
+    ranked.each_index { |rank| cumulative << (sum += 1.0 / (rank + 1)) }
+    Array.new(count) do
+      target = random.rand * sum
+      ranked[cumulative.bsearch_index { |weight| weight >= target } || ranked.size - 1]
+    end
+  end
+
+  def batches(draws, workers, batch_size)
+    per_worker = draws.each_slice((draws.size.to_f / workers).ceil).to_a
+    per_worker.map do |slice|
+      slice.each_slice(batch_size).map { |batch| batch.map { |agent| LogStash::Event.new('message' => agent) } }
+    end
+  end
+
+  # called through the public interface, the implementing class isn't exported by jdk.management
+  THREAD_ALLOCATED_BYTES = com.sun.management.ThreadMXBean.java_class.to_java
+                             .getMethod('getThreadAllocatedBytes', java.lang.Long::TYPE)
+
+  def allocated_bytes
+    threads = java.lang.management.ManagementFactory.getThreadMXBean
+    THREAD_ALLOCATED_BYTES.invoke(threads, java.lang.Thread.currentThread.getId)
+  end
+
+  # @return [seconds, allocated bytes] of filtering all the batches, one thread per worker
+  def run(filter, batches, path)
+    allocated = java.util.concurrent.atomic.AtomicLong.new
+    start_line = java.util.concurrent.CountDownLatch.new(1)
+    threads = batches.map do |worker_batches|
+      Thread.new do
+        start_line.await
+        before = allocated_bytes
+        if path == 'filter'
+          worker_batches.each { |batch| batch.each { |event| filter.filter(event) } }
+        else
+          worker_batches.each { |batch| filter.multi_filter(batch) }
+        end
+        allocated.addAndGet(allocated_bytes - before)
+      end
+    end
+    start = Process.clock_gettime(Process::CLOCK_MONOTONIC)
+    start_line.countDown
+    threads.each(&:join)
+    [Process.clock_gettime(Process::CLOCK_MONOTONIC) - start, allocated.get]
+  end
+
+  def measure
+    events = setting('EVENTS', 200_000).first.to_i
+    batch_size = setting('BATCH', 125).first.to_i
+    file = ENV['UA_BENCH_AGENTS']
+    if file
+      replayed = File.readlines(file, chomp: true).reject(&:empty?)
+      draws = Array.new(events) { |i| replayed[i % replayed.size] }
+    else
+      draws = draws(agents, events)
+    end
+    puts "#{draws.uniq.size} distinct user agents, #{events} events in batches of #{batch_size}"
+    puts format("%-8s %-12s %-11s %7s %12s %14s %10s", 'ecs', 'path', 'cache size', 'workers', 'events/s', 'bytes/event', 'hit ratio')
+
+    setting('ECS', 'disabled,v8').each do |ecs|
+      setting('CACHE_SIZES', '1000,100000').each do |cache_size|
+        setting('PATHS', 'multi_filter,filter').each do |path|
+          setting('WORKERS', '1,4').each do |workers|
+            filter = LogStash::Filters::UserAgent.new('source' => 'message', 'target' => 'ua',
+                                                      'ecs_compatibility' => ecs,
+                                                      'lru_cache_size' => cache_size.to_i)
+            filter.register
+            # warm up the JIT and the cache, then measure on fresh events
+            run(filter, batches(draws, workers.to_i, batch_size), path)
+            parser = filter.instance_variable_get(:@parser)
+            hits, misses = parser.hits, parser.misses
+            seconds, bytes = run(filter, batches(draws, workers.to_i, batch_size), path)
+            lookups = parser.hits + parser.misses - hits - misses
+            hit_ratio = lookups.zero? ? 0.0 : (parser.hits - hits).to_f / lookups
+            puts format("%-8s %-12s %-11s %7s %12.0f %14.0f %10.3f",
+                        ecs, path, cache_size, workers, events / seconds, bytes.to_f / events, hit_ratio)
+            filter.close
+          end
+        end
+      end
+    end
+  end
+end
+
+UserAgentBenchmark.measure if $0 == __FILE__
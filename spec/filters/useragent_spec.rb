@@ -464,8 +464,16 @@ describe LogStash::Filters::UserAgent do
           expect(target_field).to eql(value)
         end
 
-        it "should dup/clone the field to prevent cache corruption" do
-          expect(target_field.object_id).not_to eql(value.object_id)
+        it "should not expose the frozen values kept in the cache" do
+          # the filter keeps the values once a user agent is served a second time
+          subject.filter(LogStash::Event.new('message' => message))
+          hot = LogStash::Event.new('message' => message)
+          subject.filter(hot)
+          expect(hot.get(field)).to_not be_frozen
+          hot.get(field) << ' modified'
+          other = LogStash::Event.new('message' => message)
+          subject.filter(other)
+          expect(other.get(field)).to eql(value)
         end
 
         it "should be an utf-8 string" do
@@ -473,6 +481,55 @@ describe LogStash::Filters::UserAgent do
         end
       end
     end
+
+    it "should not let modified event fields corrupt the cached values" do
+      event.get('name') << ' modified'
+      other = LogStash::Event.new('message' => message)
+      subject.filter(other)
+      expect(other.get('name')).to eql 'Chrome'
+      expect(other.get('name')).to_not be_frozen
+    end
+  end
+
+  describe "components" do
+
+    let(:options) { super().merge('components' => [ 'device' ]) }
+    let(:message) { 'Mozilla/5.0 (iPhone; CPU iPhone OS 13_3_1 like Mac OS X) AppleWebKit/605.1.15 (KHTML, like Gecko) Version/13.0.5 Mobile/15E148 Safari/604.1' }
+
+    before do
+      subject.register
+      subject.filter(event)
+    end
+
+    it "only sets the fields of the selected components" do
+      expect( event.get('device') ).to eql 'iPhone'
+      expect( event.to_hash.keys ).to_not include 'name', 'version', 'os_name', 'os_full'
+    end
+
+  end
+
+  describe "multi_filter" do
+
+    let(:firefox) { 'Mozilla/5.0 (Windows NT 10.0; Win64; x64; rv:78.0) Gecko/20100101 Firefox/78.0' }
+    let(:events) do
+      [ message, firefox, nil, message ].map { |ua| LogStash::Event.new(ua ? { 'message' => ua } : {}) }
+    end
+
+    before { subject.register }
+
+    it "sets the fields of all events with a user agent" do
+      result = subject.multi_filter(events)
+      expect( result.size ).to eql 4
+      expect( result.map { |event| event.get('name') } ).to eql [ 'Chrome', 'Firefox', nil, 'Chrome' ]
+      expect( result[0].get('name').object_id ).to_not eql result[3].get('name').object_id
+    end
+
+    it "falls back to filtering events one at a time" do
+      expect(subject).to receive(:lookup_useragents).and_raise RuntimeError.new('this is a test')
+      result = subject.multi_filter(events)
+      expect( result.map { |event| event.get('version') } ).to eql [ '45.0.2454.85', '78.0', nil, '45.0.2454.85' ]
+    end
+
   end
 
   describe "Replace source with target" do
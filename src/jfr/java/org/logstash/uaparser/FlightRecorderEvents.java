@@ -0,0 +1,160 @@
+/*
+ * Licensed to Elasticsearch under one or more contributor
+ * license agreements. See the NOTICE file distributed with
+ * this work for additional information regarding copyright
+ * ownership. Elasticsearch licenses this file to you under
+ * the Apache License, Version 2.0 (the "License"); you may
+ * not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing,
+ * software distributed under the License is distributed on an
+ * "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+ * KIND, either express or implied.  See the License for the
+ * specific language governing permissions and limitations
+ * under the License.
+ */
+package org.logstash.uaparser;
+
+import jdk.jfr.Category;
+import jdk.jfr.Description;
+import jdk.jfr.Event;
+import jdk.jfr.EventType;
+import jdk.jfr.FlightRecorder;
+import jdk.jfr.Label;
+import jdk.jfr.Name;
+import jdk.jfr.StackTrace;
+import jdk.jfr.Threshold;
+
+/**
+ * The Flight Recorder events of {@link ParseEvents}, the only class referring to the
+ * {@code jdk.jfr} API. Loaded reflectively, it's compiled for Java 11 apart from the other
+ * classes.
+ */
+final class FlightRecorderEvents implements ParseEvents.Recorder {
+
+    private final EventType parse = EventType.getEventType(FlightRecorderEvents.Parse.class);
+
+    private final EventType slowParse =
+        EventType.getEventType(FlightRecorderEvents.SlowParse.class);
+
+    private final EventType eviction =
+        EventType.getEventType(FlightRecorderEvents.CacheEviction.class);
+
+    FlightRecorderEvents() {
+        if (!FlightRecorder.isAvailable()) {
+            throw new IllegalStateException("Flight Recorder is not available");
+        }
+    }
+
+    @Override
+    public Object parsing() {
+        final boolean parsed = this.parse.isEnabled();
+        final boolean slow = this.slowParse.isEnabled();
+        if (!parsed && !slow) {
+            return null;
+        }
+        final FlightRecorderEvents.Parse[] events = {
+            parsed ? new FlightRecorderEvents.Parse() : null,
+            slow ? new FlightRecorderEvents.SlowParse() : null
+        };
+        for (final FlightRecorderEvents.Parse event : events) {
+            if (event != null) {
+                event.begin();
+            }
+        }
+        return events;
+    }
+
+    @Override
+    public void parsed(final Object started, final String agentString, final int userAgent,
+        final int os, final int device, final boolean limited) {
+        final FlightRecorderEvents.Parse[] events = (FlightRecorderEvents.Parse[]) started;
+        for (final FlightRecorderEvents.Parse event : events) {
+            if (event == null) {
+                continue;
+            }
+            event.end();
+            if (event.shouldCommit()) {
+                event.agentLength = agentString.length();
+                event.userAgentRule = userAgent;
+                event.osRule = os;
+                event.deviceRule = device;
+                event.limited = limited;
+                if (event instanceof FlightRecorderEvents.SlowParse) {
+                    ((FlightRecorderEvents.SlowParse) event).agentString =
+                        ParseEvents.truncate(agentString);
+                }
+                event.commit();
+            }
+        }
+    }
+
+    @Override
+    public void evicted(final CacheKey key, final int size) {
+        if (!this.eviction.isEnabled()) {
+            return;
+        }
+        final FlightRecorderEvents.CacheEviction event = new FlightRecorderEvents.CacheEviction();
+        if (event.shouldCommit()) {
+            event.agentString = ParseEvents.truncate(key.toString());
+            event.cacheSize = size;
+            event.commit();
+        }
+    }
+
+    @Name("org.logstash.uaparser.Parse")
+    @Label("User Agent Parse")
+    @Description("User agent string parsed, i.e. not found in the cache")
+    @Category({"Logstash", "User Agent"})
+    @StackTrace(false)
+    static class Parse extends Event {
+
+        @Label("Agent String Length")
+        int agentLength;
+
+        @Label("User Agent Rule")
+        @Description("Index of the matching rule in the user_agent_parsers, -1 if none")
+        int userAgentRule;
+
+        @Label("OS Rule")
+        @Description("Index of the matching rule in the os_parsers, -1 if none")
+        int osRule;
+
+        @Label("Device Rule")
+        @Description("Index of the matching rule in the device_parsers, -1 if none")
+        int deviceRule;
+
+        @Label("Limited")
+        @Description("Parse cut short by the max length or the step budget")
+        boolean limited;
+    }
+
+    @Name("org.logstash.uaparser.SlowParse")
+    @Label("Slow User Agent Parse")
+    @Description("User agent string which took longer than the threshold to parse")
+    @Category({"Logstash", "User Agent"})
+    @StackTrace(false)
+    @Threshold("10 ms")
+    static final class SlowParse extends FlightRecorderEvents.Parse {
+
+        @Label("Agent String")
+        String agentString;
+    }
+
+    @Name("org.logstash.uaparser.CacheEviction")
+    @Label("User Agent Cache Eviction")
+    @Description("Cached client evicted to make room for a new one")
+    @Category({"Logstash", "User Agent"})
+    @StackTrace(false)
+    static final class CacheEviction extends Event {
+
+        @Label("Agent String")
+        String agentString;
+
+        @Label("Cache Size")
+        int cacheSize;
+    }
+}
@@ -0,0 +1,190 @@
+/*
+ * Licensed to Elasticsearch under one or more contributor
+ * license agreements. See the NOTICE file distributed with
+ * this work for additional information regarding copyright
+ * ownership. Elasticsearch licenses this file to you under
+ * the Apache License, Version 2.0 (the "License"); you may
+ * not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing,
+ * software distributed under the License is distributed on an
+ * "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+ * KIND, either express or implied.  See the License for the
+ * specific language governing permissions and limitations
+ * under the License.
+ */
+package org.logstash.uaparser;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.LinkedHashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Random;
+import java.util.Set;
+import java.util.concurrent.ThreadLocalRandom;
+import org.logstash.uaparser.tools.WorkloadGenerator;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.yaml.snakeyaml.LoaderOptions;
+import org.yaml.snakeyaml.Yaml;
+
+/**
+ * The agent strings of the uap-core test resources, as downloaded by
+ * {@code ./gradlew downloadTestYaml} to the directory named by the {@code useragent.corpus}
+ * system property, drawn in a fixed sequence that follows either a uniform or a Zipf
+ * distribution, or generated from them by a {@link WorkloadGenerator}.
+ *
+ * The Zipf distribution (exponent 1) stands for production traffic, where a few agent strings
+ * make most of the events, and the uniform one for the long tail. The synthetic one adds
+ * bursts of repeated agent strings and 5% of unique ones, as bots and apps send.
+ */
+@State(Scope.Benchmark)
+public class AgentStrings {
+
+    private static final String[] FILES = {
+        "test_ua.yaml", "test_os.yaml", "test_device.yaml", "additional_os_tests.yaml",
+        "firefox_user_agent_strings.yaml", "opera_mini_user_agent_strings.yaml",
+        "pgts_browser_list.yaml"
+    };
+
+    /**
+     * Length of the sequence of draws, a power of two.
+     */
+    private static final int DRAWS = 1 << 16;
+
+    @Param({"uniform", "zipf", "synthetic"})
+    public String distribution;
+
+    private String[] agents;
+
+    private String[] sequence;
+
+    private byte[][] bytes;
+
+    @Setup
+    public void setUp() throws IOException {
+        final List<String> corpus = AgentStrings.load();
+        // the most frequent agent strings are not the first ones of the test files
+        Collections.shuffle(corpus, new Random(42L));
+        this.agents = corpus.toArray(new String[0]);
+        this.sequence = AgentStrings.draws(this.distribution, corpus);
+        this.bytes = new byte[this.sequence.length][];
+        for (int i = 0; i < this.sequence.length; ++i) {
+            this.bytes[i] = this.sequence[i].getBytes(StandardCharsets.UTF_8);
+        }
+    }
+
+    /**
+     * @return All the distinct agent strings
+     */
+    public String[] all() {
+        return this.agents.clone();
+    }
+
+    /**
+     * @param cursor Position of the calling thread in the sequence
+     * @return Next agent string of the sequence
+     */
+    public String next(final AgentStrings.Cursor cursor) {
+        return this.sequence[cursor.advance()];
+    }
+
+    /**
+     * @param cursor Position of the calling thread in the sequence
+     * @return UTF-8 bytes of the next agent string of the sequence
+     */
+    public byte[] nextBytes(final AgentStrings.Cursor cursor) {
+        return this.bytes[cursor.advance()];
+    }
+
+    private static List<String> load() throws IOException {
+        final String directory = System.getProperty("useragent.corpus");
+        if (directory == null) {
+            throw new IllegalStateException(
+                "Set useragent.corpus to the directory of the uap-core test yamls"
+            );
+        }
+        final LoaderOptions options = new LoaderOptions();
+        // test_device.yaml is more than 3M
+        options.setCodePointLimit(5 * 1024 * 1024);
+        final Set<String> agents = new LinkedHashSet<>();
+        for (final String file : AgentStrings.FILES) {
+            final Path path = Paths.get(directory, file);
+            if (!Files.exists(path)) {
+                continue;
+            }
+            try (InputStream input = Files.newInputStream(path)) {
+                @SuppressWarnings("unchecked")
+                final Map<String, List<Map<String, Object>>> entries =
+                    (Map<String, List<Map<String, Object>>>) new Yaml(options).load(input);
+                for (final Map<String, Object> entry : entries.get("test_cases")) {
+                    final Object agent = entry.get("user_agent_string");
+                    if (agent != null) {
+                        agents.add(agent.toString());
+                    }
+                }
+            }
+        }
+        if (agents.isEmpty()) {
+            throw new IllegalStateException("No agent strings found in " + directory);
+        }
+        return new ArrayList<>(agents);
+    }
+
+    private static String[] draws(final String distribution, final List<String> agents) {
+        final int size = agents.size();
+        final Random random = new Random(7L);
+        final String[] draws = new String[AgentStrings.DRAWS];
+        if ("uniform".equals(distribution)) {
+            for (int i = 0; i < draws.length; ++i) {
+                draws[i] = agents.get(random.nextInt(size));
+            }
+        } else if ("synthetic".equals(distribution)) {
+            return new WorkloadGenerator(agents, size, 1.0, 0.3, 0.05, 7L)
+                .next(AgentStrings.DRAWS).toArray(draws);
+        } else if ("zipf".equals(distribution)) {
+            final double[] cumulative = new double[size];
+            double sum = 0.0;
+            for (int rank = 0; rank < size; ++rank) {
+                sum += 1.0 / (rank + 1);
+                cumulative[rank] = sum;
+            }
+            for (int i = 0; i < draws.length; ++i) {
+                final int found = Arrays.binarySearch(cumulative, random.nextDouble() * sum);
+                draws[i] = agents.get(Math.min(found >= 0 ? found : -found - 1, size - 1));
+            }
+        } else {
+            throw new IllegalArgumentException("Unknown distribution " + distribution);
+        }
+        return draws;
+    }
+
+    /**
+     * Position of a thread in the sequence, starting at a random draw so that the threads
+     * don't look up the same agent strings in lockstep.
+     */
+    @State(Scope.Thread)
+    public static class Cursor {
+
+        private int position = ThreadLocalRandom.current().nextInt(AgentStrings.DRAWS);
+
+        int advance() {
+            final int current = this.position;
+            this.position = (current + 1) & (AgentStrings.DRAWS - 1);
+            return current;
+        }
+    }
+}
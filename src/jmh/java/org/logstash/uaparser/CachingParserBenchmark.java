@@ -0,0 +1,133 @@
+/*
+ * Licensed to Elasticsearch under one or more contributor
+ * license agreements. See the NOTICE file distributed with
+ * this work for additional information regarding copyright
+ * ownership. Elasticsearch licenses this file to you under
+ * the Apache License, Version 2.0 (the "License"); you may
+ * not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing,
+ * software distributed under the License is distributed on an
+ * "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+ * KIND, either express or implied.  See the License for the
+ * specific language governing permissions and limitations
+ * under the License.
+ */
+package org.logstash.uaparser;
+
+import java.util.concurrent.TimeUnit;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+/**
+ * Throughput and latency of the {@link CachingParser} lookups, from strings and from the UTF-8
+ * bytes the filter reads event fields as.
+ *
+ * The hit benchmarks run against a cache holding every agent string, but the unique ones of
+ * the synthetic distribution. The miss benchmarks run
+ * against a cache of a single entry, which the sequence of agent strings almost never repeats.
+ * The bounded benchmark runs against a cache of {@code cacheSize} entries, the hit ratio
+ * following from the distribution.
+ */
+@BenchmarkMode({Mode.Throughput, Mode.SampleTime})
+@OutputTimeUnit(TimeUnit.MILLISECONDS)
+@Warmup(iterations = 3, time = 5)
+@Measurement(iterations = 5, time = 5)
+@Fork(1)
+public class CachingParserBenchmark {
+
+    @Benchmark
+    public Client hit(final CachingParserBenchmark.Warm cache, final AgentStrings agents,
+        final AgentStrings.Cursor cursor) {
+        return cache.parser.parse(agents.next(cursor));
+    }
+
+    @Benchmark
+    public Client hitBytes(final CachingParserBenchmark.Warm cache, final AgentStrings agents,
+        final AgentStrings.Cursor cursor) {
+        final byte[] bytes = agents.nextBytes(cursor);
+        return cache.parser.parse(bytes, 0, bytes.length);
+    }
+
+    @Benchmark
+    public Client miss(final CachingParserBenchmark.Cold cache, final AgentStrings agents,
+        final AgentStrings.Cursor cursor) {
+        return cache.parser.parse(agents.next(cursor));
+    }
+
+    @Benchmark
+    public Client missBytes(final CachingParserBenchmark.Cold cache, final AgentStrings agents,
+        final AgentStrings.Cursor cursor) {
+        final byte[] bytes = agents.nextBytes(cursor);
+        return cache.parser.parse(bytes, 0, bytes.length);
+    }
+
+    @Benchmark
+    public Client bounded(final CachingParserBenchmark.Bounded cache, final AgentStrings agents,
+        final AgentStrings.Cursor cursor) {
+        return cache.parser.parse(agents.next(cursor));
+    }
+
+    /**
+     * A cache holding all the agent strings.
+     */
+    @State(Scope.Benchmark)
+    public static class Warm {
+
+        CachingParser parser;
+
+        @Setup
+        public void setUp(final AgentStrings agents) {
+            final String[] all = agents.all();
+            this.parser = new CachingParser(2 * all.length);
+            for (final String agent : all) {
+                this.parser.parse(agent);
+            }
+        }
+    }
+
+    /**
+     * A cache of a single entry.
+     */
+    @State(Scope.Benchmark)
+    public static class Cold {
+
+        CachingParser parser;
+
+        @Setup
+        public void setUp() {
+            this.parser = new CachingParser(1);
+            this.parser.compileAll();
+        }
+    }
+
+    /**
+     * A cache smaller than the number of agent strings.
+     */
+    @State(Scope.Benchmark)
+    public static class Bounded {
+
+        @Param({"1000"})
+        public int cacheSize;
+
+        CachingParser parser;
+
+        @Setup
+        public void setUp() {
+            this.parser = new CachingParser(this.cacheSize);
+            this.parser.compileAll();
+        }
+    }
+}
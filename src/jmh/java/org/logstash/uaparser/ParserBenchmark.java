@@ -0,0 +1,72 @@
+/*
+ * Licensed to Elasticsearch under one or more contributor
+ * license agreements. See the NOTICE file distributed with
+ * this work for additional information regarding copyright
+ * ownership. Elasticsearch licenses this file to you under
+ * the Apache License, Version 2.0 (the "License"); you may
+ * not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing,
+ * software distributed under the License is distributed on an
+ * "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+ * KIND, either express or implied.  See the License for the
+ * specific language governing permissions and limitations
+ * under the License.
+ */
+package org.logstash.uaparser;
+
+import java.util.concurrent.TimeUnit;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+/**
+ * Throughput and latency of parsing agent strings without a cache, as a whole and for each
+ * component, i.e. the cost of a cache miss.
+ */
+@BenchmarkMode({Mode.Throughput, Mode.SampleTime})
+@OutputTimeUnit(TimeUnit.MILLISECONDS)
+@Warmup(iterations = 3, time = 5)
+@Measurement(iterations = 5, time = 5)
+@Fork(1)
+@State(Scope.Benchmark)
+public class ParserBenchmark {
+
+    private Parser parser;
+
+    @Setup
+    public void setUp() {
+        this.parser = new Parser();
+        this.parser.compileAll();
+    }
+
+    @Benchmark
+    public Client parse(final AgentStrings agents, final AgentStrings.Cursor cursor) {
+        return this.parser.parse(agents.next(cursor));
+    }
+
+    @Benchmark
+    public UserAgent parseUserAgent(final AgentStrings agents, final AgentStrings.Cursor cursor) {
+        return this.parser.parseUserAgent(agents.next(cursor));
+    }
+
+    @Benchmark
+    public OS parseOS(final AgentStrings agents, final AgentStrings.Cursor cursor) {
+        return this.parser.parseOS(agents.next(cursor));
+    }
+
+    @Benchmark
+    public String parseDevice(final AgentStrings agents, final AgentStrings.Cursor cursor) {
+        return this.parser.parseDevice(agents.next(cursor));
+    }
+}
@@ -0,0 +1,133 @@
+/*
+ * Licensed to Elasticsearch under one or more contributor
+ * license agreements. See the NOTICE file distributed with
+ * this work for additional information regarding copyright
+ * ownership. Elasticsearch licenses this file to you under
+ * the Apache License, Version 2.0 (the "License"); you may
+ * not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing,
+ * software distributed under the License is distributed on an
+ * "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+ * KIND, either express or implied.  See the License for the
+ * specific language governing permissions and limitations
+ * under the License.
+ */
+package org.logstash.uaparser;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.TimeUnit;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+import org.yaml.snakeyaml.Yaml;
+
+/**
+ * Time to load the rules and to compile all their regexes, for the bundled regexes.yaml and for
+ * a large custom one made of copies of its rules, in both the YAML and the binary forms.
+ *
+ * Each measurement loads the rules once, e.g.
+ * {@code ./gradlew jmh -PjmhArgs="StartupBenchmark -p copies=20"}.
+ */
+@BenchmarkMode(Mode.SingleShotTime)
+@OutputTimeUnit(TimeUnit.MILLISECONDS)
+@Warmup(iterations = 3)
+@Measurement(iterations = 10)
+@Fork(1)
+@State(Scope.Benchmark)
+public class StartupBenchmark {
+
+    /**
+     * Copies of the bundled rules making up the rule set, 1 for the bundled regexes.yaml.
+     */
+    @Param({"1", "10"})
+    public int copies;
+
+    @Param({"yaml", "binary"})
+    public String form;
+
+    private byte[] rules;
+
+    @Setup
+    public void setUp() throws IOException {
+        final byte[] yaml;
+        try (InputStream input = StartupBenchmark.class.getResourceAsStream("/regexes.yaml")) {
+            yaml = StartupBenchmark.readAll(input);
+        }
+        final byte[] copied = this.copies > 1 ? StartupBenchmark.copies(yaml, this.copies) : yaml;
+        this.rules = "binary".equals(this.form) ? StartupBenchmark.binary(copied) : copied;
+    }
+
+    @Benchmark
+    public Parser load() {
+        return new Parser(new ByteArrayInputStream(this.rules));
+    }
+
+    @Benchmark
+    public Parser loadAndCompileAll() {
+        final Parser parser = new Parser(new ByteArrayInputStream(this.rules));
+        parser.compileAll();
+        return parser;
+    }
+
+    private static byte[] binary(final byte[] yaml) throws IOException {
+        final ByteArrayOutputStream output = new ByteArrayOutputStream();
+        RuleSet.fromYaml(new ByteArrayInputStream(yaml)).write(output);
+        return output.toByteArray();
+    }
+
+    /**
+     * Repeats the rules of each section, the regexes of every copy being made distinct so that
+     * none of them is shared.
+     */
+    @SuppressWarnings("unchecked")
+    private static byte[] copies(final byte[] yaml, final int copies) {
+        final Map<String, List<Map<String, String>>> config =
+            (Map<String, List<Map<String, String>>>) new Yaml().load(new ByteArrayInputStream(yaml));
+        final Map<String, List<Map<String, String>>> large = new LinkedHashMap<>();
+        for (final Map.Entry<String, List<Map<String, String>>> section : config.entrySet()) {
+            final List<Map<String, String>> rules = new ArrayList<>();
+            for (int copy = 0; copy < copies; ++copy) {
+                for (final Map<String, String> rule : section.getValue()) {
+                    final Map<String, String> copied = new HashMap<>(rule);
+                    if (copy > 0) {
+                        copied.put("regex", copied.get("regex") + "(?:#" + copy + ")?");
+                    }
+                    rules.add(copied);
+                }
+            }
+            large.put(section.getKey(), rules);
+        }
+        return new Yaml().dump(large).getBytes(StandardCharsets.UTF_8);
+    }
+
+    private static byte[] readAll(final InputStream input) throws IOException {
+        final ByteArrayOutputStream output = new ByteArrayOutputStream();
+        final byte[] buffer = new byte[8192];
+        int read;
+        while ((read = input.read(buffer)) > 0) {
+            output.write(buffer, 0, read);
+        }
+        return output.toByteArray();
+    }
+}
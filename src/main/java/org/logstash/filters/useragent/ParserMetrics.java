@@ -0,0 +1,147 @@
+/*
+ * Licensed to Elasticsearch under one or more contributor
+ * license agreements. See the NOTICE file distributed with
+ * this work for additional information regarding copyright
+ * ownership. Elasticsearch licenses this file to you under
+ * the Apache License, Version 2.0 (the "License"); you may
+ * not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing,
+ * software distributed under the License is distributed on an
+ * "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+ * KIND, either express or implied.  See the License for the
+ * specific language governing permissions and limitations
+ * under the License.
+ */
+package org.logstash.filters.useragent;
+
+import java.util.Locale;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.locks.ReentrantLock;
+import org.logstash.uaparser.CachingParser;
+import org.logstash.uaparser.Component;
+import org.logstash.uaparser.ParseLimits;
+import org.logstash.uaparser.ParseStats;
+
+/**
+ * Reports the statistics of a {@link CachingParser} to the plugin's metrics:
+ * <pre>
+ * cache:       hits, misses, evictions (counters), size (gauge)
+ * limits:      too_long, over_budget (counters)
+ * user_agent, os, device:
+ *   miss_latency: le_10us, le_100us, le_1ms, le_10ms, le_100ms, gt_100ms (counters)
+ *   duration_in_millis (counter)
+ * </pre>
+ * Statistics are reported at most once per interval, by whichever worker calls
+ * {@link #report()} first once it elapsed, as the increments since the last report.
+ */
+final class ParserMetrics {
+
+    private static final long INTERVAL = TimeUnit.SECONDS.toNanos(1L);
+
+    private final CachingParser parser;
+
+    private final PluginMetric cache;
+
+    private final PluginMetric limits;
+
+    private final PluginMetric[] components;
+
+    private final PluginMetric[] latencies;
+
+    private final ReentrantLock lock = new ReentrantLock();
+
+    private volatile long next;
+
+    private long hits;
+
+    private long misses;
+
+    private long evictions;
+
+    private long tooLong;
+
+    private long overBudget;
+
+    private final long[][] buckets;
+
+    private final long[] nanos;
+
+    ParserMetrics(final CachingParser parser, final PluginMetric metric) {
+        this.parser = parser;
+        this.cache = metric.namespace("cache");
+        this.limits = metric.namespace("limits");
+        final Component[] all = Component.values();
+        this.components = new PluginMetric[all.length];
+        this.latencies = new PluginMetric[all.length];
+        this.buckets = new long[all.length][];
+        this.nanos = new long[all.length];
+        for (final Component component : all) {
+            final int i = component.ordinal();
+            this.components[i] = metric.namespace(component.name().toLowerCase(Locale.ROOT));
+            this.latencies[i] = this.components[i].namespace("miss_latency");
+            this.buckets[i] = new long[parser.stats().latency(component).buckets()];
+        }
+        this.next = System.nanoTime();
+    }
+
+    /**
+     * Reports the statistics if the interval elapsed since the last report.
+     */
+    void report() {
+        final long now = System.nanoTime();
+        if (now - this.next < 0L || !this.lock.tryLock()) {
+            return;
+        }
+        try {
+            this.next = now + ParserMetrics.INTERVAL;
+            this.hits = ParserMetrics.increment(this.cache, "hits", this.hits, this.parser.hits());
+            this.misses = ParserMetrics.increment(this.cache, "misses", this.misses, this.parser.misses());
+            this.evictions = ParserMetrics.increment(
+                this.cache, "evictions", this.evictions, this.parser.evictions()
+            );
+            this.cache.gauge("size", this.parser.size());
+            final ParseLimits parseLimits = this.parser.limits();
+            this.tooLong = ParserMetrics.increment(
+                this.limits, "too_long", this.tooLong, parseLimits.tooLong()
+            );
+            this.overBudget = ParserMetrics.increment(
+                this.limits, "over_budget", this.overBudget, parseLimits.overBudget()
+            );
+            for (final Component component : Component.values()) {
+                final int i = component.ordinal();
+                final ParseStats.Latency latency = this.parser.stats().latency(component);
+                for (int bucket = 0; bucket < this.buckets[i].length; ++bucket) {
+                    this.buckets[i][bucket] = ParserMetrics.increment(
+                        this.latencies[i], latency.name(bucket), this.buckets[i][bucket],
+                        latency.count(bucket)
+                    );
+                }
+                final long total = latency.totalNanos();
+                final long millis = TimeUnit.NANOSECONDS.toMillis(total - this.nanos[i]);
+                if (millis > 0L) {
+                    this.components[i].increment("duration_in_millis", (int) millis);
+                    this.nanos[i] += TimeUnit.MILLISECONDS.toNanos(millis);
+                }
+            }
+        } finally {
+            this.lock.unlock();
+        }
+    }
+
+    /**
+     * @return The current value, now reported
+     */
+    private static long increment(final PluginMetric metric, final String key,
+        final long reported, final long current) {
+        final long delta = current - reported;
+        if (delta > 0L) {
+            metric.increment(key, (int) Math.min(delta, Integer.MAX_VALUE));
+            return reported + Math.min(delta, Integer.MAX_VALUE);
+        }
+        return reported;
+    }
+}
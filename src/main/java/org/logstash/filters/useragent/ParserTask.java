@@ -0,0 +1,81 @@
+/*
+ * Licensed to Elasticsearch under one or more contributor
+ * license agreements. See the NOTICE file distributed with
+ * this work for additional information regarding copyright
+ * ownership. Elasticsearch licenses this file to you under
+ * the Apache License, Version 2.0 (the "License"); you may
+ * not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing,
+ * software distributed under the License is distributed on an
+ * "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+ * KIND, either express or implied.  See the License for the
+ * specific language governing permissions and limitations
+ * under the License.
+ */
+package org.logstash.filters.useragent;
+
+import java.lang.ref.WeakReference;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ScheduledFuture;
+import java.util.concurrent.TimeUnit;
+import org.logstash.uaparser.CachingParser;
+
+/**
+ * A task run periodically on a parser.
+ *
+ * All the tasks share one daemon thread. A task only weakly references its parser, so that a
+ * filter which is discarded without being closed stops running its tasks once collected.
+ */
+abstract class ParserTask implements Runnable {
+
+    private static final ScheduledExecutorService SCHEDULER =
+        Executors.newSingleThreadScheduledExecutor(runnable -> {
+            final Thread thread = new Thread(runnable, "useragent-scheduler");
+            thread.setDaemon(true);
+            return thread;
+        });
+
+    private final WeakReference<CachingParser> parser;
+
+    private volatile ScheduledFuture<?> schedule;
+
+    ParserTask(final CachingParser parser) {
+        this.parser = new WeakReference<>(parser);
+    }
+
+    /**
+     * @param interval Seconds between runs, the first one being after an interval
+     */
+    final void schedule(final long interval) {
+        this.schedule = ParserTask.SCHEDULER.scheduleWithFixedDelay(
+            this, interval, interval, TimeUnit.SECONDS
+        );
+    }
+
+    final void stop() {
+        final ScheduledFuture<?> scheduled = this.schedule;
+        if (scheduled != null) {
+            scheduled.cancel(false);
+        }
+    }
+
+    @Override
+    public final void run() {
+        final CachingParser current = this.parser.get();
+        if (current == null) {
+            this.stop();
+        } else {
+            this.run(current);
+        }
+    }
+
+    /**
+     * @param parser Parser the task is run on
+     */
+    abstract void run(CachingParser parser);
+}
@@ -0,0 +1,44 @@
+/*
+ * Licensed to Elasticsearch under one or more contributor
+ * license agreements. See the NOTICE file distributed with
+ * this work for additional information regarding copyright
+ * ownership. Elasticsearch licenses this file to you under
+ * the Apache License, Version 2.0 (the "License"); you may
+ * not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing,
+ * software distributed under the License is distributed on an
+ * "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+ * KIND, either express or implied.  See the License for the
+ * specific language governing permissions and limitations
+ * under the License.
+ */
+package org.logstash.filters.useragent;
+
+/**
+ * The part of a plugin's namespaced metric that {@link ParserMetrics} reports to, implemented
+ * by the Ruby plugin over its own metric.
+ */
+public interface PluginMetric {
+
+    /**
+     * @param key Name of the sub-namespace
+     * @return The metric of the sub-namespace
+     */
+    PluginMetric namespace(String key);
+
+    /**
+     * @param key Name of the counter
+     * @param delta Amount to add to it
+     */
+    void increment(String key, int delta);
+
+    /**
+     * @param key Name of the gauge
+     * @param value Value to set it to
+     */
+    void gauge(String key, long value);
+}
@@ -0,0 +1,144 @@
+/*
+ * Licensed to Elasticsearch under one or more contributor
+ * license agreements. See the NOTICE file distributed with
+ * this work for additional information regarding copyright
+ * ownership. Elasticsearch licenses this file to you under
+ * the Apache License, Version 2.0 (the "License"); you may
+ * not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing,
+ * software distributed under the License is distributed on an
+ * "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+ * KIND, either express or implied.  See the License for the
+ * specific language governing permissions and limitations
+ * under the License.
+ */
+package org.logstash.filters.useragent;
+
+import java.io.ByteArrayInputStream;
+import java.io.IOException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.nio.file.attribute.BasicFileAttributes;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.TimeUnit;
+import org.apache.logging.log4j.LogManager;
+import org.apache.logging.log4j.Logger;
+import org.logstash.uaparser.CachingParser;
+import org.logstash.uaparser.RegexAnalyzer;
+
+/**
+ * Polls a regexes file and reloads the parser's rules whenever it's modified.
+ *
+ * The file is only checked on the scheduler thread; it's read, analyzed and loaded on a daemon
+ * thread of its own, which may take seconds, so that the other tasks keep running meanwhile.
+ */
+final class RegexesWatcher extends ParserTask {
+
+    private static final Logger LOGGER = LogManager.getLogger(RegexesWatcher.class);
+
+    private static final ExecutorService RELOADER =
+        Executors.newSingleThreadExecutor(runnable -> {
+            final Thread thread = new Thread(runnable, "useragent-regexes-reloader");
+            thread.setDaemon(true);
+            return thread;
+        });
+
+    private final Path path;
+
+    private final RegexAnalyzer analyzer;
+
+    private final boolean precompile;
+
+    private long lastModified;
+
+    private long size;
+
+    private Future<?> reload;
+
+    private RegexesWatcher(final CachingParser parser, final Path path,
+        final RegexAnalyzer analyzer, final boolean precompile) {
+        super(parser);
+        this.path = path;
+        this.analyzer = analyzer;
+        this.precompile = precompile;
+    }
+
+    /**
+     * @param parser Parser to reload
+     * @param path Regexes file the parser was loaded from
+     * @param interval Seconds between checks of the file
+     * @param analyzer Analyzer refusing files with dangerous rules, {@code null} to reload any
+     * @param precompile Whether to compile the reloaded rules in the background
+     * @return The started watcher
+     */
+    static RegexesWatcher start(final CachingParser parser, final String path, final long interval,
+        final RegexAnalyzer analyzer, final boolean precompile) {
+        final RegexesWatcher watcher =
+            new RegexesWatcher(parser, Paths.get(path), analyzer, precompile);
+        watcher.modified();
+        watcher.schedule(interval);
+        return watcher;
+    }
+
+    @Override
+    void run(final CachingParser parser) {
+        // a change made during a reload is picked up once it's done
+        if ((this.reload == null || this.reload.isDone()) && this.modified()) {
+            this.reload = RegexesWatcher.RELOADER.submit(() -> this.reload(parser));
+        }
+    }
+
+    /**
+     * Reads the file once, refuses it if the analyzer finds dangerous rules and else loads it.
+     * @param parser Parser to reload
+     */
+    private void reload(final CachingParser parser) {
+        try {
+            final long start = System.nanoTime();
+            final byte[] rules = Files.readAllBytes(this.path);
+            if (this.analyzer != null) {
+                this.analyzer.verify(new ByteArrayInputStream(rules), this.path.toString());
+            }
+            final int evicted = parser.reload(new ByteArrayInputStream(rules));
+            RegexesWatcher.LOGGER.info(
+                "Reloaded user agent regexes from {} in {}ms, evicted {} cached entries",
+                this.path, TimeUnit.NANOSECONDS.toMillis(System.nanoTime() - start), evicted
+            );
+            if (this.precompile) {
+                parser.compileInBackground();
+            }
+        } catch (final Exception ex) {
+            // the file is only read again once modified again, keeping the current rules
+            RegexesWatcher.LOGGER.error(
+                "Failed to reload user agent regexes from {}, keeping the current ones",
+                this.path, ex
+            );
+        }
+    }
+
+    /**
+     * Records the modification time and size of the file.
+     * @return Whether either changed since last recorded
+     */
+    private boolean modified() {
+        final BasicFileAttributes attributes;
+        try {
+            attributes = Files.readAttributes(this.path, BasicFileAttributes.class);
+        } catch (final IOException ex) {
+            RegexesWatcher.LOGGER.warn("Can't check user agent regexes {}", this.path, ex);
+            return false;
+        }
+        final long modified = attributes.lastModifiedTime().toMillis();
+        final boolean changed = modified != this.lastModified || attributes.size() != this.size;
+        this.lastModified = modified;
+        this.size = attributes.size();
+        return changed;
+    }
+}
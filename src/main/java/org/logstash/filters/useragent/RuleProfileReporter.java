@@ -0,0 +1,66 @@
+/*
+ * Licensed to Elasticsearch under one or more contributor
+ * license agreements. See the NOTICE file distributed with
+ * this work for additional information regarding copyright
+ * ownership. Elasticsearch licenses this file to you under
+ * the Apache License, Version 2.0 (the "License"); you may
+ * not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing,
+ * software distributed under the License is distributed on an
+ * "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+ * KIND, either express or implied.  See the License for the
+ * specific language governing permissions and limitations
+ * under the License.
+ */
+package org.logstash.filters.useragent;
+
+import java.util.List;
+import org.apache.logging.log4j.LogManager;
+import org.apache.logging.log4j.Logger;
+import org.logstash.uaparser.CachingParser;
+import org.logstash.uaparser.RuleProfile;
+
+/**
+ * Periodically logs the rules of a profiled parser which cost the most time so far.
+ */
+final class RuleProfileReporter extends ParserTask {
+
+    private static final Logger LOGGER = LogManager.getLogger(RuleProfileReporter.class);
+
+    /**
+     * Number of rules logged.
+     */
+    private static final int TOP = 20;
+
+    private RuleProfileReporter(final CachingParser parser) {
+        super(parser);
+    }
+
+    /**
+     * @param parser Profiled parser
+     * @param interval Seconds between logs
+     * @return The started reporter
+     */
+    static RuleProfileReporter start(final CachingParser parser, final long interval) {
+        final RuleProfileReporter reporter = new RuleProfileReporter(parser);
+        reporter.schedule(interval);
+        return reporter;
+    }
+
+    @Override
+    void run(final CachingParser parser) {
+        final List<RuleProfile> profiles = parser.ruleProfile();
+        if (profiles.isEmpty() || profiles.get(0).nanos() == 0L) {
+            return;
+        }
+        final StringBuilder report = new StringBuilder("Costliest user agent rules:");
+        for (final RuleProfile profile : profiles.subList(0, Math.min(TOP, profiles.size()))) {
+            report.append(System.lineSeparator()).append("  ").append(profile);
+        }
+        RuleProfileReporter.LOGGER.info(report);
+    }
+}
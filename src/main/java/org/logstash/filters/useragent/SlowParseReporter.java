@@ -0,0 +1,63 @@
+/*
+ * Licensed to Elasticsearch under one or more contributor
+ * license agreements. See the NOTICE file distributed with
+ * this work for additional information regarding copyright
+ * ownership. Elasticsearch licenses this file to you under
+ * the Apache License, Version 2.0 (the "License"); you may
+ * not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing,
+ * software distributed under the License is distributed on an
+ * "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+ * KIND, either express or implied.  See the License for the
+ * specific language governing permissions and limitations
+ * under the License.
+ */
+package org.logstash.filters.useragent;
+
+import java.util.List;
+import org.apache.logging.log4j.LogManager;
+import org.apache.logging.log4j.Logger;
+import org.logstash.uaparser.CachingParser;
+import org.logstash.uaparser.SlowParses;
+
+/**
+ * Periodically logs the slowest parses of a parser since the previous log.
+ */
+final class SlowParseReporter extends ParserTask {
+
+    private static final Logger LOGGER = LogManager.getLogger(SlowParseReporter.class);
+
+    private SlowParseReporter(final CachingParser parser) {
+        super(parser);
+    }
+
+    /**
+     * @param parser Parser whose slowest parses to log
+     * @param interval Seconds between logs
+     * @return The started reporter
+     */
+    static SlowParseReporter start(final CachingParser parser, final long interval) {
+        final SlowParseReporter reporter = new SlowParseReporter(parser);
+        // only the parses from now on are logged
+        parser.stats().slowest().drain();
+        reporter.schedule(interval);
+        return reporter;
+    }
+
+    @Override
+    void run(final CachingParser parser) {
+        final List<SlowParses.Sample> samples = parser.stats().slowest().drain();
+        if (samples.isEmpty()) {
+            return;
+        }
+        final StringBuilder report = new StringBuilder("Slowest user agents parsed:");
+        for (final SlowParses.Sample sample : samples) {
+            report.append(System.lineSeparator()).append("  ").append(sample);
+        }
+        SlowParseReporter.LOGGER.info(report);
+    }
+}
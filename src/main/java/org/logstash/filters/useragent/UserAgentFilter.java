@@ -0,0 +1,523 @@
+/*
+ * Licensed to Elasticsearch under one or more contributor
+ * license agreements. See the NOTICE file distributed with
+ * this work for additional information regarding copyright
+ * ownership. Elasticsearch licenses this file to you under
+ * the Apache License, Version 2.0 (the "License"); you may
+ * not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing,
+ * software distributed under the License is distributed on an
+ * "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+ * KIND, either express or implied.  See the License for the
+ * specific language governing permissions and limitations
+ * under the License.
+ */
+package org.logstash.filters.useragent;
+
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Paths;
+import java.util.List;
+import java.util.regex.Pattern;
+import org.apache.logging.log4j.LogManager;
+import org.apache.logging.log4j.Logger;
+import org.jcodings.Encoding;
+import org.jcodings.specific.USASCIIEncoding;
+import org.jcodings.specific.UTF8Encoding;
+import org.jruby.Ruby;
+import org.jruby.RubyArray;
+import org.jruby.RubyString;
+import org.jruby.runtime.builtin.IRubyObject;
+import org.jruby.util.ByteList;
+import org.logstash.uaparser.CachingParser;
+import org.logstash.uaparser.Client;
+import org.logstash.uaparser.HeavyHitters;
+import org.logstash.uaparser.OS;
+import org.logstash.uaparser.RegexAnalyzer;
+import org.logstash.uaparser.UserAgent;
+
+/**
+ * Java side of the useragent filter, which the Ruby plugin (lib/logstash/filters/useragent.rb)
+ * delegates the lookups and the field setting to.
+ *
+ * The event fields are resolved once, according to the ECS or legacy layout, the
+ * {@code target} and the {@code prefix}, and parsed values are set as Ruby strings built once
+ * per client served repeatedly, see {@link #setFields(IRubyObject, Client)}. The options are only
+ * declared by the Ruby plugin, and this class only depends on JRuby, not on logstash-core.
+ */
+public final class UserAgentFilter {
+
+    private static final Logger LOGGER = LogManager.getLogger(UserAgentFilter.class);
+
+    private static final Pattern SINGLE_FIELD = Pattern.compile("\\[[^\\[\\]]+\\]");
+
+    private static final String ECS_METADATA = "[@metadata][filter][user_agent]";
+
+    private final CachingParser parser;
+
+    /**
+     * Values of the clients served repeatedly, see {@link UserAgentFilter.Values}.
+     */
+    private final Object[] values;
+
+    private final UserAgentFilter.Field nameField;
+
+    private final UserAgentFilter.Field deviceNameField;
+
+    private final UserAgentFilter.Field versionField;
+
+    private final UserAgentFilter.Field majorField;
+
+    private final UserAgentFilter.Field minorField;
+
+    private final UserAgentFilter.Field patchField;
+
+    private final UserAgentFilter.Field osFullNameField;
+
+    private final UserAgentFilter.Field osNameField;
+
+    private final UserAgentFilter.Field legacyOsField;
+
+    private final UserAgentFilter.Field osVersionField;
+
+    private final UserAgentFilter.Field osMajorField;
+
+    private final UserAgentFilter.Field osMinorField;
+
+    private final UserAgentFilter.Field osPatchField;
+
+    private volatile boolean precompile;
+
+    private volatile RegexAnalyzer analyzer;
+
+    private volatile RegexesWatcher watcher;
+
+    private volatile RuleProfileReporter profileReporter;
+
+    private volatile SlowParseReporter slowParseReporter;
+
+    private volatile ParserMetrics metrics;
+
+    private volatile String heavyHittersPath;
+
+    /**
+     * @param parser Parser shared by all the workers
+     * @param target The field to assign user agent data into, {@code null} for the default
+     * @param prefix A string to prepend to the field names, ignored in ECS mode
+     * @param ecsCompatibility Whether to use the ECS layout
+     */
+    public UserAgentFilter(final CachingParser parser, final String target, final String prefix,
+        final boolean ecsCompatibility) {
+        this.parser = parser;
+        this.values = new Object[UserAgentFilter.slots(parser.capacity())];
+
+        // make target in the format [field name] if defined, i.e. surrounded by brackets
+        String base = target != null ? target : (ecsCompatibility ? "[user_agent]" : "");
+        if (!base.isEmpty() && !SINGLE_FIELD.matcher(base).matches()) {
+            base = '[' + base + ']';
+        }
+        final String pre = prefix == null ? "" : prefix;
+
+        // NOTE: unfortunately we can not reliably provide `user_agent.original` since the patterns do not
+        // reliably give back the matched group and they support the UA string prefixed and/or suffixed
+        if (ecsCompatibility) {
+            this.nameField = field(base + "[name]");
+            this.deviceNameField = field(base + "[device][name]");
+            this.versionField = field(base + "[version]");
+            this.majorField = field(ECS_METADATA + "[version][major]");
+            this.minorField = field(ECS_METADATA + "[version][minor]");
+            this.patchField = field(ECS_METADATA + "[version][patch]");
+            this.osFullNameField = field(base + "[os][full]");
+            this.osNameField = field(base + "[os][name]");
+            this.legacyOsField = null;
+            this.osVersionField = field(base + "[os][version]");
+            this.osMajorField = field(ECS_METADATA + "[os][version][major]");
+            this.osMinorField = field(ECS_METADATA + "[os][version][minor]");
+            this.osPatchField = field(ECS_METADATA + "[os][version][patch]");
+        } else {
+            this.nameField = field(base + '[' + pre + "name]");
+            this.deviceNameField = field(base + '[' + pre + "device]");
+            this.versionField = field(base + '[' + pre + "version]");
+            this.majorField = field(base + '[' + pre + "major]");
+            this.minorField = field(base + '[' + pre + "minor]");
+            this.patchField = field(base + '[' + pre + "patch]");
+            // did not exist in legacy prior to ECS-ification
+            this.osFullNameField = field(base + '[' + pre + "os_full]");
+            this.osNameField = field(base + '[' + pre + "os_name]");
+            // same as [os_name] in legacy mode
+            this.legacyOsField = field(base + '[' + pre + "os]");
+            this.osVersionField = field(base + '[' + pre + "os_version]");
+            this.osMajorField = field(base + '[' + pre + "os_major]");
+            this.osMinorField = field(base + '[' + pre + "os_minor]");
+            this.osPatchField = field(base + '[' + pre + "os_patch]");
+        }
+    }
+
+    /**
+     * Parses a user agent string of the Ruby plugin, looking it up in the cache straight from
+     * its bytes.
+     * @param useragent User agent string
+     * @return Parse result
+     */
+    public Client lookup(final RubyString useragent) {
+        this.report();
+        if (!isUtf8(useragent)) {
+            return this.parser.parse(useragent.asJavaString());
+        }
+        final ByteList bytes = useragent.getByteList();
+        return this.parser.parse(bytes.unsafeBytes(), bytes.begin(), bytes.realSize());
+    }
+
+    /**
+     * Batch variant of {@link #lookup(RubyString)}.
+     * @param useragents User agent strings or {@code nil}
+     * @return Parse results in the order of {@code useragents}, {@code null} for {@code nil}
+     */
+    public List<Client> lookupAll(final RubyArray<?> useragents) {
+        this.report();
+        final int size = useragents.size();
+        final byte[][] bytes = new byte[size][];
+        final int[] offsets = new int[size];
+        final int[] lengths = new int[size];
+        for (int i = 0; i < size; ++i) {
+            final IRubyObject useragent = useragents.eltInternal(i);
+            if (useragent.isNil()) {
+                continue;
+            }
+            if (!(useragent instanceof RubyString)) {
+                throw new IllegalArgumentException(
+                    "Expected a user agent string but got " + useragent.getMetaClass()
+                );
+            }
+            final RubyString string = (RubyString) useragent;
+            final ByteList value = isUtf8(string) ? string.getByteList()
+                : new ByteList(string.asJavaString().getBytes(StandardCharsets.UTF_8), false);
+            bytes[i] = value.unsafeBytes();
+            offsets[i] = value.begin();
+            lengths[i] = value.realSize();
+        }
+        return this.parser.parseAll(bytes, offsets, lengths);
+    }
+
+    /**
+     * Reports the cache and parse statistics to the given metrics from now on, see
+     * {@link ParserMetrics}.
+     * @param metric The plugin's metrics
+     */
+    public void metrics(final PluginMetric metric) {
+        this.metrics = new ParserMetrics(this.parser, metric);
+    }
+
+    /**
+     * Compiles all the rules in the background, see {@link CachingParser#compileInBackground()},
+     * and the rules reloaded by the files watched from now on.
+     * @param precompile Whether to compile the rules ahead of parsing
+     */
+    public void precompileRegexes(final boolean precompile) {
+        this.precompile = precompile;
+        if (precompile) {
+            this.parser.compileInBackground();
+        }
+    }
+
+    /**
+     * Keeps the current rules when the regexes file is modified to have dangerous ones, see
+     * {@link RegexAnalyzer}. Applies to the files watched from now on.
+     * @param reject Whether to analyze modified regexes files before reloading them
+     */
+    public void rejectDangerousRegexes(final boolean reject) {
+        this.analyzer = reject ? new RegexAnalyzer(this.parser.limits()) : null;
+    }
+
+    /**
+     * Reloads the parser's rules whenever the regexes file is modified.
+     * @param path Regexes file the parser was loaded from
+     * @param interval Seconds between checks of the file, no checks if not positive
+     */
+    public void watchRegexes(final String path, final long interval) {
+        if (interval > 0L) {
+            this.stopWatching();
+            this.watcher = RegexesWatcher.start(
+                this.parser, path, interval, this.analyzer, this.precompile
+            );
+        }
+    }
+
+    /**
+     * Profiles the parser's rules, logging the costliest ones periodically.
+     * @param interval Seconds between logs, the rules aren't profiled if not positive
+     */
+    public void profileRules(final long interval) {
+        if (interval > 0L) {
+            this.stopProfiling();
+            this.parser.profileRules(true);
+            this.profileReporter = RuleProfileReporter.start(this.parser, interval);
+        }
+    }
+
+    /**
+     * Logs the slowest parses periodically, see {@link org.logstash.uaparser.SlowParses}.
+     * @param interval Seconds between logs, nothing is logged if not positive
+     */
+    public void logSlowParses(final long interval) {
+        if (interval > 0L) {
+            this.stopLoggingSlowParses();
+            this.slowParseReporter = SlowParseReporter.start(this.parser, interval);
+        }
+    }
+
+    /**
+     * Tracks the most looked up user agents, see {@link HeavyHitters}, warming the cache with
+     * those exported by a previous run. They're exported again by {@link #close()}.
+     * @param size Number of user agents tracked, none if not positive
+     * @param path File the user agents are read from if it exists and exported to, {@code null}
+     * to only track them
+     */
+    public void trackHeavyHitters(final long size, final String path) {
+        if (size <= 0L) {
+            return;
+        }
+        if (path != null && Files.isRegularFile(Paths.get(path))) {
+            try {
+                final int warmed = this.parser.warm(HeavyHitters.read(path));
+                LOGGER.info("Warmed user agent cache with {} user agents from {}", warmed, path);
+            } catch (final IOException | IllegalArgumentException ex) {
+                LOGGER.warn("Failed to warm user agent cache from {}", path, ex);
+            }
+        }
+        this.parser.trackHeavyHitters((int) Math.min(size, Integer.MAX_VALUE));
+        this.heavyHittersPath = path;
+    }
+
+    /**
+     * Exports the most looked up user agents to the file given to
+     * {@link #trackHeavyHitters(long, String)}, if any.
+     * @throws IOException On failure to write the file
+     */
+    public void exportHeavyHitters() throws IOException {
+        final String path = this.heavyHittersPath;
+        final HeavyHitters tracked = this.parser.heavyHitters();
+        if (path != null && tracked != null) {
+            tracked.export(path);
+        }
+    }
+
+    /**
+     * Stops watching the regexes file, profiling the rules and logging the slowest parses, and
+     * exports the most looked up user agents.
+     */
+    public void close() {
+        this.stopWatching();
+        this.stopProfiling();
+        this.stopLoggingSlowParses();
+        try {
+            this.exportHeavyHitters();
+        } catch (final IOException ex) {
+            LOGGER.warn("Failed to export the most looked up user agents to {}",
+                this.heavyHittersPath, ex);
+        }
+    }
+
+    private void stopWatching() {
+        final RegexesWatcher current = this.watcher;
+        if (current != null) {
+            current.stop();
+            this.watcher = null;
+        }
+    }
+
+    private void stopLoggingSlowParses() {
+        final SlowParseReporter current = this.slowParseReporter;
+        if (current != null) {
+            current.stop();
+            this.slowParseReporter = null;
+        }
+    }
+
+    private void stopProfiling() {
+        final RuleProfileReporter current = this.profileReporter;
+        if (current != null) {
+            current.stop();
+            this.parser.profileRules(false);
+            this.profileReporter = null;
+        }
+    }
+
+    /**
+     * Sets the parsed fields on an event of the Ruby plugin.
+     * @param event Event to enrich
+     * @param client Parse result
+     */
+    public void setFields(final IRubyObject event, final Client client) {
+        final UserAgentFilter.Values values = this.values(event.getRuntime(), client);
+        this.nameField.set(event, values.name);
+        this.deviceNameField.set(event, values.device);
+        this.majorField.set(event, values.major);
+        this.minorField.set(event, values.minor);
+        this.patchField.set(event, values.patch);
+        this.versionField.set(event, values.version);
+
+        this.osMajorField.set(event, values.osMajor);
+        this.osMinorField.set(event, values.osMinor);
+        this.osPatchField.set(event, values.osPatch);
+        this.osVersionField.set(event, values.osVersion);
+        this.osNameField.set(event, values.osName);
+        if (this.legacyOsField != null) {
+            this.legacyOsField.set(event, values.osName);
+        }
+        this.osFullNameField.set(event, values.osFull);
+    }
+
+    /**
+     * @return The values of the client, kept in its slot once it's served a second time in a
+     * row of that slot
+     */
+    private UserAgentFilter.Values values(final Ruby runtime, final Client client) {
+        final int slot = System.identityHashCode(client) & (this.values.length - 1);
+        final Object kept = this.values[slot];
+        if (kept instanceof UserAgentFilter.Values
+            && ((UserAgentFilter.Values) kept).client == client) {
+            return (UserAgentFilter.Values) kept;
+        }
+        final UserAgentFilter.Values values = new UserAgentFilter.Values(runtime, client);
+        // most clients are never served again, only mark them as seen the first time
+        this.values[slot] = kept == client ? values : client;
+        return values;
+    }
+
+    /**
+     * @return Number of slots for the values of a cache of the given size, the smallest power
+     * of two at least that size
+     */
+    private static int slots(final int cacheSize) {
+        return Integer.highestOneBit(Math.min(Math.max(cacheSize, 1), 1 << 29) * 2 - 1);
+    }
+
+    private static boolean isUtf8(final RubyString string) {
+        final Encoding encoding = string.getEncoding();
+        return encoding == UTF8Encoding.INSTANCE || encoding == USASCIIEncoding.INSTANCE;
+    }
+
+    private void report() {
+        final ParserMetrics current = this.metrics;
+        if (current != null) {
+            current.report();
+        }
+    }
+
+    private static UserAgentFilter.Field field(final String name) {
+        return new UserAgentFilter.Field(name);
+    }
+
+    /**
+     * The field values of a {@link Client}, as frozen UTF-8 Ruby strings built once and then
+     * reused while the client is served.
+     *
+     * They're kept by the filter rather than with the cached clients, in a table of slots
+     * indexed by client identity, at least as many as the cache holds: a slot holds either the
+     * values of a client or, to only keep values for clients served more than once, a client
+     * served once. Another client taking the slot replaces them. Reads and writes of the slots
+     * are racy, the values being immutable, at worst a worker builds values it could have
+     * reused.
+     */
+    private static final class Values {
+
+        private final Client client;
+
+        private final RubyString name;
+
+        private final RubyString device;
+
+        private final RubyString major;
+
+        private final RubyString minor;
+
+        private final RubyString patch;
+
+        private final RubyString version;
+
+        private final RubyString osMajor;
+
+        private final RubyString osMinor;
+
+        private final RubyString osPatch;
+
+        private final RubyString osVersion;
+
+        private final RubyString osName;
+
+        private final RubyString osFull;
+
+        Values(final Ruby runtime, final Client client) {
+            this.client = client;
+            final UserAgent ua = client.userAgent();
+            this.name = ua == null ? null : string(runtime, ua.family());
+            this.major = ua == null ? null : string(runtime, ua.major());
+            this.minor = ua == null ? null : string(runtime, ua.minor());
+            this.patch = ua == null ? null : string(runtime, ua.patch());
+            this.version = string(runtime, client.version());
+            this.device = string(runtime, client.device());
+            // os.major(), os.minor(), ... are all strings, e.g. 'Vista' or '10'
+            final OS os = client.os();
+            this.osMajor = os == null ? null : string(runtime, os.major());
+            this.osMinor = os == null ? null : string(runtime, os.minor());
+            this.osPatch = os == null ? null : string(runtime, os.patch());
+            this.osName = os == null ? null : string(runtime, os.family());
+            this.osVersion = string(runtime, client.osVersion());
+            this.osFull = string(runtime, client.osFull());
+        }
+
+        private static RubyString string(final Ruby runtime, final String value) {
+            if (value == null) {
+                return null;
+            }
+            final RubyString string = RubyString.newUnicodeString(runtime, value);
+            string.setFrozen(true);
+            return string;
+        }
+    }
+
+    /**
+     * An event field, with its name as a frozen Ruby string built once.
+     */
+    private static final class Field {
+
+        private final String name;
+
+        private volatile RubyString key;
+
+        Field(final String name) {
+            this.name = name;
+        }
+
+        /**
+         * Sets a copy of the value, sharing its bytes until either of them is modified, so that
+         * later filters modifying the event can not corrupt the cached value.
+         */
+        void set(final IRubyObject event, final RubyString value) {
+            if (value == null) {
+                return;
+            }
+            final Ruby runtime = event.getRuntime();
+            event.callMethod(
+                runtime.getCurrentContext(), "set",
+                new IRubyObject[] {this.key(runtime), value.strDup(runtime)}
+            );
+        }
+
+        private RubyString key(final Ruby runtime) {
+            RubyString built = this.key;
+            if (built == null) {
+                built = RubyString.newUnicodeString(runtime, this.name);
+                built.setFrozen(true);
+                this.key = built;
+            }
+            return built;
+        }
+    }
+}
@@ -0,0 +1,417 @@
+/*
+ * Licensed to Elasticsearch under one or more contributor
+ * license agreements. See the NOTICE file distributed with
+ * this work for additional information regarding copyright
+ * ownership. Elasticsearch licenses this file to you under
+ * the Apache License, Version 2.0 (the "License"); you may
+ * not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing,
+ * software distributed under the License is distributed on an
+ * "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+ * KIND, either express or implied.  See the License for the
+ * specific language governing permissions and limitations
+ * under the License.
+ */
+package org.logstash.uaparser;
+
+import java.nio.charset.StandardCharsets;
+import java.util.Arrays;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+
+/**
+ * Key of the {@link CachingParser} cache.
+ *
+ * Keys are compared by content, regardless of how they are stored: a {@link StringKey} wrapping
+ * the incoming agent string is used to probe the cache, while the cache itself retains the
+ * compact {@link PackedKey} form produced by a {@link Packer}. The hash code is the one of
+ * the equivalent {@link String}.
+ *
+ * UTF-8 encoded agent strings can probe the cache through a {@link BytesKey} viewing their bytes,
+ * without being decoded first, as long as they are plain ASCII.
+ */
+abstract class CacheKey implements CharSequence {
+
+    private final int hash;
+
+    CacheKey(final int hash) {
+        this.hash = hash;
+    }
+
+    static CacheKey of(final String agentString) {
+        return new CacheKey.StringKey(agentString);
+    }
+
+    /**
+     * @param bytes UTF-8 encoded agent string
+     * @param offset Offset of the agent string in {@code bytes}
+     * @param length Length of the agent string in bytes
+     * @return A {@link BytesKey} viewing the bytes if they're all ASCII, a {@link StringKey}
+     * holding the decoded agent string otherwise
+     */
+    static CacheKey of(final byte[] bytes, final int offset, final int length) {
+        int hash = 0;
+        for (int i = offset, end = offset + length; i < end; ++i) {
+            final byte b = bytes[i];
+            if (b < 0) {
+                return new CacheKey.StringKey(new String(bytes, offset, length, StandardCharsets.UTF_8));
+            }
+            hash = 31 * hash + b;
+        }
+        return new CacheKey.BytesKey(hash, bytes, offset, length);
+    }
+
+    @Override
+    public final int hashCode() {
+        return this.hash;
+    }
+
+    @Override
+    public final boolean equals(final Object other) {
+        if (other == this) return true;
+        if (!(other instanceof CacheKey)) return false;
+        final CacheKey o = (CacheKey) other;
+        return this.hash == o.hash && this.length() == o.length() && this.contentEquals(o);
+    }
+
+    /**
+     * Compares the content of two keys of the same length.
+     */
+    boolean contentEquals(final CacheKey other) {
+        if (other instanceof CacheKey.StringKey) {
+            return other.contentEquals(this);
+        }
+        for (int i = 0, n = this.length(); i < n; ++i) {
+            if (this.charAt(i) != other.charAt(i)) return false;
+        }
+        return true;
+    }
+
+    @Override
+    public CharSequence subSequence(final int start, final int end) {
+        return this.toString().substring(start, end);
+    }
+
+    /**
+     * @return This key, or a copy of it holding its own content if it views bytes belonging to
+     * the caller
+     */
+    CacheKey retained() {
+        return this;
+    }
+
+    /**
+     * Wraps a plain {@link String}, used for lookups and for agent strings that do not fit in
+     * Latin-1.
+     */
+    static final class StringKey extends CacheKey {
+
+        private final String value;
+
+        StringKey(final String value) {
+            super(value.hashCode());
+            this.value = value;
+        }
+
+        @Override
+        boolean contentEquals(final CacheKey other) {
+            if (other instanceof CacheKey.StringKey) {
+                return this.value.equals(((CacheKey.StringKey) other).value);
+            }
+            if (other instanceof CacheKey.PackedKey) {
+                return ((CacheKey.PackedKey) other).contentEquals(this.value);
+            }
+            return super.contentEquals(other);
+        }
+
+        @Override
+        public int length() {
+            return this.value.length();
+        }
+
+        @Override
+        public char charAt(final int index) {
+            return this.value.charAt(index);
+        }
+
+        @Override
+        public String toString() {
+            return this.value;
+        }
+    }
+
+    /**
+     * View over an ASCII byte range, only used for lookups since the bytes belong to the caller.
+     */
+    static final class BytesKey extends CacheKey {
+
+        private final byte[] bytes;
+
+        private final int offset;
+
+        private final int length;
+
+        BytesKey(final int hash, final byte[] bytes, final int offset, final int length) {
+            super(hash);
+            this.bytes = bytes;
+            this.offset = offset;
+            this.length = length;
+        }
+
+        @Override
+        boolean contentEquals(final CacheKey other) {
+            if (other instanceof CacheKey.PackedKey) {
+                return ((CacheKey.PackedKey) other).contentEquals(this.bytes, this.offset);
+            }
+            return super.contentEquals(other);
+        }
+
+        @Override
+        public int length() {
+            return this.length;
+        }
+
+        @Override
+        public char charAt(final int index) {
+            return (char) this.bytes[this.offset + index];
+        }
+
+        @Override
+        CacheKey retained() {
+            return new CacheKey.StringKey(this.toString());
+        }
+
+        @Override
+        public CharSequence subSequence(final int start, final int end) {
+            if (start < 0 || end > this.length || start > end) {
+                throw new IndexOutOfBoundsException(
+                    "begin " + start + ", end " + end + ", length " + this.length
+                );
+            }
+            return new String(this.bytes, this.offset + start, end - start, StandardCharsets.ISO_8859_1);
+        }
+
+        @Override
+        public String toString() {
+            return new String(this.bytes, this.offset, this.length, StandardCharsets.ISO_8859_1);
+        }
+    }
+
+    /**
+     * Latin-1 encoded key split into a prefix shared with other keys and its own suffix.
+     */
+    static final class PackedKey extends CacheKey {
+
+        private static final byte[] NO_BYTES = new byte[0];
+
+        private final byte[] prefix;
+
+        private final byte[] suffix;
+
+        PackedKey(final int hash, final byte[] prefix, final byte[] suffix) {
+            super(hash);
+            this.prefix = prefix;
+            this.suffix = suffix;
+        }
+
+        boolean sharesPrefixWith(final CacheKey.PackedKey other) {
+            return this.prefix.length > 0 && this.prefix == other.prefix;
+        }
+
+        @Override
+        boolean contentEquals(final CacheKey other) {
+            if (other instanceof CacheKey.PackedKey) {
+                final CacheKey.PackedKey o = (CacheKey.PackedKey) other;
+                if (this.prefix == o.prefix) {
+                    return Arrays.equals(this.suffix, o.suffix);
+                }
+            }
+            return super.contentEquals(other);
+        }
+
+        boolean contentEquals(final String value) {
+            final byte[] prefix = this.prefix;
+            final int split = prefix.length;
+            for (int i = 0; i < split; ++i) {
+                if ((char) (prefix[i] & 0xFF) != value.charAt(i)) return false;
+            }
+            final byte[] suffix = this.suffix;
+            for (int i = 0; i < suffix.length; ++i) {
+                if ((char) (suffix[i] & 0xFF) != value.charAt(split + i)) return false;
+            }
+            return true;
+        }
+
+        boolean contentEquals(final byte[] bytes, final int offset) {
+            final byte[] prefix = this.prefix;
+            final int split = prefix.length;
+            for (int i = 0; i < split; ++i) {
+                if (prefix[i] != bytes[offset + i]) return false;
+            }
+            final byte[] suffix = this.suffix;
+            for (int i = 0, start = offset + split; i < suffix.length; ++i) {
+                if (suffix[i] != bytes[start + i]) return false;
+            }
+            return true;
+        }
+
+        @Override
+        public int length() {
+            return this.prefix.length + this.suffix.length;
+        }
+
+        @Override
+        public char charAt(final int index) {
+            final int split = this.prefix.length;
+            return (char) ((index < split ? this.prefix[index] : this.suffix[index - split]) & 0xFF);
+        }
+
+        /**
+         * Decodes only the requested range, so that reading a field of a cached client doesn't
+         * decode the whole agent string.
+         */
+        @Override
+        public CharSequence subSequence(final int start, final int end) {
+            final int split = this.prefix.length;
+            if (start < 0 || end > split + this.suffix.length || start > end) {
+                throw new IndexOutOfBoundsException(
+                    "begin " + start + ", end " + end + ", length " + this.length()
+                );
+            }
+            if (end <= split) {
+                return new String(this.prefix, start, end - start, StandardCharsets.ISO_8859_1);
+            }
+            if (start >= split) {
+                return new String(
+                    this.suffix, start - split, end - start, StandardCharsets.ISO_8859_1
+                );
+            }
+            final byte[] bytes = new byte[end - start];
+            System.arraycopy(this.prefix, start, bytes, 0, split - start);
+            System.arraycopy(this.suffix, 0, bytes, split - start, end - split);
+            return new String(bytes, StandardCharsets.ISO_8859_1);
+        }
+
+        @Override
+        public String toString() {
+            return this.subSequence(0, this.length()).toString();
+        }
+    }
+
+    /**
+     * Turns agent strings into the compact form retained by the cache.
+     *
+     * Agent strings mostly differ in their trailing product tokens while the leading platform
+     * comment and rendering engine are shared among many of them, e.g.
+     * {@code "Mozilla/5.0 (Windows NT 10.0; Win64; x64) AppleWebKit/537.36 (KHTML, like Gecko) "}.
+     * Everything up to the last {@code ") "} is therefore interned in a bounded dictionary and
+     * only the remainder is stored per key.
+     *
+     * Once the dictionary is full, interning a prefix evicts one with the second-chance (clock)
+     * policy: a clock hand sweeps the prefixes in insertion order, sparing those reused since it
+     * last passed them, so that the prefixes of current traffic stay while those of past traffic
+     * aren't pinned forever. Keys packed before keep their prefix.
+     */
+    static final class Packer {
+
+        private static final int MIN_PREFIX_LENGTH = 16;
+
+        private final ConcurrentMap<CacheKey, CacheKey.Packer.Interned> prefixes;
+
+        /**
+         * Interned prefixes in the order the clock hand sweeps them, guarded by this packer.
+         */
+        private final CacheKey.Packer.Interned[] clock;
+
+        private int hand;
+
+        Packer(final int maxPrefixes) {
+            this.prefixes = new ConcurrentHashMap<>();
+            this.clock = new CacheKey.Packer.Interned[maxPrefixes];
+        }
+
+        CacheKey pack(final String agentString) {
+            final int length = agentString.length();
+            for (int i = 0; i < length; ++i) {
+                if (agentString.charAt(i) > 0xFF) {
+                    return new CacheKey.StringKey(agentString);
+                }
+            }
+            final int split = agentString.lastIndexOf(") ") + 2;
+            final byte[] prefix = split >= MIN_PREFIX_LENGTH ?
+                this.prefix(agentString.substring(0, split)) : PackedKey.NO_BYTES;
+            final byte[] suffix = new byte[length - prefix.length];
+            for (int i = 0; i < suffix.length; ++i) {
+                suffix[i] = (byte) agentString.charAt(prefix.length + i);
+            }
+            return new CacheKey.PackedKey(agentString.hashCode(), prefix, suffix);
+        }
+
+        int size() {
+            return this.prefixes.size();
+        }
+
+        /**
+         * Forgets the interned prefixes, keys packed before keep theirs.
+         */
+        synchronized void clear() {
+            this.prefixes.clear();
+            Arrays.fill(this.clock, null);
+            this.hand = 0;
+        }
+
+        private byte[] prefix(final String value) {
+            final CacheKey probe = CacheKey.of(value);
+            final CacheKey.Packer.Interned known = this.prefixes.get(probe);
+            if (known != null) {
+                if (!known.referenced) {
+                    known.referenced = true;
+                }
+                return known.key.suffix;
+            }
+            final byte[] bytes = new byte[value.length()];
+            for (int i = 0; i < bytes.length; ++i) {
+                bytes[i] = (byte) value.charAt(i);
+            }
+            synchronized (this) {
+                final CacheKey.Packer.Interned raced = this.prefixes.get(probe);
+                if (raced != null) {
+                    return raced.key.suffix;
+                }
+                CacheKey.Packer.Interned victim;
+                while ((victim = this.clock[this.hand]) != null && victim.referenced) {
+                    victim.referenced = false;
+                    this.hand = (this.hand + 1) % this.clock.length;
+                }
+                if (victim != null) {
+                    this.prefixes.remove(victim.key);
+                }
+                final CacheKey.Packer.Interned interned = new CacheKey.Packer.Interned(
+                    new CacheKey.PackedKey(value.hashCode(), PackedKey.NO_BYTES, bytes)
+                );
+                this.clock[this.hand] = interned;
+                this.hand = (this.hand + 1) % this.clock.length;
+                this.prefixes.put(interned.key, interned);
+                return bytes;
+            }
+        }
+
+        /**
+         * Prefix in the dictionary, with whether it was reused since the clock hand last passed.
+         */
+        private static final class Interned {
+
+            private final CacheKey.PackedKey key;
+
+            private volatile boolean referenced;
+
+            Interned(final CacheKey.PackedKey key) {
+                this.key = key;
+            }
+        }
+    }
+}
@@ -19,11 +19,23 @@ package org.logstash.uaparser;
 
 import java.io.ByteArrayInputStream;
 import java.io.IOException;
+import java.io.InputStream;
 import java.nio.charset.StandardCharsets;
 import java.nio.file.Files;
 import java.nio.file.Paths;
+import java.util.ArrayList;
+import java.util.Arrays;
 import java.util.Collections;
+import java.util.EnumSet;
+import java.util.HashMap;
+import java.util.LinkedHashSet;
+import java.util.List;
 import java.util.Map;
+import java.util.Set;
+import java.util.stream.Collectors;
+import java.util.stream.IntStream;
+import java.util.concurrent.atomic.LongAdder;
+import org.apache.commons.collections4.map.AbstractLinkedMap;
 import org.apache.commons.collections4.map.LRUMap;
 
 /**
@@ -35,23 +47,87 @@ import org.apache.commons.collections4.map.LRUMap;
  *
  * This class introduces a very simple LRU cache to reduce the number of times
  * the parsing is actually done.
+ *
+ * Cached agent strings are retained in the form of a {@link CacheKey.Packer}: their common
+ * leading part is shared among keys rather than copied into each entry.
+ *
+ * An instance may only parse some of the {@link Component}s. Its cache is its own, so clients
+ * parsed for different sets of components are never mixed.
+ *
+ * Cache misses and evictions are recorded as {@link ParseEvents}.
+ *
+ * Batches of agent strings are resolved with {@link #parseAll(List)}, looking up each distinct
+ * agent string once.
+ *
+ * The rules can be replaced while parsing with {@link #reload(InputStream)}, which keeps the
+ * cached clients that the changed rules can't affect.
+ *
+ * The most looked up agent strings can be tracked with {@link #trackHeavyHitters(int)}, and
+ * exported so that the next instance is warmed with them, see {@link #warm(List)}.
  * @author Niels Basjes
  */
 public final class CachingParser extends Parser {
 
-    private Parser parser;
+    /**
+     * Stale clients evicted per acquisition of the cache lock by {@link #reload(InputStream)}.
+     */
+    private static final int EVICTION_CHUNK = 1024;
+
+    /**
+     * Current rules, replaced under the cache lock so that clients parsed with replaced rules
+     * are never cached afterwards.
+     */
+    private volatile Parser parser;
+
+    private final Object reloadLock = new Object();
+
+    private final LongAdder hits = new LongAdder();
+
+    private final LongAdder misses = new LongAdder();
+
+    private final LongAdder evictions = new LongAdder();
+
+    private Map<CacheKey, Client> cacheClient;
+
+    private final CacheKey.Packer keys;
 
-    private Map<String, Client> cacheClient;
+    private final int cacheSize;
+
+    /**
+     * Components parsed by this instance, all its cached clients hold these only.
+     */
+    private final Set<Component> components;
+
+    /**
+     * Sketch of the most looked up agent strings, {@code null} unless tracked.
+     */
+    private volatile HeavyHitters heavyHitters;
 
     public CachingParser(final int cacheSize) {
-        this(new Parser(), cacheSize);
+        this(cacheSize, Component.all());
     }
 
     public CachingParser(String yamlPath, final int cacheSize) throws IOException {
-        this(
-            new Parser(new ByteArrayInputStream(Files.readAllBytes(Paths.get(yamlPath)))),
-            cacheSize
-        );
+        this(yamlPath, cacheSize, Component.all());
+    }
+
+    /**
+     * @param cacheSize Maximum number of cached clients
+     * @param components Components to parse, the others being left {@code null}
+     */
+    public CachingParser(final int cacheSize, final Set<Component> components) {
+        this(new Parser(), cacheSize, components);
+    }
+
+    /**
+     * @param yamlPath Path to the regexes.yaml to use, or to its binary form
+     * @param cacheSize Maximum number of cached clients
+     * @param components Components to parse, the others being left {@code null}
+     * @throws IOException On failure to read the regexes.yaml
+     */
+    public CachingParser(String yamlPath, final int cacheSize, final Set<Component> components)
+        throws IOException {
+        this(CachingParser.load(yamlPath), cacheSize, components);
     }
     
     CachingParser(String regexYaml) {
@@ -65,24 +141,413 @@ public final class CachingParser extends Parser {
     }
 
     private CachingParser(final Parser parser) {
-        this(parser, 100_000);
+        this(parser, 100_000, Component.all());
     }
 
-    private CachingParser(final Parser parser, final int cacheSize) {
+    private CachingParser(final Parser parser, final int cacheSize,
+        final Set<Component> components) {
+        super(parser);
+        if (components.isEmpty()) {
+            throw new IllegalArgumentException("At least one user agent component must be parsed");
+        }
         this.parser = parser;
-        this.cacheClient = Collections.synchronizedMap(new LRUMap<>(cacheSize));
+        this.components = EnumSet.copyOf(components);
+        this.cacheClient = Collections.synchronizedMap(
+            new CachingParser.Cache(cacheSize, this.evictions)
+        );
+        this.keys = new CacheKey.Packer(Math.max(cacheSize / 16, 64));
+        this.cacheSize = cacheSize;
+    }
+
+    /**
+     * Loads the rules of a regexes.yaml, or of its binary form, streaming them from the file.
+     */
+    private static Parser load(final String path) throws IOException {
+        try (InputStream input = Files.newInputStream(Paths.get(path))) {
+            return new Parser(input);
+        }
+    }
+
+    /**
+     * Replaces the rules, either as a regexes.yaml or in its binary form.
+     *
+     * The new rules are loaded without blocking parsing. They share the unchanged rules of the
+     * current ones and, when swapped in, only the cached clients whose results may differ with
+     * them are evicted, see {@link Client#isStale(int[])}.
+     *
+     * The cache is only locked to swap the rules in, taking a snapshot of its entries, then to
+     * evict the stale ones a chunk at a time, so that parsing isn't held up for the whole cache.
+     * Until evicted, stale clients may still be served.
+     * @param rules New rules
+     * @return Number of evicted clients
+     */
+    public int reload(final InputStream rules) {
+        final RuleSet ruleSet = RuleSet.load(rules);
+        synchronized (this.reloadLock) {
+            final Parser current = this.parser;
+            final int[] unchanged = current.unchanged(ruleSet);
+            final Parser reloaded = current.reload(ruleSet);
+            final CacheKey[] cached;
+            final Client[] clients;
+            synchronized (this.cacheClient) {
+                this.parser = reloaded;
+                this.keys.clear();
+                cached = new CacheKey[this.cacheClient.size()];
+                clients = new Client[cached.length];
+                int i = 0;
+                for (final Map.Entry<CacheKey, Client> entry : this.cacheClient.entrySet()) {
+                    cached[i] = entry.getKey();
+                    clients[i] = entry.getValue();
+                    ++i;
+                }
+            }
+            int stale = 0;
+            for (int i = 0; i < clients.length; ++i) {
+                if (clients[i].isStale(unchanged)) {
+                    cached[stale] = cached[i];
+                    clients[stale] = clients[i];
+                    ++stale;
+                }
+            }
+            int evicted = 0;
+            for (int start = 0; start < stale; start += CachingParser.EVICTION_CHUNK) {
+                final int end = Math.min(start + CachingParser.EVICTION_CHUNK, stale);
+                synchronized (this.cacheClient) {
+                    for (int i = start; i < end; ++i) {
+                        // the entry may have been evicted, or replaced by a fresh client
+                        if (this.cacheClient.get(cached[i]) == clients[i]) {
+                            this.cacheClient.remove(cached[i]);
+                            ++evicted;
+                        }
+                    }
+                }
+            }
+            return evicted;
+        }
+    }
+
+    /**
+     * Replaces the rules with those of a file, see {@link #reload(InputStream)}.
+     * @param yamlPath Path to the regexes.yaml to use, or to its binary form
+     * @return Number of evicted clients
+     * @throws IOException On failure to read the file
+     */
+    public int reload(final String yamlPath) throws IOException {
+        try (InputStream input = Files.newInputStream(Paths.get(yamlPath))) {
+            return this.reload(input);
+        }
+    }
+
+    /**
+     * @return Number of agent strings served from the cache
+     */
+    public long hits() {
+        return this.hits.sum();
+    }
+
+    /**
+     * @return Number of agent strings parsed for missing from the cache, each distinct agent
+     * string of a batch counting once
+     */
+    public long misses() {
+        return this.misses.sum();
+    }
+
+    /**
+     * @return Number of clients evicted to make room for new ones, not counting those evicted
+     * by {@link #reload(InputStream)}
+     */
+    public long evictions() {
+        return this.evictions.sum();
+    }
+
+    /**
+     * @return Maximum number of cached clients
+     */
+    public int capacity() {
+        return this.cacheSize;
+    }
+
+    /**
+     * @return Number of cached clients
+     */
+    public int size() {
+        return this.cacheClient.size();
+    }
+
+    /**
+     * Starts tracking the most looked up agent strings from now on, see {@link HeavyHitters}.
+     * @param capacity Number of agent strings tracked, tracking stops if not positive; anything
+     * tracked so far is discarded either way
+     */
+    public void trackHeavyHitters(final int capacity) {
+        this.trackHeavyHitters(capacity, HeavyHitters.SAMPLING);
+    }
+
+    /**
+     * @param capacity Number of agent strings tracked, see {@link #trackHeavyHitters(int)}
+     * @param sampling One in this many lookups is counted, 1 to count all of them
+     */
+    void trackHeavyHitters(final int capacity, final int sampling) {
+        this.heavyHitters = capacity > 0 ? new HeavyHitters(capacity, sampling) : null;
+    }
+
+    /**
+     * @return The most looked up agent strings, {@code null} unless tracked
+     */
+    public HeavyHitters heavyHitters() {
+        return this.heavyHitters;
+    }
+
+    /**
+     * Parses agent strings into the cache ahead of their lookups, e.g. those read from an
+     * exported {@link HeavyHitters}, without counting hits or misses.
+     *
+     * Only as many of the first distinct agent strings as the cache holds are considered. Those
+     * already cached are skipped, the others are parsed in parallel on the pool rules are loaded
+     * on, and cached in reverse order, so that the first ones are evicted last.
+     * @param agentStrings Agent strings, the most frequent first
+     * @return Number of agent strings added to the cache
+     */
+    public int warm(final List<String> agentStrings) {
+        final List<String> missing = new ArrayList<>();
+        synchronized (this.cacheClient) {
+            int considered = 0;
+            for (final String agentString : new LinkedHashSet<>(agentStrings)) {
+                if (agentString == null) {
+                    continue;
+                }
+                if (++considered > this.cacheSize) {
+                    break;
+                }
+                if (!this.cacheClient.containsKey(CacheKey.of(agentString))) {
+                    missing.add(agentString);
+                }
+            }
+        }
+        final CacheKey[] keys = new CacheKey[missing.size()];
+        final Client[] parsed = new Client[missing.size()];
+        final Parser rules = this.parser;
+        RulePool.forEach(
+            IntStream.range(0, keys.length).boxed().collect(Collectors.toList()), i -> {
+                final String agentString = missing.get(i);
+                keys[i] = this.keys.pack(agentString);
+                parsed[i] = rules.parse(agentString, keys[i], this.components);
+            }
+        );
+        synchronized (this.cacheClient) {
+            if (rules != this.parser) {
+                return 0;
+            }
+            for (int i = keys.length - 1; i >= 0; --i) {
+                this.cacheClient.put(keys[i], parsed[i]);
+            }
+        }
+        return keys.length;
+    }
+
+    @Override
+    public void compileAll() {
+        this.parser.compileAll();
+    }
+
+    @Override
+    public void profileRules(final boolean enabled) {
+        this.parser.profileRules(enabled);
+    }
+
+    @Override
+    public List<RuleProfile> ruleProfile() {
+        return this.parser.ruleProfile();
+    }
+
+    @Override
+    Client parse(final String agentString, final CharSequence source,
+        final Set<Component> components) {
+        return this.parser.parse(agentString, source, components);
+    }
+
+    @Override
+    Parser reload(final RuleSet rules) {
+        return this.parser.reload(rules);
+    }
+
+    @Override
+    int[] unchanged(final RuleSet rules) {
+        return this.parser.unchanged(rules);
+    }
+
+    @Override
+    public UserAgent parseUserAgent(final String agentString) {
+        return this.parser.parseUserAgent(agentString);
+    }
+
+    @Override
+    public String parseDevice(final String agentString) {
+        return this.parser.parseDevice(agentString);
+    }
+
+    @Override
+    public OS parseOS(final String agentString) {
+        return this.parser.parseOS(agentString);
     }
 
     public Client parse(final String agentString) {
         if (agentString == null) {
             return null;
         }
-        final Client client = this.cacheClient.get(agentString);
+        return this.parse(CacheKey.of(agentString));
+    }
+
+    /**
+     * Parses an UTF-8 encoded agent string.
+     *
+     * Cache hits for ASCII agent strings are served straight from the bytes, an agent
+     * {@link String} is only decoded to parse it on a miss.
+     * @param bytes Bytes holding the agent string
+     * @param offset Offset of the agent string in {@code bytes}
+     * @param length Length of the agent string in bytes
+     * @return Parsed data
+     */
+    public Client parse(final byte[] bytes, final int offset, final int length) {
+        return this.parse(CacheKey.of(bytes, offset, length));
+    }
+
+    /**
+     * Parses a batch of agent strings.
+     *
+     * Each distinct agent string is looked up once, all of them under a single acquisition of
+     * the cache lock. Misses are parsed on the calling thread, pipeline workers already parsing
+     * batches in parallel, and then added to the cache, again under a single acquisition of the
+     * lock.
+     * @param agentStrings Agent strings, {@code null} elements are allowed
+     * @return Parsed data in the order of {@code agentStrings}, {@code null} for {@code null}
+     * agent strings
+     */
+    public List<Client> parseAll(final List<String> agentStrings) {
+        final CacheKey[] probes = new CacheKey[agentStrings.size()];
+        for (int i = 0; i < probes.length; ++i) {
+            final String agentString = agentStrings.get(i);
+            probes[i] = agentString == null ? null : CacheKey.of(agentString);
+        }
+        return this.parseAll(probes);
+    }
+
+    /**
+     * Batch variant of {@link #parse(byte[], int, int)}, see {@link #parseAll(List)}.
+     * @param bytes Bytes holding each UTF-8 encoded agent string, {@code null} elements are
+     * allowed
+     * @param offsets Offset of each agent string in its bytes
+     * @param lengths Length of each agent string in bytes
+     * @return Parsed data in the order of {@code bytes}, {@code null} for {@code null} elements
+     */
+    public List<Client> parseAll(final byte[][] bytes, final int[] offsets, final int[] lengths) {
+        final CacheKey[] probes = new CacheKey[bytes.length];
+        for (int i = 0; i < probes.length; ++i) {
+            probes[i] = bytes[i] == null ? null : CacheKey.of(bytes[i], offsets[i], lengths[i]);
+        }
+        return this.parseAll(probes);
+    }
+
+    private Client parse(final CacheKey probe) {
+        final HeavyHitters tracked = this.heavyHitters;
+        final Client client = this.cacheClient.get(probe);
         if (client != null) {
+            this.hits.increment();
+            if (tracked != null) {
+                tracked.sample(probe, client);
+            }
             return client;
         }
-        final Client parsed = this.parser.parse(agentString);
-        this.cacheClient.put(agentString, parsed);
+        this.misses.increment();
+        final String agentString = probe.toString();
+        final CacheKey key = this.keys.pack(agentString);
+        final Parser rules = this.parser;
+        final Client parsed = rules.parse(agentString, key, this.components);
+        synchronized (this.cacheClient) {
+            if (rules == this.parser) {
+                this.cacheClient.put(key, parsed);
+            }
+        }
+        if (tracked != null) {
+            tracked.sample(key, parsed);
+        }
         return parsed;
     }
+
+    private List<Client> parseAll(final CacheKey[] probes) {
+        final Map<CacheKey, Client> distinct = new HashMap<>();
+        int lookups = 0;
+        for (final CacheKey probe : probes) {
+            if (probe != null) {
+                distinct.put(probe, null);
+                ++lookups;
+            }
+        }
+        final List<CacheKey> misses = new ArrayList<>();
+        synchronized (this.cacheClient) {
+            for (final Map.Entry<CacheKey, Client> entry : distinct.entrySet()) {
+                final Client client = this.cacheClient.get(entry.getKey());
+                if (client == null) {
+                    misses.add(entry.getKey());
+                } else {
+                    entry.setValue(client);
+                }
+            }
+        }
+        this.hits.add(lookups - misses.size());
+        this.misses.add(misses.size());
+        if (!misses.isEmpty()) {
+            final CacheKey[] keys = new CacheKey[misses.size()];
+            final Client[] parsed = new Client[misses.size()];
+            final Parser rules = this.parser;
+            for (int i = 0; i < keys.length; ++i) {
+                final String agentString = misses.get(i).toString();
+                keys[i] = this.keys.pack(agentString);
+                parsed[i] = rules.parse(agentString, keys[i], this.components);
+            }
+            synchronized (this.cacheClient) {
+                if (rules == this.parser) {
+                    for (int i = 0; i < keys.length; ++i) {
+                        this.cacheClient.put(keys[i], parsed[i]);
+                    }
+                }
+            }
+            for (int i = 0; i < keys.length; ++i) {
+                distinct.put(misses.get(i), parsed[i]);
+            }
+        }
+        final Client[] clients = new Client[probes.length];
+        for (int i = 0; i < clients.length; ++i) {
+            clients[i] = probes[i] == null ? null : distinct.get(probes[i]);
+        }
+        final List<Client> results = Arrays.asList(clients);
+        final HeavyHitters tracked = this.heavyHitters;
+        if (tracked != null) {
+            tracked.sample(probes, results);
+        }
+        return results;
+    }
+
+    /**
+     * LRU map counting its evictions.
+     */
+    private static final class Cache extends LRUMap<CacheKey, Client> {
+
+        private static final long serialVersionUID = 1L;
+
+        private final transient LongAdder evictions;
+
+        Cache(final int maxSize, final LongAdder evictions) {
+            super(maxSize);
+            this.evictions = evictions;
+        }
+
+        @Override
+        protected boolean removeLRU(final AbstractLinkedMap.LinkEntry<CacheKey, Client> entry) {
+            this.evictions.increment();
+            ParseEvents.evicted(entry.getKey(), this.size());
+            return true;
+        }
+    }
 }
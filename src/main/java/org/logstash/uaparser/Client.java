@@ -18,22 +18,112 @@
 
 package org.logstash.uaparser;
 
+import java.util.Objects;
+
 /**
  * Collection of parsed data for a given user agent string consisting of UserAgent, OS, Device
+ *
+ * The version strings derived from the parsed data only depend on the agent string, they are
+ * built on first access and kept, so that cached clients are served without any string work
+ * while clients whose versions are never read don't build them.
  * @author Steve Jiang (@sjiang) <gh at iamsteve com>
  */
 public final class Client {
 
-    public final UserAgent userAgent;
+    private final UserAgent userAgent;
+
+    private final OS os;
 
-    public final OS os;
+    private final Device device;
 
-    public final String device;
+    /**
+     * Agent string the user agent version is completed from, or {@code null}.
+     */
+    private final CharSequence source;
+
+    /**
+     * Version strings, {@code null} until first read.
+     */
+    private volatile Client.Versions versions;
 
     public Client(final UserAgent userAgent, final OS os, final String device) {
+        this(userAgent, os, new Device(new Rule(Rule.NO_INDEX, device), null, null), null);
+    }
+
+    /**
+     * @param userAgent Parsed user agent
+     * @param os Parsed OS
+     * @param device Parsed device
+     * @param source Parsed agent string, used to complete the user agent version, or
+     * {@code null}
+     */
+    Client(final UserAgent userAgent, final OS os, final Device device,
+        final CharSequence source) {
         this.userAgent = userAgent;
         this.os = os;
         this.device = device;
+        this.source = source;
+    }
+
+    public UserAgent userAgent() {
+        return this.userAgent;
+    }
+
+    public OS os() {
+        return this.os;
+    }
+
+    public String device() {
+        return this.device == null ? null : this.device.family();
+    }
+
+    /**
+     * Tells whether this client could be parsed differently with changed rules.
+     *
+     * Rules are evaluated in order and the first one matching wins, so a client still holds
+     * if each of its components matched a rule preceding every change of its section. A
+     * component no rule matched holds only if its section didn't change at all.
+     * @param unchanged Index of the first changed rule of each section, as returned by
+     * {@link Parser#unchanged(RuleSet)}
+     * @return Whether the client must be parsed again
+     */
+    boolean isStale(final int[] unchanged) {
+        return this.userAgent != null
+            && Client.isStale(this.userAgent.ruleIndex(), unchanged[Component.USER_AGENT.ordinal()])
+            || this.os != null
+            && Client.isStale(this.os.ruleIndex(), unchanged[Component.OS.ordinal()])
+            || this.device != null
+            && Client.isStale(this.device.ruleIndex(), unchanged[Component.DEVICE.ordinal()]);
+    }
+
+    /**
+     * @return User agent version string e.g. "89.0.4389.90", or {@code null} without a major
+     * version
+     */
+    public String version() {
+        return this.versions().version;
+    }
+
+    /**
+     * @return OS version string e.g. "10" or "Vista SP2", or {@code null} without a major version
+     */
+    public String osVersion() {
+        return this.versions().osVersion;
+    }
+
+    /**
+     * @return OS name followed by its version, or {@code null} without an OS name
+     */
+    public String osFull() {
+        return this.versions().osFull;
+    }
+
+    /**
+     * @return Index of the matched rule in the device_parsers section, or {@link Rule#NO_INDEX}
+     * if no rule matched
+     */
+    public int deviceRuleIndex() {
+        return this.device == null ? Rule.NO_INDEX : this.device.ruleIndex();
     }
 
     @Override
@@ -41,14 +131,13 @@ public final class Client {
         if (other == this) return true;
         if (!(other instanceof Client)) return false;
         final Client o = (Client) other;
-        return ((this.userAgent != null && this.userAgent.equals(o.userAgent)) ||
-            this.userAgent == o.userAgent) &&
-            ((this.os != null && this.os.equals(o.os)) || this.os == o.os) &&
-            ((this.device != null && this.device.equals(o.device)) || this.device == o.device);
+        return Objects.equals(this.userAgent, o.userAgent) && Objects.equals(this.os, o.os) &&
+            Objects.equals(this.device(), o.device());
     }
 
     @Override
     public int hashCode() {
+        final String device = device();
         int h = userAgent == null ? 0 : userAgent.hashCode();
         h += os == null ? 0 : os.hashCode();
         h += device == null ? 0 : device.hashCode();
@@ -58,7 +147,152 @@ public final class Client {
     @Override
     public String toString() {
         return String.format("{\"user_agent\": %s, \"os\": %s, \"device\": %s}",
-            userAgent, os, device
+            userAgent, os, device()
         );
     }
+
+    /**
+     * Builds the version strings on first access, racing threads building equal ones.
+     */
+    private Client.Versions versions() {
+        Client.Versions built = this.versions;
+        if (built == null) {
+            built = new Client.Versions(this.userAgent, this.os, this.source);
+            this.versions = built;
+        }
+        return built;
+    }
+
+    /**
+     * @param index Index of the rule a component matched
+     * @param unchanged Index of the first changed rule of the component's section
+     * @return Whether the component may match differently with the changed rules
+     */
+    private static boolean isStale(final int index, final int unchanged) {
+        if (unchanged == Integer.MAX_VALUE) {
+            return false;
+        }
+        return index == Rule.NO_INDEX || index >= unchanged;
+    }
+
+    /**
+     * Reconstructs the user agent version string.
+     */
+    private static String version(final UserAgent ua, final CharSequence agentString) {
+        final String major = ua.major();
+        if (major == null) {
+            return null;
+        }
+        // only Chrome has all 4 segments, while Firefox only uses major.minor
+        final StringBuilder version = new StringBuilder(major);
+        final String minor = ua.minor();
+        if (minor != null) {
+            version.append('.').append(minor);
+            final String patch = ua.patch();
+            if (patch != null) {
+                version.append('.').append(patch);
+                final String patchMinor = ua.patchMinor();
+                if (patchMinor != null) {
+                    version.append('.').append(patchMinor);
+                } else if (agentString != null) {
+                    return Client.adjustVersion(agentString.toString(), version.toString());
+                }
+            }
+        }
+        return version.toString();
+    }
+
+    /**
+     * Completes the version when patchMinor is not matched but still there.
+     */
+    private static String adjustVersion(final String agentString, final String version) {
+        int i = agentString.indexOf(version);
+        // only complete the version if it's not 'interpreted' (contained in UA string)
+        if (i < 0) {
+            return version;
+        }
+        i += version.length();
+        if (i < agentString.length() && agentString.charAt(i) == '.') { // we built the version with dots
+            final int end = agentString.indexOf(' ', i + 1);
+            if (end >= 0) {
+                final String patchMinor = agentString.substring(i + 1, end);
+                if (Client.isInteger(patchMinor)) {
+                    return version + '.' + patchMinor;
+                }
+            }
+        }
+        return version;
+    }
+
+    /**
+     * Reconstructs the OS version string.
+     */
+    private static String osVersion(final OS os) {
+        // NOTE: UA regexes don't always give us the versions back
+        // they do get "corrected" for various OSes such as:
+        // - Windows (Windows NT 6.0 => 'Vista')
+        // - Windows ('Windows NT 6.3' => '8','1')
+        // - Windows ('Windows NT 10.0' => '10')
+        // - iOS ('Darwin/15.5' => '9','3','2')
+        final String major = os.major();
+        if (major == null) {
+            return null;
+        }
+        final StringBuilder version = new StringBuilder(major);
+        final String minor = os.minor();
+        if (minor != null) {
+            version.append(Client.isInteger(major) ? '.' : ' ').append(minor);
+            final String patch = os.patch();
+            if (patch != null) {
+                version.append('.').append(patch);
+                final String patchMinor = os.patchMinor();
+                if (patchMinor != null) {
+                    version.append('.').append(patchMinor);
+                }
+            }
+        }
+        return version.toString();
+    }
+
+    /**
+     * Whether the value is the canonical representation of an integer, i.e. what Ruby's
+     * {@code value.to_i.to_s == value} checks.
+     */
+    private static boolean isInteger(final String value) {
+        final int length = value.length();
+        final int start = length > 1 && value.charAt(0) == '-' ? 1 : 0;
+        if (length == start || (value.charAt(start) == '0' && (length > start + 1 || start > 0))) {
+            return false;
+        }
+        for (int i = start; i < length; ++i) {
+            final char c = value.charAt(i);
+            if (c < '0' || c > '9') {
+                return false;
+            }
+        }
+        return true;
+    }
+
+    /**
+     * Version strings of a client.
+     */
+    private static final class Versions {
+
+        final String version;
+
+        final String osVersion;
+
+        final String osFull;
+
+        Versions(final UserAgent userAgent, final OS os, final CharSequence source) {
+            this.version = userAgent == null ? null : Client.version(userAgent, source);
+            this.osVersion = os == null ? null : Client.osVersion(os);
+            final String osName = os == null ? null : os.family();
+            if (osName == null) {
+                this.osFull = null;
+            } else {
+                this.osFull = this.osVersion == null ? osName : osName + ' ' + this.osVersion;
+            }
+        }
+    }
 }
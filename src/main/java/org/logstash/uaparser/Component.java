@@ -0,0 +1,57 @@
+/*
+ * Licensed to Elasticsearch under one or more contributor
+ * license agreements. See the NOTICE file distributed with
+ * this work for additional information regarding copyright
+ * ownership. Elasticsearch licenses this file to you under
+ * the Apache License, Version 2.0 (the "License"); you may
+ * not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing,
+ * software distributed under the License is distributed on an
+ * "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+ * KIND, either express or implied.  See the License for the
+ * specific language governing permissions and limitations
+ * under the License.
+ */
+package org.logstash.uaparser;
+
+import java.util.Collection;
+import java.util.EnumSet;
+import java.util.Locale;
+import java.util.Set;
+
+/**
+ * The parts of a {@link Client} a parser can extract, each one matched against its own section
+ * of the regexes.yaml.
+ */
+public enum Component {
+
+    USER_AGENT, OS, DEVICE;
+
+    /**
+     * @param names Component names as in the plugin configuration, i.e. {@code "user_agent"},
+     * {@code "os"} and {@code "device"}
+     * @return The named components
+     */
+    public static Set<Component> setOf(final Collection<String> names) {
+        final Set<Component> components = EnumSet.noneOf(Component.class);
+        for (final String name : names) {
+            try {
+                components.add(Component.valueOf(name.toUpperCase(Locale.ROOT)));
+            } catch (final IllegalArgumentException ex) {
+                throw new IllegalArgumentException("Unknown user agent component: " + name, ex);
+            }
+        }
+        return components;
+    }
+
+    /**
+     * @return All the components
+     */
+    public static Set<Component> all() {
+        return EnumSet.allOf(Component.class);
+    }
+}
@@ -23,10 +23,34 @@ import java.util.Map;
 /**
  * Device parsed data class
  * @author Steve Jiang (@sjiang) <gh at iamsteve com>
- * @todo Decorate with family wrapper????? (not sure about this, don't merge before removing)
  */
 final class Device {
 
+    private final Rule rule;
+
+    private final CharSequence source;
+
+    private final int[] groups;
+
+    /**
+     * @param rule Matched rule, with the device family as its only field
+     * @param source Agent string the rule matched
+     * @param groups Group offsets of the match
+     */
+    Device(Rule rule, CharSequence source, int[] groups) {
+        this.rule = rule;
+        this.source = source;
+        this.groups = groups;
+    }
+
+    String family() {
+        return rule.value(0, source, groups);
+    }
+
+    int ruleIndex() {
+        return rule.index;
+    }
+
     public static String fromMap(Map<String, String> m) {
         return m.get("family");
     }
@@ -21,8 +21,6 @@ package org.logstash.uaparser;
 import java.util.ArrayList;
 import java.util.List;
 import java.util.Map;
-import java.util.regex.Matcher;
-import java.util.regex.Pattern;
 
 /**
  * Device parser using ua-parser regexes. Extracts device information from user agent strings.
@@ -30,12 +28,22 @@ import java.util.regex.Pattern;
  */
 final class DeviceParser {
 
+    static final Device OTHER = new Device(new Rule(Rule.NO_INDEX, "Other"), null, null);
+
     private final List<DeviceParser.DevicePattern> patterns;
 
     public static DeviceParser fromList(List<Map<String, String>> configList) {
-        List<DeviceParser.DevicePattern> configPatterns = new ArrayList<>();
+        List<RuleDefinition> definitions = new ArrayList<>(configList.size());
         for (Map<String, String> configMap : configList) {
-            configPatterns.add(DeviceParser.patternFromMap(configMap));
+            definitions.add(RuleDefinition.of(configMap));
+        }
+        return DeviceParser.fromDefinitions(definitions);
+    }
+
+    static DeviceParser fromDefinitions(List<RuleDefinition> definitions) {
+        List<DeviceParser.DevicePattern> configPatterns = new ArrayList<>(definitions.size());
+        for (RuleDefinition definition : definitions) {
+            configPatterns.add(DeviceParser.patternFromDefinition(configPatterns.size(), definition));
         }
         return new DeviceParser(configPatterns);
     }
@@ -52,76 +60,116 @@ final class DeviceParser {
         if (agentString == null) {
             return null;
         }
-        String device = null;
+        return parse(agentString, agentString).family();
+    }
+
+    /**
+     * @param agentString Agent string to match
+     * @param source Equivalent agent string retained by the result
+     */
+    Device parse(String agentString, CharSequence source) {
+        return parse(agentString, new RegexRule.Input(agentString), source);
+    }
+
+    /**
+     * @param agentString Agent string to match
+     * @param input Agent string the regexes are run against, e.g. to bound their evaluation
+     * @param source Equivalent agent string retained by the result
+     */
+    Device parse(String agentString, RegexRule.Input input, CharSequence source) {
         for (final DeviceParser.DevicePattern p : this.patterns) {
-            if ((device = p.match(agentString)) != null) {
-                break;
+            final Device device;
+            if ((device = p.match(agentString, input, source)) != null) {
+                return device;
             }
         }
-        if (device == null) device = "Other";
-        return device;
+        return DeviceParser.OTHER;
     }
 
-    private static DeviceParser.DevicePattern patternFromMap(Map<String, String> configMap) {
-        final String regex = configMap.get("regex");
-        if (regex == null) {
-            throw new IllegalArgumentException("Device is missing regex");
+    /**
+     * @param definitions Rules replacing this parser's ones
+     * @return Index of the first rule which changed, see {@link RegexRule#unchanged}
+     */
+    int unchanged(final List<RuleDefinition> definitions) {
+        return RegexRule.unchanged(this.patterns, definitions);
+    }
+
+    /**
+     * @param definitions Rules replacing this parser's ones
+     * @return Parser of the given rules, sharing this parser's rules up to the first one which
+     * changed
+     */
+    DeviceParser reload(final List<RuleDefinition> definitions) {
+        final int unchanged = this.unchanged(definitions);
+        final List<DeviceParser.DevicePattern> configPatterns = new ArrayList<>(definitions.size());
+        for (final RuleDefinition definition : definitions) {
+            final int index = configPatterns.size();
+            configPatterns.add(
+                index < unchanged ? this.patterns.get(index)
+                    : DeviceParser.patternFromDefinition(index, definition)
+            );
         }
-        Pattern pattern = "i".equals(configMap.get("regex_flag")) // no other flags used (by now)
-            ? Pattern.compile(regex, Pattern.CASE_INSENSITIVE) : Pattern.compile(regex);
-        return new DeviceParser.DevicePattern(pattern, configMap.get("device_replacement"));
+        return new DeviceParser(configPatterns);
+    }
+
+    /**
+     * @param enabled Whether to profile the rules, see {@link RegexRule#profile(boolean)}
+     */
+    void profile(final boolean enabled) {
+        RegexRule.profile(this.patterns, enabled);
     }
 
-    private static final class DevicePattern {
+    /**
+     * @param profiles Profiles to add those of the profiled rules to
+     */
+    void profiles(final List<RuleProfile> profiles) {
+        RegexRule.profiles(this.patterns, Component.DEVICE, profiles);
+    }
 
-        private static final Pattern SUBSTITUTIONS_PATTERN = Pattern.compile("\\$\\d");
+    /**
+     * Compiles the regexes of the rules not evaluated yet.
+     */
+    void compileAll() {
+        RulePool.forEach(this.patterns, RegexRule::compile);
+    }
 
-        private final Matcher matcher;
+    private static DeviceParser.DevicePattern patternFromDefinition(int index,
+        RuleDefinition definition) {
+        final String regex = definition.get("regex");
+        if (regex == null) {
+            throw new IllegalArgumentException("Device is missing regex");
+        }
+        return new DeviceParser.DevicePattern(
+            index, definition, definition.get("device_replacement")
+        );
+    }
 
-        private final String deviceReplacement;
+    private static final class DevicePattern extends RegexRule {
 
-        DevicePattern(Pattern pattern, String deviceReplacement) {
-            this.matcher = pattern.matcher("");
-            this.deviceReplacement = deviceReplacement;
+        DevicePattern(int index, RuleDefinition definition, String deviceReplacement) {
+            super(index, definition, field(definition.groupCount(), deviceReplacement));
         }
 
-        public synchronized String match(final CharSequence agentString) {
-            this.matcher.reset(agentString);
-            if (!this.matcher.find()) {
+        Device match(final String agentString, final RegexRule.Input input,
+            final CharSequence source) {
+            final int[] groups = this.find(agentString, input);
+            if (groups == null) {
                 return null;
             }
-            String device = null;
-            if (this.deviceReplacement != null) {
-                if (this.deviceReplacement.contains("$")) {
-                    device = this.deviceReplacement;
-                    for (String substitution : DevicePattern
-                        .getSubstitutions(this.deviceReplacement)) {
-                        int i = Integer.parseInt(substitution.substring(1));
-                        final String replacement = this.matcher.groupCount() >= i &&
-                            this.matcher.group(i) != null
-                            ? Matcher.quoteReplacement(this.matcher.group(i)) : "";
-                        device = device.replaceFirst('\\' + substitution, replacement);
-                    }
-                    device = device.trim();
-                } else {
-                    device = this.deviceReplacement;
-                }
-            } else if (this.matcher.groupCount() >= 1) {
-                device = this.matcher.group(1);
-            }
-            return device;
+            return this.isNull(0, groups) ? null : new Device(this, source, groups);
         }
 
-        private static Iterable<String> getSubstitutions(String deviceReplacement) {
-            Matcher matcher =
-                DeviceParser.DevicePattern.SUBSTITUTIONS_PATTERN.matcher(deviceReplacement);
-            List<String> substitutions = new ArrayList<>();
-            while (matcher.find()) {
-                substitutions.add(matcher.group());
+        private static Object field(int groupCount, String deviceReplacement) {
+            if (deviceReplacement != null) {
+                if (deviceReplacement.contains("$")) {
+                    return Rule.Template.trimmed(deviceReplacement);
+                }
+                return deviceReplacement;
+            } else if (groupCount >= 1) {
+                return Rule.group(1);
             }
-            return substitutions;
+            return null;
         }
-
     }
 
 }
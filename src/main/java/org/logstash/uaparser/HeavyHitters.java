@@ -0,0 +1,398 @@
+/*
+ * Licensed to Elasticsearch under one or more contributor
+ * license agreements. See the NOTICE file distributed with
+ * this work for additional information regarding copyright
+ * ownership. Elasticsearch licenses this file to you under
+ * the Apache License, Version 2.0 (the "License"); you may
+ * not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing,
+ * software distributed under the License is distributed on an
+ * "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+ * KIND, either express or implied.  See the License for the
+ * specific language governing permissions and limitations
+ * under the License.
+ */
+package org.logstash.uaparser;
+
+import java.io.BufferedReader;
+import java.io.IOException;
+import java.io.Writer;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.nio.file.StandardCopyOption;
+import java.util.ArrayList;
+import java.util.Comparator;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ThreadLocalRandom;
+
+/**
+ * Space-Saving sketch of the agent strings most looked up in a {@link CachingParser}, along with
+ * their clients, in bounded memory.
+ *
+ * At most {@link #capacity()} agent strings are tracked. Looking up a tracked agent string
+ * increments its count, looking up any other one replaces the tracked agent string with the
+ * lowest count, taking that count plus one as its count and that count as its error. Every
+ * agent string looked up more than {@code total / capacity} times is tracked, with a count
+ * over-estimated by at most its error. Counts are kept in a min-heap indexed by agent string,
+ * each lookup costing {@code O(log capacity)} under the sketch's lock.
+ *
+ * A {@link CachingParser} samples its lookups, single or batched, with
+ * {@link #sample(CacheKey, Client)} and {@link #sample(CacheKey[], List)}: one in
+ * {@link #SAMPLING} is counted, as that many lookups, so that most lookups don't take the lock.
+ * Counts and errors are then estimates, and only agent strings looked up well over
+ * {@code total / capacity} times are sure to be tracked.
+ *
+ * The sketch is exported as text, a header comment line followed by one line per agent string,
+ * the most frequent first:
+ * <pre>
+ * count TAB error TAB agent string
+ * </pre>
+ * {@link #read(String)} reads the agent strings back, e.g. to warm the cache of the next run
+ * with {@link CachingParser#warm(List)}. Agent strings spanning several lines aren't exported.
+ */
+public final class HeavyHitters {
+
+    /**
+     * One in this many sampled lookups is counted.
+     */
+    static final int SAMPLING = 16;
+
+    private final int capacity;
+
+    private final Map<CacheKey, Integer> positions;
+
+    private final CacheKey[] keys;
+
+    private final long[] counts;
+
+    private final long[] errors;
+
+    private final Client[] clients;
+
+    private int size;
+
+    private long total;
+
+    /**
+     * One in this many sampled lookups is counted, as that many.
+     */
+    private final int sampling;
+
+    /**
+     * @param capacity Number of agent strings tracked
+     */
+    public HeavyHitters(final int capacity) {
+        this(capacity, HeavyHitters.SAMPLING);
+    }
+
+    /**
+     * @param capacity Number of agent strings tracked
+     * @param sampling One in this many sampled lookups is counted, 1 to count all of them
+     */
+    HeavyHitters(final int capacity, final int sampling) {
+        if (capacity <= 0) {
+            throw new IllegalArgumentException("Heavy hitters capacity must be positive");
+        }
+        if (sampling <= 0) {
+            throw new IllegalArgumentException("Heavy hitters sampling must be positive");
+        }
+        this.capacity = capacity;
+        this.sampling = sampling;
+        this.positions = new HashMap<>(capacity * 2);
+        this.keys = new CacheKey[capacity];
+        this.counts = new long[capacity];
+        this.errors = new long[capacity];
+        this.clients = new Client[capacity];
+    }
+
+    public int capacity() {
+        return this.capacity;
+    }
+
+    /**
+     * @return Number of lookups counted
+     */
+    public synchronized long total() {
+        return this.total;
+    }
+
+    /**
+     * @return The tracked agent strings, the most frequent first
+     */
+    public synchronized List<HeavyHitters.Entry> top() {
+        final List<HeavyHitters.Entry> entries = new ArrayList<>(this.size);
+        for (int i = 0; i < this.size; ++i) {
+            entries.add(new HeavyHitters.Entry(
+                this.keys[i].toString(), this.counts[i], this.errors[i], this.clients[i]
+            ));
+        }
+        entries.sort(HeavyHitters.Entry.MOST_FREQUENT_FIRST);
+        return entries;
+    }
+
+    /**
+     * Writes the tracked agent strings, see the class description for the format.
+     * @param output Output, not closed
+     * @throws IOException On failure to write
+     */
+    public void write(final Writer output) throws IOException {
+        final List<HeavyHitters.Entry> top = this.top();
+        output.write("# " + top.size() + " most frequent user agents of " + this.total()
+            + " lookups: count, error, user agent\n");
+        for (final HeavyHitters.Entry entry : top) {
+            final String agentString = entry.agentString();
+            if (agentString.indexOf('\n') >= 0 || agentString.indexOf('\r') >= 0) {
+                continue;
+            }
+            output.write(Long.toString(entry.count()));
+            output.write('\t');
+            output.write(Long.toString(entry.error()));
+            output.write('\t');
+            output.write(agentString);
+            output.write('\n');
+        }
+    }
+
+    /**
+     * Writes the tracked agent strings to a file, replacing it only once fully written.
+     * @param path File to write
+     * @throws IOException On failure to write
+     */
+    public void export(final String path) throws IOException {
+        final Path target = Paths.get(path).toAbsolutePath();
+        final Path temporary = Files.createTempFile(target.getParent(), ".heavy-hitters", ".tmp");
+        try {
+            try (Writer output = Files.newBufferedWriter(temporary, StandardCharsets.UTF_8)) {
+                this.write(output);
+            }
+            Files.move(
+                temporary, target, StandardCopyOption.REPLACE_EXISTING,
+                StandardCopyOption.ATOMIC_MOVE
+            );
+        } finally {
+            Files.deleteIfExists(temporary);
+        }
+    }
+
+    /**
+     * Reads the agent strings of an exported sketch.
+     * @param path Exported sketch
+     * @return Agent strings, the most frequent first
+     * @throws IOException On failure to read
+     */
+    public static List<String> read(final String path) throws IOException {
+        final List<String> agentStrings = new ArrayList<>();
+        try (BufferedReader input = Files.newBufferedReader(Paths.get(path), StandardCharsets.UTF_8)) {
+            String line;
+            while ((line = input.readLine()) != null) {
+                if (line.startsWith("#")) {
+                    continue;
+                }
+                final int count = line.indexOf('\t');
+                final int error = count < 0 ? -1 : line.indexOf('\t', count + 1);
+                if (error < 0) {
+                    throw new IllegalArgumentException("Malformed heavy hitters line: " + line);
+                }
+                agentStrings.add(line.substring(error + 1));
+            }
+        }
+        return agentStrings;
+    }
+
+    /**
+     * Counts a lookup.
+     * @param key Agent string looked up
+     * @param client Its client
+     */
+    synchronized void offer(final CacheKey key, final Client client) {
+        this.count(key, client, 1L);
+    }
+
+    /**
+     * Counts one in {@link #SAMPLING} lookups, as that many, taking the lock for those only.
+     * @param key Agent string looked up
+     * @param client Its client
+     */
+    void sample(final CacheKey key, final Client client) {
+        if (this.sampled()) {
+            synchronized (this) {
+                this.count(key, client, this.sampling);
+            }
+        }
+    }
+
+    /**
+     * Batch variant of {@link #sample(CacheKey, Client)}, taking the lock once for the sampled
+     * lookups of the batch, if any.
+     * @param keys Agent strings looked up, {@code null} elements are skipped
+     * @param clients Their clients
+     */
+    void sample(final CacheKey[] keys, final List<Client> clients) {
+        int[] sampled = null;
+        int count = 0;
+        for (int i = 0; i < keys.length; ++i) {
+            if (keys[i] != null && this.sampled()) {
+                if (sampled == null) {
+                    sampled = new int[keys.length - i];
+                }
+                sampled[count++] = i;
+            }
+        }
+        if (count == 0) {
+            return;
+        }
+        synchronized (this) {
+            for (int j = 0; j < count; ++j) {
+                this.count(keys[sampled[j]], clients.get(sampled[j]), this.sampling);
+            }
+        }
+    }
+
+    private boolean sampled() {
+        return this.sampling == 1 || ThreadLocalRandom.current().nextInt(this.sampling) == 0;
+    }
+
+    /**
+     * @param weight Number of lookups counted
+     */
+    private void count(final CacheKey key, final Client client, final long weight) {
+        this.total += weight;
+        final Integer position = this.positions.get(key);
+        if (position != null) {
+            final int i = position;
+            this.counts[i] += weight;
+            this.clients[i] = client;
+            this.down(i);
+            return;
+        }
+        // lookup keys may view transient bytes, only copied once admitted
+        final CacheKey tracked = key.retained();
+        if (this.size < this.capacity) {
+            final int i = this.size++;
+            this.set(i, tracked, weight, 0L, client);
+            this.up(i);
+            return;
+        }
+        final long min = this.counts[0];
+        this.positions.remove(this.keys[0]);
+        this.set(0, tracked, min + weight, min, client);
+        this.down(0);
+    }
+
+    private void set(final int i, final CacheKey key, final long count, final long error,
+        final Client client) {
+        this.keys[i] = key;
+        this.counts[i] = count;
+        this.errors[i] = error;
+        this.clients[i] = client;
+        this.positions.put(key, i);
+    }
+
+    private void up(final int start) {
+        int i = start;
+        while (i > 0) {
+            final int parent = (i - 1) >>> 1;
+            if (this.counts[parent] <= this.counts[i]) {
+                break;
+            }
+            this.swap(i, parent);
+            i = parent;
+        }
+    }
+
+    private void down(final int start) {
+        int i = start;
+        while (true) {
+            final int left = 2 * i + 1;
+            if (left >= this.size) {
+                break;
+            }
+            final int right = left + 1;
+            final int child = right < this.size && this.counts[right] < this.counts[left]
+                ? right : left;
+            if (this.counts[i] <= this.counts[child]) {
+                break;
+            }
+            this.swap(i, child);
+            i = child;
+        }
+    }
+
+    private void swap(final int i, final int j) {
+        final CacheKey key = this.keys[i];
+        final long count = this.counts[i];
+        final long error = this.errors[i];
+        final Client client = this.clients[i];
+        this.keys[i] = this.keys[j];
+        this.counts[i] = this.counts[j];
+        this.errors[i] = this.errors[j];
+        this.clients[i] = this.clients[j];
+        this.keys[j] = key;
+        this.counts[j] = count;
+        this.errors[j] = error;
+        this.clients[j] = client;
+        this.positions.put(this.keys[i], i);
+        this.positions.put(key, j);
+    }
+
+    /**
+     * A tracked agent string.
+     */
+    public static final class Entry {
+
+        /**
+         * Orders entries by decreasing count.
+         */
+        public static final Comparator<HeavyHitters.Entry> MOST_FREQUENT_FIRST =
+            Comparator.comparingLong(HeavyHitters.Entry::count).reversed();
+
+        private final String agentString;
+
+        private final long count;
+
+        private final long error;
+
+        private final Client client;
+
+        Entry(final String agentString, final long count, final long error, final Client client) {
+            this.agentString = agentString;
+            this.count = count;
+            this.error = error;
+            this.client = client;
+        }
+
+        public String agentString() {
+            return this.agentString;
+        }
+
+        /**
+         * @return Number of lookups of the agent string, over-estimated by at most
+         * {@link #error()}
+         */
+        public long count() {
+            return this.count;
+        }
+
+        /**
+         * @return Most lookups counted for the agent string that may have been of others
+         */
+        public long error() {
+            return this.error;
+        }
+
+        /**
+         * @return Client of the agent string's last lookup
+         */
+        public Client client() {
+            return this.client;
+        }
+    }
+}
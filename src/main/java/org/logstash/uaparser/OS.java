@@ -19,6 +19,7 @@
 package org.logstash.uaparser;
 
 import java.util.Map;
+import java.util.Objects;
 
 /**
  * Operating System parsed data class
@@ -26,18 +27,29 @@ import java.util.Map;
  */
 public class OS {
 
-    public final String family;
-    public final String major;
-    public final String minor;
-    public final String patch;
-    public final String patchMinor;
+    private static final int FAMILY = 0;
+    private static final int MAJOR = 1;
+    private static final int MINOR = 2;
+    private static final int PATCH = 3;
+    private static final int PATCH_MINOR = 4;
+
+    private final Rule rule;
+    private final CharSequence source;
+    private final int[] groups;
 
     public OS(String family, String major, String minor, String patch, String patchMinor) {
-        this.family = family;
-        this.major = major;
-        this.minor = minor;
-        this.patch = patch;
-        this.patchMinor = patchMinor;
+        this(new Rule(Rule.NO_INDEX, family, major, minor, patch, patchMinor), null, null);
+    }
+
+    /**
+     * @param rule Matched rule, with its fields in family, major, minor, patch, patchMinor order
+     * @param source Agent string the rule matched
+     * @param groups Group offsets of the match
+     */
+    OS(Rule rule, CharSequence source, int[] groups) {
+        this.rule = rule;
+        this.source = source;
+        this.groups = groups;
     }
 
     public static OS fromMap(Map<String, String> m) {
@@ -45,21 +57,47 @@ public class OS {
             m.get("family"), m.get("major"), m.get("minor"), m.get("patch"), m.get("patch_minor"));
     }
 
+    public String family() {
+        return rule.value(FAMILY, source, groups);
+    }
+
+    public String major() {
+        return rule.value(MAJOR, source, groups);
+    }
+
+    public String minor() {
+        return rule.value(MINOR, source, groups);
+    }
+
+    public String patch() {
+        return rule.value(PATCH, source, groups);
+    }
+
+    public String patchMinor() {
+        return rule.value(PATCH_MINOR, source, groups);
+    }
+
+    /**
+     * @return Index of the matched rule in the os_parsers section, or {@link Rule#NO_INDEX} if
+     * no rule matched
+     */
+    public int ruleIndex() {
+        return rule.index;
+    }
+
     @Override
     public boolean equals(Object other) {
         if (other == this) return true;
         if (!(other instanceof OS)) return false;
         OS o = (OS) other;
-        return ((this.family != null && this.family.equals(o.family)) || this.family == o.family) &&
-            ((this.major != null && this.major.equals(o.major)) || this.major == o.major) &&
-            ((this.minor != null && this.minor.equals(o.minor)) || this.minor == o.minor) &&
-            ((this.patch != null && this.patch.equals(o.patch)) || this.patch == o.patch) &&
-            ((this.patchMinor != null && this.patchMinor.equals(o.patchMinor)) ||
-                this.patchMinor == o.patchMinor);
+        return Objects.equals(family(), o.family()) && Objects.equals(major(), o.major()) &&
+            Objects.equals(minor(), o.minor()) && Objects.equals(patch(), o.patch()) &&
+            Objects.equals(patchMinor(), o.patchMinor());
     }
 
     @Override
     public int hashCode() {
+        String family = family(), major = major(), minor = minor(), patch = patch(), patchMinor = patchMinor();
         int h = family == null ? 0 : family.hashCode();
         h += major == null ? 0 : major.hashCode();
         h += minor == null ? 0 : minor.hashCode();
@@ -70,6 +108,7 @@ public class OS {
 
     @Override
     public String toString() {
+        String family = family(), major = major(), minor = minor(), patch = patch(), patchMinor = patchMinor();
         return String.format(
             "{\"family\": %s, \"major\": %s, \"minor\": %s, \"patch\": %s, \"patch_minor\": %s}",
             family == null ? Constants.EMPTY_STRING : '"' + family + '"',
@@ -18,8 +18,6 @@
 
 package org.logstash.uaparser;
 
-import java.util.regex.Matcher;
-import java.util.regex.Pattern;
 import java.util.ArrayList;
 import java.util.List;
 import java.util.Map;
@@ -30,6 +28,8 @@ import java.util.Map;
  */
 final class OSParser {
 
+    static final OS OTHER = new OS("Other", null, null, null, null);
+
     private final List<OSParser.OSPattern> patterns;
 
     private OSParser(List<OSParser.OSPattern> patterns) {
@@ -37,126 +37,171 @@ final class OSParser {
     }
 
     public static OSParser fromList(List<Map<String, String>> configList) {
-        List<OSParser.OSPattern> configPatterns = new ArrayList<>();
+        List<RuleDefinition> definitions = new ArrayList<>(configList.size());
         for (Map<String, String> configMap : configList) {
-            configPatterns.add(OSParser.patternFromMap(configMap));
+            definitions.add(RuleDefinition.of(configMap));
+        }
+        return OSParser.fromDefinitions(definitions);
+    }
+
+    static OSParser fromDefinitions(List<RuleDefinition> definitions) {
+        List<OSParser.OSPattern> configPatterns = new ArrayList<>(definitions.size());
+        for (RuleDefinition definition : definitions) {
+            configPatterns.add(OSParser.patternFromDefinition(configPatterns.size(), definition));
         }
         return new OSParser(configPatterns);
     }
 
     public OS parse(final String agentString) {
+        return parse(agentString, agentString);
+    }
+
+    /**
+     * @param agentString Agent string to match
+     * @param source Equivalent agent string retained by the result
+     */
+    OS parse(final String agentString, final CharSequence source) {
+        return parse(agentString, new RegexRule.Input(agentString), source);
+    }
+
+    /**
+     * @param agentString Agent string to match
+     * @param input Agent string the regexes are run against, e.g. to bound their evaluation
+     * @param source Equivalent agent string retained by the result
+     */
+    OS parse(final String agentString, final RegexRule.Input input, final CharSequence source) {
         if (agentString == null) {
             return null;
         }
         for (OSParser.OSPattern p : this.patterns) {
             OS os;
-            if ((os = p.match(agentString)) != null) {
+            if ((os = p.match(agentString, input, source)) != null) {
                 return os;
             }
         }
-        return new OS("Other", null, null, null, null);
+        return OSParser.OTHER;
     }
 
-    private static OSParser.OSPattern patternFromMap(Map<String, String> configMap) {
-        String regex = configMap.get("regex");
-        if (regex == null) {
-            throw new IllegalArgumentException("OS is missing regex");
-        }
-        return new OSParser.OSPattern(
-            Pattern.compile(regex),
-            configMap.get("os_replacement"),
-            configMap.get("os_v1_replacement"),
-            configMap.get("os_v2_replacement"),
-            configMap.get("os_v3_replacement")
-        );
+    /**
+     * @param definitions Rules replacing this parser's ones
+     * @return Index of the first rule which changed, see {@link RegexRule#unchanged}
+     */
+    int unchanged(final List<RuleDefinition> definitions) {
+        return RegexRule.unchanged(this.patterns, definitions);
     }
 
-    private static final class OSPattern {
-
-        private static final Pattern FIRST_PATTERN =
-            Pattern.compile("(" + Pattern.quote("$1") + ")");
+    /**
+     * @param definitions Rules replacing this parser's ones
+     * @return Parser of the given rules, sharing this parser's rules up to the first one which
+     * changed
+     */
+    OSParser reload(final List<RuleDefinition> definitions) {
+        final int unchanged = this.unchanged(definitions);
+        final List<OSParser.OSPattern> configPatterns = new ArrayList<>(definitions.size());
+        for (final RuleDefinition definition : definitions) {
+            final int index = configPatterns.size();
+            configPatterns.add(
+                index < unchanged ? this.patterns.get(index)
+                    : OSParser.patternFromDefinition(index, definition)
+            );
+        }
+        return new OSParser(configPatterns);
+    }
 
-        private final Matcher matcher;
+    /**
+     * @param enabled Whether to profile the rules, see {@link RegexRule#profile(boolean)}
+     */
+    void profile(final boolean enabled) {
+        RegexRule.profile(this.patterns, enabled);
+    }
 
-        private final String osReplacement;
+    /**
+     * @param profiles Profiles to add those of the profiled rules to
+     */
+    void profiles(final List<RuleProfile> profiles) {
+        RegexRule.profiles(this.patterns, Component.OS, profiles);
+    }
 
-        private final String v1Replacement;
+    /**
+     * Compiles the regexes of the rules not evaluated yet.
+     */
+    void compileAll() {
+        RulePool.forEach(this.patterns, RegexRule::compile);
+    }
 
-        private final String v2Replacement;
+    private static OSParser.OSPattern patternFromDefinition(int index, RuleDefinition definition) {
+        String regex = definition.get("regex");
+        if (regex == null) {
+            throw new IllegalArgumentException("OS is missing regex");
+        }
+        return new OSParser.OSPattern(
+            index,
+            definition,
+            definition.get("os_replacement"),
+            definition.get("os_v1_replacement"),
+            definition.get("os_v2_replacement"),
+            definition.get("os_v3_replacement")
+        );
+    }
 
-        private final String v3Replacement;
+    private static final class OSPattern extends RegexRule {
 
-        OSPattern(Pattern pattern, String osReplacement, String v1Replacement,
-            String v2Replacement, String v3Replacement) {
-            this.matcher = pattern.matcher("");
-            this.osReplacement = osReplacement;
-            this.v1Replacement = v1Replacement;
-            this.v2Replacement = v2Replacement;
-            this.v3Replacement = v3Replacement;
+        OSPattern(int index, RuleDefinition definition, String osReplacement,
+            String v1Replacement, String v2Replacement, String v3Replacement) {
+            super(
+                index, definition,
+                fields(definition.groupCount(), osReplacement, v1Replacement, v2Replacement, v3Replacement)
+            );
         }
 
-        public synchronized OS match(final String agentString) {
-            this.matcher.reset(agentString);
-            if (!this.matcher.find()) {
+        OS match(final String agentString, final RegexRule.Input input,
+            final CharSequence source) {
+            final int[] groups = this.find(agentString, input);
+            if (groups == null) {
                 return null;
             }
-            final int groupCount = this.matcher.groupCount();
-            String family = null;
-            if (this.osReplacement != null) {
-                if (groupCount >= 1) {
-                    family = OSParser.OSPattern.FIRST_PATTERN.matcher(this.osReplacement)
-                        .replaceAll(this.matcher.group(1));
+            return this.isNull(0, groups) ? null : new OS(this, source, groups);
+        }
+
+        private static Object[] fields(int groupCount, String osReplacement, String v1Replacement,
+            String v2Replacement, String v3Replacement) {
+            Object family = null;
+            if (osReplacement != null) {
+                if (groupCount >= 1 && osReplacement.contains("$1")) {
+                    family = Rule.Template.all(osReplacement);
                 } else {
-                    family = this.osReplacement;
+                    family = osReplacement;
                 }
             } else if (groupCount >= 1) {
-                family = this.matcher.group(1);
-            }
-            String v1 = null;
-            if (this.v1Replacement != null) {
-                v1 = getReplacement(matcher, v1Replacement);
-            } else if (groupCount >= 2) {
-                v1 = this.matcher.group(2);
-            }
-            String v2 = null;
-            if (this.v2Replacement != null) {
-                v2 = getReplacement(matcher, v2Replacement);
-            } else if (groupCount >= 3) {
-                v2 = this.matcher.group(3);
-            }
-            String v3 = null;
-            if (this.v3Replacement != null) {
-                v3 = getReplacement(matcher, v3Replacement);
-            } else if (groupCount >= 4) {
-                v3 = this.matcher.group(4);
-            }
-            String v4 = null;
-            if (groupCount >= 5) {
-                v4 = this.matcher.group(5);
+                family = Rule.group(1);
             }
-            return family == null ? null : new OS(family, v1, v2, v3, v4);
+            return new Object[]{
+                family,
+                version(groupCount, v1Replacement, 2),
+                version(groupCount, v2Replacement, 3),
+                version(groupCount, v3Replacement, 4),
+                groupCount >= 5 ? Rule.group(5) : null
+            };
         }
 
-        private String getReplacement(Matcher matcher, String replacement) {
-            if (isBackReference(replacement)) {
-                int group = getGroup(replacement);
-                return matcher.group(group);
-            } else {
-                return replacement;
+        private static Object version(int groupCount, String replacement, int group) {
+            if (replacement != null) {
+                return isBackReference(replacement) ? Rule.group(getGroup(replacement)) : replacement;
             }
+            return groupCount >= group ? Rule.group(group) : null;
         }
 
         /**
          * Checks if the replacement is a backreference (i.e. $1, $2, $3, etc) to a capturing group in the regular expression.
          */
-        private boolean isBackReference(String replacement) {
+        private static boolean isBackReference(String replacement) {
             return replacement.startsWith("$");
         }
 
         /**
          * Extracts the group number from a backreference like $1, $2, $3, etc.
          */
-        private int getGroup(String backReference) {
+        private static int getGroup(String backReference) {
             return Integer.valueOf(backReference.substring(1));
         }
     }
@@ -0,0 +1,115 @@
+/*
+ * Licensed to Elasticsearch under one or more contributor
+ * license agreements. See the NOTICE file distributed with
+ * this work for additional information regarding copyright
+ * ownership. Elasticsearch licenses this file to you under
+ * the Apache License, Version 2.0 (the "License"); you may
+ * not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing,
+ * software distributed under the License is distributed on an
+ * "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+ * KIND, either express or implied.  See the License for the
+ * specific language governing permissions and limitations
+ * under the License.
+ */
+package org.logstash.uaparser;
+
+/**
+ * JDK Flight Recorder events of parsing and caching:
+ * <ul>
+ *     <li>{@code org.logstash.uaparser.Parse}: a parse, i.e. a cache miss of a
+ *     {@link CachingParser}, with the length of the agent string and the rule each component
+ *     matched</li>
+ *     <li>{@code org.logstash.uaparser.SlowParse}: a parse taking longer than its threshold,
+ *     10 ms by default, with the agent string</li>
+ *     <li>{@code org.logstash.uaparser.CacheEviction}: a client evicted from the cache of a
+ *     {@link CachingParser}</li>
+ * </ul>
+ * When no recording has the events enabled, reporting them costs a check of a flag.
+ *
+ * The events are defined by {@code FlightRecorderEvents}, compiled for Java 11 in its own
+ * source set (src/jfr) and loaded reflectively, so that the plugin still runs on Java 8. On JVMs
+ * without Flight Recorder nothing is recorded.
+ */
+final class ParseEvents {
+
+    /**
+     * Longest agent string recorded by events.
+     */
+    static final int MAX_AGENT_LENGTH = 1024;
+
+    private static final ParseEvents.Recorder RECORDER = ParseEvents.recorder();
+
+    private ParseEvents() {
+        // Utility Class
+    }
+
+    /**
+     * Starts timing a parse.
+     * @return Events of the parse, to pass to {@link #parsed}, {@code null} if not recorded
+     */
+    static Object parsing() {
+        return ParseEvents.RECORDER == null ? null : ParseEvents.RECORDER.parsing();
+    }
+
+    /**
+     * Ends timing a parse, recording it if it was started with events.
+     * @param events Events returned by {@link #parsing()}
+     * @param agentString Parsed agent string
+     * @param userAgent Index of the rule matching the user agent, {@link Rule#NO_INDEX} if none
+     * @param os Index of the rule matching the OS, {@link Rule#NO_INDEX} if none
+     * @param device Index of the rule matching the device, {@link Rule#NO_INDEX} if none
+     * @param limited Whether parsing was cut short by the {@link ParseLimits}
+     */
+    static void parsed(final Object events, final String agentString, final int userAgent,
+        final int os, final int device, final boolean limited) {
+        if (events != null) {
+            ParseEvents.RECORDER.parsed(events, agentString, userAgent, os, device, limited);
+        }
+    }
+
+    /**
+     * @param key Agent string of the evicted client
+     * @param size Number of cached clients
+     */
+    static void evicted(final CacheKey key, final int size) {
+        if (ParseEvents.RECORDER != null) {
+            ParseEvents.RECORDER.evicted(key, size);
+        }
+    }
+
+    static String truncate(final String agentString) {
+        return agentString.length() > ParseEvents.MAX_AGENT_LENGTH
+            ? agentString.substring(0, ParseEvents.MAX_AGENT_LENGTH) : agentString;
+    }
+
+    /**
+     * @return The Flight Recorder events, {@code null} if either they're not packaged, the JVM
+     * is older than Java 11 or Flight Recorder isn't available
+     */
+    private static ParseEvents.Recorder recorder() {
+        try {
+            return (ParseEvents.Recorder) Class.forName("org.logstash.uaparser.FlightRecorderEvents")
+                .getDeclaredConstructor().newInstance();
+        } catch (final ReflectiveOperationException | LinkageError ex) {
+            return null;
+        }
+    }
+
+    /**
+     * Records the events, see {@link ParseEvents} for their arguments.
+     */
+    interface Recorder {
+
+        Object parsing();
+
+        void parsed(Object events, String agentString, int userAgent, int os, int device,
+            boolean limited);
+
+        void evicted(CacheKey key, int size);
+    }
+}
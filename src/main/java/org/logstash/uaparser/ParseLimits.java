@@ -0,0 +1,190 @@
+/*
+ * Licensed to Elasticsearch under one or more contributor
+ * license agreements. See the NOTICE file distributed with
+ * this work for additional information regarding copyright
+ * ownership. Elasticsearch licenses this file to you under
+ * the Apache License, Version 2.0 (the "License"); you may
+ * not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing,
+ * software distributed under the License is distributed on an
+ * "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+ * KIND, either express or implied.  See the License for the
+ * specific language governing permissions and limitations
+ * under the License.
+ */
+package org.logstash.uaparser;
+
+import java.util.concurrent.atomic.LongAdder;
+
+/**
+ * Bounds the work spent parsing an agent string, so that hostile agent strings can't pin a
+ * worker with regexes that backtrack heavily.
+ *
+ * Agent strings longer than the max length aren't matched at all, and a parse stops once its
+ * regexes have read as many characters as the step budget allows. Either way the parse yields
+ * the fallback result, {@code "Other"} for each component, and is counted.
+ *
+ * Neither is bounded by default, so that no agent string parsed so far falls back unless the
+ * limits are set, for instance to {@link #RECOMMENDED_MAX_LENGTH} and
+ * {@link #RECOMMENDED_STEP_BUDGET}.
+ *
+ * Limits are shared by a parser and all the parsers its rules are reloaded into, and can be
+ * changed at any time.
+ */
+public final class ParseLimits {
+
+    /**
+     * Max length well above that of legitimate agent strings, in characters.
+     */
+    public static final int RECOMMENDED_MAX_LENGTH = 8192;
+
+    /**
+     * Step budget well above the characters read parsing legitimate agent strings.
+     */
+    public static final int RECOMMENDED_STEP_BUDGET = 5_000_000;
+
+    private volatile int maxLength;
+
+    private volatile int stepBudget;
+
+    private final LongAdder tooLong = new LongAdder();
+
+    private final LongAdder overBudget = new LongAdder();
+
+    /**
+     * @param maxLength Longest agent string matched, in characters, not bounded if not positive
+     */
+    public void maxLength(final int maxLength) {
+        this.maxLength = maxLength;
+    }
+
+    public int maxLength() {
+        return this.maxLength;
+    }
+
+    /**
+     * @param stepBudget Characters the regexes may read parsing one agent string, not bounded if
+     * not positive
+     */
+    public void stepBudget(final int stepBudget) {
+        this.stepBudget = stepBudget;
+    }
+
+    public int stepBudget() {
+        return this.stepBudget;
+    }
+
+    /**
+     * @return Number of agent strings which fell back for being longer than the max length
+     */
+    public long tooLong() {
+        return this.tooLong.sum();
+    }
+
+    /**
+     * @return Number of agent strings which fell back for exceeding the step budget
+     */
+    public long overBudget() {
+        return this.overBudget.sum();
+    }
+
+    /**
+     * Checks the length of an agent string, counting it if too long.
+     * @param agentString Agent string to parse
+     * @return Whether the agent string is short enough to be matched
+     */
+    boolean accepts(final String agentString) {
+        final int max = this.maxLength;
+        if (max > 0 && agentString.length() > max) {
+            this.tooLong.increment();
+            return false;
+        }
+        return true;
+    }
+
+    /**
+     * @param agentString Agent string to parse
+     * @return The agent string to run the regexes against for one parse
+     */
+    CharSequence input(final String agentString) {
+        final int budget = this.stepBudget;
+        return budget > 0 ? new ParseLimits.Budgeted(agentString, budget) : agentString;
+    }
+
+    /**
+     * @param input Input returned by {@link #input(String)}
+     * @return Number of characters the regexes read from it so far, 0 if its steps aren't
+     * counted
+     */
+    static int steps(final CharSequence input) {
+        return input instanceof ParseLimits.Budgeted ? ((ParseLimits.Budgeted) input).steps() : 0;
+    }
+
+    void exceeded() {
+        this.overBudget.increment();
+    }
+
+    /**
+     * Thrown by a {@link ParseLimits.Budgeted} input once its budget is spent, unwinding the
+     * regex evaluation. Preallocated, as hostile agent strings may throw it at a high rate.
+     */
+    static final class BudgetExceeded extends RuntimeException {
+
+        private static final long serialVersionUID = 1L;
+
+        static final ParseLimits.BudgetExceeded INSTANCE = new ParseLimits.BudgetExceeded();
+
+        private BudgetExceeded() {
+            super("User agent parse step budget exceeded", null, false, false);
+        }
+    }
+
+    /**
+     * An agent string counting the characters read from it.
+     */
+    private static final class Budgeted implements CharSequence {
+
+        private final String agentString;
+
+        private final int budget;
+
+        private int remaining;
+
+        Budgeted(final String agentString, final int budget) {
+            this.agentString = agentString;
+            this.budget = budget;
+            this.remaining = budget;
+        }
+
+        int steps() {
+            return Math.min(this.budget - this.remaining, this.budget);
+        }
+
+        @Override
+        public int length() {
+            return this.agentString.length();
+        }
+
+        @Override
+        public char charAt(final int index) {
+            if (--this.remaining < 0) {
+                throw ParseLimits.BudgetExceeded.INSTANCE;
+            }
+            return this.agentString.charAt(index);
+        }
+
+        @Override
+        public CharSequence subSequence(final int start, final int end) {
+            return this.agentString.subSequence(start, end);
+        }
+
+        @Override
+        public String toString() {
+            return this.agentString;
+        }
+    }
+}
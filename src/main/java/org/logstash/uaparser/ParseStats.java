@@ -0,0 +1,146 @@
+/*
+ * Licensed to Elasticsearch under one or more contributor
+ * license agreements. See the NOTICE file distributed with
+ * this work for additional information regarding copyright
+ * ownership. Elasticsearch licenses this file to you under
+ * the Apache License, Version 2.0 (the "License"); you may
+ * not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing,
+ * software distributed under the License is distributed on an
+ * "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+ * KIND, either express or implied.  See the License for the
+ * specific language governing permissions and limitations
+ * under the License.
+ */
+package org.logstash.uaparser;
+
+import java.util.EnumMap;
+import java.util.Map;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.LongAdder;
+
+/**
+ * Latency of matching each {@link Component} of the agent strings a parser parses, i.e. of the
+ * cache misses of a {@link CachingParser}, and the slowest of these parses.
+ *
+ * Shared by a parser and all the parsers its rules are reloaded into.
+ */
+public final class ParseStats {
+
+    private final Map<Component, ParseStats.Latency> latencies = new EnumMap<>(Component.class);
+
+    private final SlowParses slowest = new SlowParses();
+
+    /**
+     * Whether the rules are profiled, including those reloaded.
+     */
+    volatile boolean rulesProfiled;
+
+    ParseStats() {
+        for (final Component component : Component.values()) {
+            this.latencies.put(component, new ParseStats.Latency());
+        }
+    }
+
+    /**
+     * @param component Component
+     * @return Latency of matching the component
+     */
+    public ParseStats.Latency latency(final Component component) {
+        return this.latencies.get(component);
+    }
+
+    /**
+     * @return The slowest parses
+     */
+    public SlowParses slowest() {
+        return this.slowest;
+    }
+
+    /**
+     * Records the time matching a component took.
+     * @param component Matched component
+     * @param start {@link System#nanoTime()} when matching started
+     * @return {@link System#nanoTime()} when matching ended
+     */
+    long record(final Component component, final long start) {
+        final long end = System.nanoTime();
+        this.latencies.get(component).record(end - start);
+        return end;
+    }
+
+    /**
+     * A histogram of durations, with buckets bounded by powers of ten from 10 microseconds to
+     * 100 milliseconds.
+     */
+    public static final class Latency {
+
+        /**
+         * Inclusive upper bound of each bucket but the last one, which is unbounded.
+         */
+        private static final long[] BOUNDS = {
+            TimeUnit.MICROSECONDS.toNanos(10L),
+            TimeUnit.MICROSECONDS.toNanos(100L),
+            TimeUnit.MILLISECONDS.toNanos(1L),
+            TimeUnit.MILLISECONDS.toNanos(10L),
+            TimeUnit.MILLISECONDS.toNanos(100L)
+        };
+
+        private static final String[] NAMES = {
+            "le_10us", "le_100us", "le_1ms", "le_10ms", "le_100ms", "gt_100ms"
+        };
+
+        private final LongAdder[] buckets = new LongAdder[ParseStats.Latency.NAMES.length];
+
+        private final LongAdder total = new LongAdder();
+
+        Latency() {
+            for (int i = 0; i < this.buckets.length; ++i) {
+                this.buckets[i] = new LongAdder();
+            }
+        }
+
+        /**
+         * @return Number of buckets
+         */
+        public int buckets() {
+            return this.buckets.length;
+        }
+
+        /**
+         * @param bucket Bucket index
+         * @return Name of the bucket, after its bound, e.g. {@code "le_1ms"}
+         */
+        public String name(final int bucket) {
+            return ParseStats.Latency.NAMES[bucket];
+        }
+
+        /**
+         * @param bucket Bucket index
+         * @return Number of durations recorded in the bucket
+         */
+        public long count(final int bucket) {
+            return this.buckets[bucket].sum();
+        }
+
+        /**
+         * @return Sum of all the recorded durations, in nanoseconds
+         */
+        public long totalNanos() {
+            return this.total.sum();
+        }
+
+        void record(final long nanos) {
+            int bucket = 0;
+            while (bucket < ParseStats.Latency.BOUNDS.length && nanos > ParseStats.Latency.BOUNDS[bucket]) {
+                ++bucket;
+            }
+            this.buckets[bucket].increment();
+            this.total.add(nanos);
+        }
+    }
+}
@@ -19,10 +19,9 @@
 package org.logstash.uaparser;
 
 import java.io.InputStream;
+import java.util.ArrayList;
 import java.util.List;
-import java.util.Map;
-
-import org.yaml.snakeyaml.Yaml;
+import java.util.Set;
 
 /**
  * Java implementation of <a href="https://github.com/tobie/ua-parser">UA Parser</a>
@@ -32,22 +31,164 @@ public class Parser {
 
     private static final String REGEX_YAML_PATH = "/regexes.yaml";
 
+    /**
+     * Binary form of the bundled regexes.yaml, loaded instead of it when packaged.
+     */
+    private static final String REGEX_BINARY_PATH = "/regexes.bin";
+
+    private static final Set<Component> ALL = Component.all();
+
     private UserAgentParser uaParser;
     private OSParser osParser;
     private DeviceParser deviceParser;
 
+    private ParseLimits limits = new ParseLimits();
+
+    private ParseStats stats = new ParseStats();
+
     public Parser() {
-        this(Parser.class.getResourceAsStream(Parser.REGEX_YAML_PATH));
+        this(Parser.defaultRules());
     }
 
+    /**
+     * @param regexYaml Rules, either as a regexes.yaml or in the binary form produced by
+     * {@link RuleSet#main(String[])}
+     */
     public Parser(InputStream regexYaml) {
-        initialize(regexYaml);
+        this(RuleSet.load(regexYaml));
+    }
+
+    Parser(RuleSet rules) {
+        this.uaParser = UserAgentParser.fromDefinitions(rules.userAgents());
+        this.osParser = OSParser.fromDefinitions(rules.os());
+        this.deviceParser = DeviceParser.fromDefinitions(rules.devices());
+    }
+
+    private Parser(UserAgentParser uaParser, OSParser osParser, DeviceParser deviceParser,
+        ParseLimits limits, ParseStats stats) {
+        this.uaParser = uaParser;
+        this.osParser = osParser;
+        this.deviceParser = deviceParser;
+        this.limits = limits;
+        this.stats = stats;
+    }
+
+    /**
+     * For subclasses delegating parsing to another parser, which must override every method
+     * using the rules: this parser holds none, so that replacing the delegate's rules doesn't
+     * leave stale ones behind.
+     * @param delegate Parser whose limits and stats are shared with this one
+     */
+    Parser(Parser delegate) {
+        this.limits = delegate.limits;
+        this.stats = delegate.stats;
     }
 
     public Client parse(String agentString) {
-        return new Client(
-            parseUserAgent(agentString), parseOS(agentString), this.deviceParser.parse(agentString)
-        );
+        return parse(agentString, agentString);
+    }
+
+    /**
+     * @return Limits of the work spent by {@link #parse(String)} on each agent string
+     */
+    public ParseLimits limits() {
+        return this.limits;
+    }
+
+    /**
+     * @return Latency of {@link #parse(String)} for each component
+     */
+    public ParseStats stats() {
+        return this.stats;
+    }
+
+    /**
+     * Parses an agent string, the result retaining an equivalent {@code source} to materialize
+     * its values from.
+     * @param agentString Agent string to parse
+     * @param source Agent string retained by the result, with the same content as
+     * {@code agentString}
+     * @return Parsed data
+     */
+    Client parse(String agentString, CharSequence source) {
+        return parse(agentString, source, Parser.ALL);
+    }
+
+    /**
+     * Parses the given components of an agent string, the others being left {@code null} in
+     * the result.
+     *
+     * Agent strings exceeding the {@link #limits()} yield {@code "Other"} for every component.
+     * @param agentString Agent string to parse
+     * @param source Agent string retained by the result, with the same content as
+     * {@code agentString}
+     * @param components Components to parse
+     * @return Parsed data
+     */
+    Client parse(String agentString, CharSequence source, Set<Component> components) {
+        if (agentString == null) {
+            return new Client(null, null, (String) null);
+        }
+        final Object events = ParseEvents.parsing();
+        if (!this.limits.accepts(agentString)) {
+            ParseEvents.parsed(events, agentString, Rule.NO_INDEX, Rule.NO_INDEX, Rule.NO_INDEX, true);
+            return Parser.fallback(components);
+        }
+        final RegexRule.Input input = new RegexRule.Input(this.limits.input(agentString));
+        UserAgent userAgent = null;
+        OS os = null;
+        Device device = null;
+        final long[] nanos = {-1L, -1L, -1L};
+        long start = System.nanoTime();
+        try {
+            if (components.contains(Component.USER_AGENT)) {
+                userAgent = this.uaParser.parse(agentString, input, source);
+                start = this.record(Component.USER_AGENT, start, nanos);
+            }
+            if (components.contains(Component.OS)) {
+                os = this.osParser.parse(agentString, input, source);
+                start = this.record(Component.OS, start, nanos);
+            }
+            if (components.contains(Component.DEVICE)) {
+                device = this.deviceParser.parse(agentString, input, source);
+                this.record(Component.DEVICE, start, nanos);
+            }
+        } catch (final ParseLimits.BudgetExceeded ex) {
+            this.limits.exceeded();
+            // the time spent until the budget ran out goes to the first component not recorded
+            for (final Component component : Component.values()) {
+                if (components.contains(component) && nanos[component.ordinal()] < 0L) {
+                    nanos[component.ordinal()] = System.nanoTime() - start;
+                    break;
+                }
+            }
+            this.stats.slowest().offer(
+                agentString, nanos, new int[] {Rule.NO_INDEX, Rule.NO_INDEX, Rule.NO_INDEX}, true
+            );
+            ParseEvents.parsed(events, agentString, Rule.NO_INDEX, Rule.NO_INDEX, Rule.NO_INDEX, true);
+            return Parser.fallback(components);
+        }
+        final int[] rules = {
+            userAgent == null ? Rule.NO_INDEX : userAgent.ruleIndex(),
+            os == null ? Rule.NO_INDEX : os.ruleIndex(),
+            device == null ? Rule.NO_INDEX : device.ruleIndex()
+        };
+        this.stats.slowest().offer(agentString, nanos, rules, false);
+        ParseEvents.parsed(events, agentString, rules[0], rules[1], rules[2], false);
+        return new Client(userAgent, os, device, source);
+    }
+
+    /**
+     * Records the time matching a component took.
+     * @param component Matched component
+     * @param start {@link System#nanoTime()} when matching started
+     * @param nanos Time spent on each component, indexed by ordinal
+     * @return {@link System#nanoTime()} when matching ended
+     */
+    private long record(final Component component, final long start, final long[] nanos) {
+        final long end = this.stats.record(component, start);
+        nanos[component.ordinal()] = end - start;
+        return end;
     }
 
     public UserAgent parseUserAgent(String agentString) {
@@ -62,26 +203,102 @@ public class Parser {
         return this.osParser.parse(agentString);
     }
 
-    @SuppressWarnings("unchecked")
-    private void initialize(InputStream regexYaml) {
-        final Yaml yaml = new Yaml();
+    /**
+     * Compiles the regexes of all the rules, which otherwise are compiled when first evaluated.
+     * The rules of each section are compiled in parallel on a bounded pool.
+     */
+    public void compileAll() {
+        this.uaParser.compileAll();
+        this.osParser.compileAll();
+        this.deviceParser.compileAll();
+    }
 
-        final Map<String, List<Map<String, String>>> regexConfig =
-            (Map<String, List<Map<String, String>>>) yaml.load(regexYaml);
-        List<Map<String, String>> uaParserConfigs = regexConfig.get("user_agent_parsers");
-        if (uaParserConfigs == null) {
-            throw new IllegalArgumentException("user_agent_parsers is missing from yaml");
-        }
-        this.uaParser = UserAgentParser.fromList(uaParserConfigs);
-        List<Map<String, String>> osParserConfigs = regexConfig.get("os_parsers");
-        if (osParserConfigs == null) {
-            throw new IllegalArgumentException("os_parsers is missing from yaml");
+    /**
+     * Starts or stops profiling the rules, i.e. counting how many agent strings each rule is
+     * evaluated against, how many it matches and the time spent evaluating it. Profiling adds
+     * a few timer reads per rule evaluated, stopping it discards the counts.
+     * @param enabled Whether to profile the rules
+     */
+    public void profileRules(boolean enabled) {
+        this.stats.rulesProfiled = enabled;
+        this.uaParser.profile(enabled);
+        this.osParser.profile(enabled);
+        this.deviceParser.profile(enabled);
+    }
+
+    /**
+     * @return Counts of the profiled rules, the costliest first, none unless
+     * {@link #profileRules(boolean)} was enabled
+     */
+    public List<RuleProfile> ruleProfile() {
+        final List<RuleProfile> profiles = new ArrayList<>();
+        this.uaParser.profiles(profiles);
+        this.osParser.profiles(profiles);
+        this.deviceParser.profiles(profiles);
+        profiles.sort(RuleProfile.BY_COST);
+        return profiles;
+    }
+
+    /**
+     * Runs {@link #compileAll()} on a daemon thread, returning right away.
+     * @return The compiling thread
+     */
+    public Thread compileInBackground() {
+        final Thread thread = new Thread(this::compileAll, "useragent-regex-compiler");
+        thread.setDaemon(true);
+        thread.start();
+        return thread;
+    }
+
+    /**
+     * @param rules Rules replacing this parser's ones
+     * @return Parser of the given rules, sharing this parser's rules of each section up to the
+     * first one which changed
+     */
+    Parser reload(RuleSet rules) {
+        final Parser reloaded = new Parser(
+            this.uaParser.reload(rules.userAgents()),
+            this.osParser.reload(rules.os()),
+            this.deviceParser.reload(rules.devices()),
+            this.limits,
+            this.stats
+        );
+        if (this.stats.rulesProfiled) {
+            reloaded.profileRules(true);
         }
-        this.osParser = OSParser.fromList(osParserConfigs);
-        List<Map<String, String>> deviceParserConfigs = regexConfig.get("device_parsers");
-        if (deviceParserConfigs == null) {
-            throw new IllegalArgumentException("device_parsers is missing from yaml");
+        return reloaded;
+    }
+
+    /**
+     * @param rules Rules replacing this parser's ones
+     * @return Index of the first rule of each section which changed, was added or removed, in
+     * {@link Component} order, {@link Integer#MAX_VALUE} for sections which did not change
+     */
+    int[] unchanged(RuleSet rules) {
+        return new int[]{
+            this.uaParser.unchanged(rules.userAgents()),
+            this.osParser.unchanged(rules.os()),
+            this.deviceParser.unchanged(rules.devices())
+        };
+    }
+
+    private static Client fallback(Set<Component> components) {
+        return new Client(
+            components.contains(Component.USER_AGENT) ? UserAgentParser.OTHER : null,
+            components.contains(Component.OS) ? OSParser.OTHER : null,
+            components.contains(Component.DEVICE) ? DeviceParser.OTHER : null,
+            null
+        );
+    }
+
+    /**
+     * @return The bundled rules, in the binary form when packaged
+     */
+    static InputStream defaultRules() {
+        final InputStream binary = Parser.class.getResourceAsStream(Parser.REGEX_BINARY_PATH);
+        if (binary != null) {
+            return binary;
         }
-        this.deviceParser = DeviceParser.fromList(deviceParserConfigs);
+        return Parser.class.getResourceAsStream(Parser.REGEX_YAML_PATH);
     }
 }
@@ -0,0 +1,1442 @@
+/*
+ * Licensed to Elasticsearch under one or more contributor
+ * license agreements. See the NOTICE file distributed with
+ * this work for additional information regarding copyright
+ * ownership. Elasticsearch licenses this file to you under
+ * the Apache License, Version 2.0 (the "License"); you may
+ * not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing,
+ * software distributed under the License is distributed on an
+ * "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+ * KIND, either express or implied.  See the License for the
+ * specific language governing permissions and limitations
+ * under the License.
+ */
+package org.logstash.uaparser;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.UncheckedIOException;
+import java.nio.file.Files;
+import java.nio.file.Paths;
+import java.util.ArrayList;
+import java.util.BitSet;
+import java.util.Comparator;
+import java.util.EnumMap;
+import java.util.HashSet;
+import java.util.IdentityHashMap;
+import java.util.List;
+import java.util.Locale;
+import java.util.Map;
+import java.util.Set;
+import java.util.regex.Matcher;
+
+/**
+ * Finds the rules of a regexes file that crafted agent strings can make backtrack heavily.
+ *
+ * Each regex is first checked statically for quantifiers whose characters overlap with what
+ * may follow them, either within an enclosing quantifier ({@link RegexAnalyzer.Risk#NESTED})
+ * or in sequence ({@link RegexAnalyzer.Risk#OVERLAPPING}), and for quantified alternations
+ * with overlapping branches ({@link RegexAnalyzer.Risk#ALTERNATION}). Those give several ways
+ * of matching a repeated character, which a failing match then goes through. The flagged
+ * rules are then run, as the parser does, against agent strings built from the regex: what
+ * precedes the quantifier, the overlapping characters repeated and a character failing the
+ * match. The characters the regex reads are counted at growing lengths, up to the parser's
+ * max length, or {@link ParseLimits#RECOMMENDED_MAX_LENGTH} if it has none.
+ *
+ * A rule is dangerous when one such agent string alone reaches the parser's step budget, or
+ * {@link ParseLimits#RECOMMENDED_STEP_BUDGET} if it has none, i.e.
+ * gets its fields set to {@code "Other"} after the longest work the budget allows, or
+ * overflows the stack of the regex engine. The
+ * character sets are approximated to ASCII and the agent strings are heuristic, so a rule that
+ * isn't dangerous may still be slow on other agent strings.
+ *
+ * {@link #verify(InputStream, String)} trusts the rules identical to those of the bundled
+ * regexes.yaml, which has a few dangerous ones: most custom files are copies of it, and the
+ * agent strings making those work too long fall back to {@code "Other"} like any other.
+ */
+public final class RegexAnalyzer {
+
+    /**
+     * Quantifiers repeating more than this are considered for backtracking.
+     */
+    private static final int LARGE = 16;
+
+    /**
+     * Shortest agent string tried.
+     */
+    private static final int MIN_LENGTH = 256;
+
+    /**
+     * Bit standing for all non-ASCII characters in character sets.
+     */
+    private static final int NON_ASCII = 128;
+
+    private static final String EXAMPLES =
+        "abcdefghijklmnopqrstuvwxyzABCDEFGHIJKLMNOPQRSTUVWXYZ0123456789 ./;-_()";
+
+    private static final String FAILING = "!\u0001~#\"\n";
+
+    private final ParseLimits limits;
+
+    /**
+     * Analyzes rules against the recommended limits, see {@link ParseLimits}.
+     */
+    public RegexAnalyzer() {
+        this(new ParseLimits());
+    }
+
+    /**
+     * @param limits Limits of the parser the rules are to be loaded into, read on each analysis
+     */
+    public RegexAnalyzer(final ParseLimits limits) {
+        this.limits = limits;
+    }
+
+    /**
+     * @param path Regexes file, YAML or binary
+     * @return Findings, the worst first
+     * @throws IOException On failure to read the file
+     */
+    public List<RegexAnalyzer.Finding> analyze(final String path) throws IOException {
+        try (InputStream input = Files.newInputStream(Paths.get(path))) {
+            return this.analyze(input);
+        }
+    }
+
+    /**
+     * @param rules Regexes file, YAML or binary
+     * @return Findings, the worst first
+     */
+    public List<RegexAnalyzer.Finding> analyze(final InputStream rules) {
+        return this.analyze(RuleSet.load(rules), false);
+    }
+
+    /**
+     * Refuses a regexes file with dangerous rules, see {@link #verify(InputStream, String)}.
+     * @param path Regexes file, YAML or binary
+     * @throws IOException On failure to read the file
+     * @throws IllegalArgumentException Listing the dangerous rules, if any
+     */
+    public void verify(final String path) throws IOException {
+        try (InputStream input = Files.newInputStream(Paths.get(path))) {
+            this.verify(input, path);
+        }
+    }
+
+    /**
+     * Refuses rules with dangerous ones, other than those identical to the rules of the bundled
+     * regexes.yaml in the same section.
+     * @param rules Regexes file, YAML or binary
+     * @param name Name of the rules, e.g. their path, for the error
+     * @throws IllegalArgumentException Listing the dangerous rules, if any
+     */
+    public void verify(final InputStream rules, final String name) {
+        final StringBuilder dangerous = new StringBuilder();
+        for (final RegexAnalyzer.Finding finding : this.analyze(RuleSet.load(rules), true)) {
+            if (finding.dangerous()) {
+                dangerous.append(System.lineSeparator()).append(finding);
+            }
+        }
+        if (dangerous.length() > 0) {
+            throw new IllegalArgumentException(
+                "User agent regexes " + name + " have rules crafted agent strings make exceed the "
+                    + "step budget:" + dangerous
+            );
+        }
+    }
+
+    /**
+     * Prints the dangerous rules of a regexes file and the worst of the other flagged ones,
+     * exiting with status 2 if any is dangerous.
+     * @param args Path to the regexes file, then optionally {@code --max-length} and
+     * {@code --step-budget} to analyze against other limits than the recommended ones, and
+     * {@code --top} for the number of rules that aren't dangerous to print (20 by default)
+     * @throws IOException On failure to read the file
+     */
+    public static void main(final String[] args) throws IOException {
+        if (args.length % 2 != 1) {
+            System.err.println(
+                "Usage: RegexAnalyzer <regexes.yaml> [--max-length <chars>] [--step-budget <chars>] "
+                    + "[--top <rules>]"
+            );
+            System.exit(1);
+        }
+        final ParseLimits limits = new ParseLimits();
+        int top = 20;
+        for (int i = 1; i < args.length; i += 2) {
+            if ("--max-length".equals(args[i])) {
+                limits.maxLength(Integer.parseInt(args[i + 1]));
+            } else if ("--top".equals(args[i])) {
+                top = Integer.parseInt(args[i + 1]);
+            } else if ("--step-budget".equals(args[i])) {
+                limits.stepBudget(Integer.parseInt(args[i + 1]));
+            } else {
+                System.err.println("Unknown option " + args[i]);
+                System.exit(1);
+            }
+        }
+        final long start = System.nanoTime();
+        final List<RegexAnalyzer.Finding> findings = new RegexAnalyzer(limits).analyze(args[0]);
+        int dangerous = 0;
+        for (final RegexAnalyzer.Finding finding : findings) {
+            if (finding.dangerous()) {
+                ++dangerous;
+            } else if (top-- <= 0) {
+                break;
+            }
+            System.out.println(finding);
+        }
+        System.out.printf(
+            Locale.ROOT, "%d rules flagged, %d dangerous, analyzed in %dms%n", findings.size(),
+            dangerous, (System.nanoTime() - start) / 1_000_000L
+        );
+        if (dangerous > 0) {
+            System.exit(2);
+        }
+    }
+
+    /**
+     * @param set Rules to analyze
+     * @param trustBundled Whether to skip the rules identical to the bundled ones
+     * @return Findings, the worst first
+     */
+    private List<RegexAnalyzer.Finding> analyze(final RuleSet set, final boolean trustBundled) {
+        final Map<Component, Set<String>> trusted = trustBundled
+            ? RegexAnalyzer.Bundled.RULES : new EnumMap<>(Component.class);
+        final List<RegexAnalyzer.Finding> findings = new ArrayList<>();
+        this.analyze(
+            Component.USER_AGENT, set.userAgents(), trusted.get(Component.USER_AGENT), findings
+        );
+        this.analyze(Component.OS, set.os(), trusted.get(Component.OS), findings);
+        this.analyze(Component.DEVICE, set.devices(), trusted.get(Component.DEVICE), findings);
+        findings.sort(RegexAnalyzer.Finding.WORST_FIRST);
+        return findings;
+    }
+
+    /**
+     * @param trusted Keys of the rules to skip, see {@link #key(RuleDefinition)}, {@code null}
+     * to analyze all
+     */
+    private void analyze(final Component component, final List<RuleDefinition> definitions,
+        final Set<String> trusted, final List<RegexAnalyzer.Finding> findings) {
+        for (int i = 0; i < definitions.size(); ++i) {
+            if (trusted != null && trusted.contains(RegexAnalyzer.key(definitions.get(i)))) {
+                continue;
+            }
+            final RegexAnalyzer.Finding finding = this.analyze(component, i, definitions.get(i));
+            if (finding != null) {
+                findings.add(finding);
+            }
+        }
+    }
+
+    /**
+     * @return The worst finding of the rule, {@code null} if its regex has no risky quantifier
+     */
+    private RegexAnalyzer.Finding analyze(final Component component, final int index,
+        final RuleDefinition definition) {
+        final String regex = definition.get("regex");
+        if (regex == null) {
+            return null;
+        }
+        final RegexAnalyzer.Node root = new RegexAnalyzer.Syntax(
+            regex, "i".equals(definition.get("regex_flag"))
+        ).parse();
+        final Map<RegexAnalyzer.Node, RegexAnalyzer.Candidate> candidates = new IdentityHashMap<>();
+        root.scan(new BitSet(), null, candidates);
+        if (candidates.isEmpty()) {
+            return null;
+        }
+        final Matcher matcher = definition.compile().matcher("");
+        RegexAnalyzer.Finding worst = null;
+        for (final RegexAnalyzer.Candidate candidate : candidates.values()) {
+            final RegexAnalyzer.Finding finding =
+                this.run(component, index, definition, matcher, root, candidate);
+            if (worst == null || RegexAnalyzer.Finding.WORST_FIRST.compare(finding, worst) < 0) {
+                worst = finding;
+            }
+        }
+        return worst;
+    }
+
+    /**
+     * Runs the regex against agent strings pumping the candidate's quantifier, halving their
+     * length from the max length while they reach the step budget.
+     */
+    private RegexAnalyzer.Finding run(final Component component, final int index,
+        final RuleDefinition definition, final Matcher matcher, final RegexAnalyzer.Node root,
+        final RegexAnalyzer.Candidate candidate) {
+        final int maxLength = this.limits.maxLength() > 0
+            ? this.limits.maxLength() : ParseLimits.RECOMMENDED_MAX_LENGTH;
+        final int budget = this.limits.stepBudget() > 0
+            ? this.limits.stepBudget() : ParseLimits.RECOMMENDED_STEP_BUDGET;
+        final StringBuilder prefix = new StringBuilder();
+        root.prefix(candidate.node, prefix);
+        final StringBuilder unit = new StringBuilder();
+        candidate.node.body().example(unit, candidate.overlap);
+        if (unit.length() == 0) {
+            unit.append(RegexAnalyzer.pick(candidate.overlap, candidate.overlap));
+        }
+        final BitSet matched = candidate.node.body().chars();
+        matched.or(candidate.overlap);
+        final char failing = RegexAnalyzer.failing(matched);
+        final String literal = definition.literal();
+        int length = maxLength;
+        RegexAnalyzer.Run worst = RegexAnalyzer.Run.of(
+            definition, matcher, RegexAnalyzer.input(prefix, unit, failing, literal, length), budget
+        );
+        double degree = Double.NaN;
+        if (worst.exceeds(budget)) {
+            // the shortest agent string still reaching the budget ranks the rule
+            while (length / 2 >= RegexAnalyzer.MIN_LENGTH) {
+                length /= 2;
+                final RegexAnalyzer.Run shorter = RegexAnalyzer.Run.of(
+                    definition, matcher, RegexAnalyzer.input(prefix, unit, failing, literal, length),
+                    budget
+                );
+                if (!shorter.exceeds(budget)) {
+                    break;
+                }
+                worst = shorter;
+            }
+        } else if (length / 2 >= RegexAnalyzer.MIN_LENGTH) {
+            // steps at half the length tell how they grow
+            final RegexAnalyzer.Run half = RegexAnalyzer.Run.of(
+                definition, matcher, RegexAnalyzer.input(prefix, unit, failing, literal, length / 2),
+                budget
+            );
+            if (half.steps > 0) {
+                degree = Math.log((double) worst.steps / half.steps) / Math.log(2.0);
+            }
+        }
+        matcher.reset("");
+        return new RegexAnalyzer.Finding(
+            component, index, definition.get("regex"), candidate.risk, worst.input, worst.steps,
+            worst.nanos, degree, worst.overflow, worst.exceeds(budget)
+        );
+    }
+
+    /**
+     * @return What the backtracking of a rule depends on, its regex and flag
+     */
+    private static String key(final RuleDefinition definition) {
+        return definition.get("regex_flag") + "/" + definition.get("regex");
+    }
+
+    private static String input(final CharSequence prefix, final CharSequence unit,
+        final char failing, final String literal, final int length) {
+        final StringBuilder input = new StringBuilder(length + 1).append(prefix).append(unit);
+        final int tail = literal == null ? 1 : 1 + literal.length();
+        while (input.length() + unit.length() + tail <= length) {
+            input.append(unit);
+        }
+        input.append(failing);
+        // agent strings without the required literal are skipped before running the regex
+        if (literal != null && input.indexOf(literal) < 0) {
+            input.append(literal);
+        }
+        return input.toString();
+    }
+
+    /**
+     * @return A character the repeated characters don't match, failing the match
+     */
+    private static char failing(final BitSet matched) {
+        for (int i = 0; i < RegexAnalyzer.FAILING.length(); ++i) {
+            final char c = RegexAnalyzer.FAILING.charAt(i);
+            if (!matched.get(c)) {
+                return c;
+            }
+        }
+        return '\n';
+    }
+
+    /**
+     * @param set Characters to pick from
+     * @param prefer Characters to pick preferably
+     * @return A readable character of the set
+     */
+    private static char pick(final BitSet set, final BitSet prefer) {
+        final BitSet both = (BitSet) set.clone();
+        both.and(prefer);
+        final BitSet from = both.isEmpty() ? set : both;
+        for (int i = 0; i < RegexAnalyzer.EXAMPLES.length(); ++i) {
+            if (from.get(RegexAnalyzer.EXAMPLES.charAt(i))) {
+                return RegexAnalyzer.EXAMPLES.charAt(i);
+            }
+        }
+        final int printable = from.nextSetBit(' ');
+        if (printable >= 0 && printable < 127) {
+            return (char) printable;
+        }
+        if (from.get(RegexAnalyzer.NON_ASCII)) {
+            return '\u00e9';
+        }
+        final int any = from.nextSetBit(0);
+        return any >= 0 && any < RegexAnalyzer.NON_ASCII ? (char) any : 'a';
+    }
+
+    private static void add(final Map<RegexAnalyzer.Node, RegexAnalyzer.Candidate> candidates,
+        final RegexAnalyzer.Repeat node, final RegexAnalyzer.Risk risk, final BitSet overlap) {
+        final RegexAnalyzer.Candidate existing = candidates.get(node);
+        if (existing == null || risk.ordinal() < existing.risk.ordinal()) {
+            candidates.put(node, new RegexAnalyzer.Candidate(node, risk, overlap));
+        }
+    }
+
+    private static BitSet range(final int from, final int to) {
+        final BitSet set = new BitSet(RegexAnalyzer.NON_ASCII + 1);
+        set.set(from, to + 1);
+        return set;
+    }
+
+    private static BitSet complement(final BitSet set) {
+        final BitSet complement = RegexAnalyzer.range(0, RegexAnalyzer.NON_ASCII);
+        complement.andNot(set);
+        complement.set(RegexAnalyzer.NON_ASCII);
+        return complement;
+    }
+
+    /**
+     * Why a quantifier may backtrack heavily, from the worst.
+     */
+    public enum Risk {
+
+        /**
+         * A quantifier within another one matches characters that may follow it, e.g.
+         * {@code (\w+\s?)+}.
+         */
+        NESTED,
+
+        /**
+         * A quantified alternation has branches starting with the same characters, e.g.
+         * {@code (a|ab)+}.
+         */
+        ALTERNATION,
+
+        /**
+         * A quantifier matches characters that may follow it, e.g. {@code \d+\d+}.
+         */
+        OVERLAPPING
+    }
+
+    /**
+     * A rule with a risky quantifier, and the work the worst agent string tried takes.
+     */
+    public static final class Finding {
+
+        /**
+         * Orders findings by decreasing danger: dangerous rules first, then by decreasing
+         * steps and increasing length of the agent string.
+         */
+        public static final Comparator<RegexAnalyzer.Finding> WORST_FIRST =
+            Comparator.comparing(RegexAnalyzer.Finding::dangerous).reversed()
+                .thenComparing(Comparator.comparingLong(RegexAnalyzer.Finding::steps).reversed())
+                .thenComparingInt(RegexAnalyzer.Finding::length);
+
+        private final Component component;
+
+        private final int index;
+
+        private final String regex;
+
+        private final RegexAnalyzer.Risk risk;
+
+        private final String input;
+
+        private final long steps;
+
+        private final long nanos;
+
+        private final double degree;
+
+        private final boolean overflow;
+
+        private final boolean dangerous;
+
+        Finding(final Component component, final int index, final String regex,
+            final RegexAnalyzer.Risk risk, final String input, final long steps, final long nanos,
+            final double degree, final boolean overflow, final boolean dangerous) {
+            this.component = component;
+            this.index = index;
+            this.regex = regex;
+            this.risk = risk;
+            this.input = input;
+            this.steps = steps;
+            this.nanos = nanos;
+            this.degree = degree;
+            this.overflow = overflow;
+            this.dangerous = dangerous;
+        }
+
+        /**
+         * @return Section of the rule
+         */
+        public Component component() {
+            return this.component;
+        }
+
+        /**
+         * @return Index of the rule in its section
+         */
+        public int index() {
+            return this.index;
+        }
+
+        public String regex() {
+            return this.regex;
+        }
+
+        public RegexAnalyzer.Risk risk() {
+            return this.risk;
+        }
+
+        /**
+         * @return The worst agent string tried, the shortest reaching the step budget if any did
+         */
+        public String input() {
+            return this.input;
+        }
+
+        public int length() {
+            return this.input.length();
+        }
+
+        /**
+         * @return Characters the regex read matching the agent string, capped to the step budget
+         */
+        public long steps() {
+            return this.steps;
+        }
+
+        /**
+         * @return Time spent matching the agent string, in nanoseconds
+         */
+        public long nanos() {
+            return this.nanos;
+        }
+
+        /**
+         * @return Estimated {@code k} of steps growing as {@code length^k}, from the agent string
+         * and one half as long, {@link Double#NaN} for dangerous rules
+         */
+        public double degree() {
+            return this.degree;
+        }
+
+        /**
+         * @return Whether matching the agent string overflowed the stack, which the step budget
+         * doesn't guard against
+         */
+        public boolean overflow() {
+            return this.overflow;
+        }
+
+        /**
+         * @return Whether the agent string reaches the step budget or overflows the stack
+         */
+        public boolean dangerous() {
+            return this.dangerous;
+        }
+
+        @Override
+        public String toString() {
+            return String.format(
+                Locale.ROOT, "%s%s[%d] %s quantifier, %s%d steps%s at %d chars in %.3fms: %s",
+                this.dangerous ? "DANGEROUS " : "",
+                this.component.name().toLowerCase(Locale.ROOT), this.index,
+                this.risk.name().toLowerCase(Locale.ROOT),
+                this.overflow ? "stack overflow after " : "", this.steps,
+                Double.isNaN(this.degree) ? "" : String.format(Locale.ROOT, " (~n^%.1f)", this.degree),
+                this.input.length(), this.nanos / 1_000_000.0, this.regex
+            );
+        }
+    }
+
+    /**
+     * The rules of the bundled regexes.yaml, loaded when first needed.
+     */
+    private static final class Bundled {
+
+        /**
+         * Keys of the bundled rules of each section, see {@link RegexAnalyzer#key(RuleDefinition)}.
+         */
+        static final Map<Component, Set<String>> RULES = Bundled.load();
+
+        private static Map<Component, Set<String>> load() {
+            final RuleSet set;
+            try (InputStream input = Parser.defaultRules()) {
+                set = RuleSet.load(input);
+            } catch (final IOException ex) {
+                throw new UncheckedIOException(ex);
+            }
+            final Map<Component, Set<String>> rules = new EnumMap<>(Component.class);
+            rules.put(Component.USER_AGENT, Bundled.keys(set.userAgents()));
+            rules.put(Component.OS, Bundled.keys(set.os()));
+            rules.put(Component.DEVICE, Bundled.keys(set.devices()));
+            return rules;
+        }
+
+        private static Set<String> keys(final List<RuleDefinition> definitions) {
+            final Set<String> keys = new HashSet<>(definitions.size() * 2);
+            for (final RuleDefinition definition : definitions) {
+                keys.add(RegexAnalyzer.key(definition));
+            }
+            return keys;
+        }
+    }
+
+    /**
+     * A quantifier flagged statically, with the characters it shares with what may follow it.
+     */
+    private static final class Candidate {
+
+        private final RegexAnalyzer.Repeat node;
+
+        private final RegexAnalyzer.Risk risk;
+
+        private final BitSet overlap;
+
+        Candidate(final RegexAnalyzer.Repeat node, final RegexAnalyzer.Risk risk,
+            final BitSet overlap) {
+            this.node = node;
+            this.risk = risk;
+            this.overlap = overlap;
+        }
+    }
+
+    /**
+     * A match of a regex against an agent string, counting the characters it read.
+     */
+    private static final class Run {
+
+        private final String input;
+
+        private final int steps;
+
+        private final long nanos;
+
+        private final boolean overflow;
+
+        private Run(final String input, final int steps, final long nanos,
+            final boolean overflow) {
+            this.input = input;
+            this.steps = steps;
+            this.nanos = nanos;
+            this.overflow = overflow;
+        }
+
+        static RegexAnalyzer.Run of(final RuleDefinition definition, final Matcher matcher,
+            final String input, final int budget) {
+            final ParseLimits limits = new ParseLimits();
+            limits.stepBudget(budget);
+            final CharSequence counted = limits.input(input);
+            final long start = System.nanoTime();
+            boolean overflow = false;
+            try {
+                matcher.reset(counted);
+                if (definition.anchored()) {
+                    matcher.lookingAt();
+                } else {
+                    matcher.find();
+                }
+            } catch (final ParseLimits.BudgetExceeded ex) {
+                // counted as the whole budget
+            } catch (final StackOverflowError ex) {
+                // the regex recurses once per repetition of some groups
+                overflow = true;
+            }
+            return new RegexAnalyzer.Run(
+                input, ParseLimits.steps(counted), System.nanoTime() - start, overflow
+            );
+        }
+
+        boolean exceeds(final int budget) {
+            return this.overflow || this.steps >= budget;
+        }
+    }
+
+    /**
+     * A node of a parsed regex, with the ASCII characters it may match.
+     */
+    private abstract static class Node {
+
+        /**
+         * @return Whether the node may match the empty string
+         */
+        abstract boolean nullable();
+
+        /**
+         * @return Characters a match of the node may start with
+         */
+        abstract BitSet first();
+
+        /**
+         * @return Characters a match of the node may contain
+         */
+        abstract BitSet chars();
+
+        /**
+         * Appends a short string the node matches.
+         * @param out String to append to
+         * @param prefer Characters to use where the node allows
+         */
+        abstract void example(StringBuilder out, BitSet prefer);
+
+        /**
+         * Appends a string the node matches up to the target node.
+         * @return Whether the target was reached, the whole node's example is appended if not
+         */
+        abstract boolean prefix(RegexAnalyzer.Node target, StringBuilder out);
+
+        /**
+         * Flags the risky quantifiers of the node.
+         * @param follow Characters that may follow a match of the node
+         * @param loop Innermost enclosing quantifier that may backtrack, {@code null} if none
+         * @param candidates Flagged quantifiers
+         */
+        abstract void scan(BitSet follow, RegexAnalyzer.Repeat loop,
+            Map<RegexAnalyzer.Node, RegexAnalyzer.Candidate> candidates);
+    }
+
+    private static final class Chars extends RegexAnalyzer.Node {
+
+        private final BitSet set;
+
+        Chars(final BitSet set) {
+            this.set = set;
+        }
+
+        @Override
+        boolean nullable() {
+            return false;
+        }
+
+        @Override
+        BitSet first() {
+            return (BitSet) this.set.clone();
+        }
+
+        @Override
+        BitSet chars() {
+            return (BitSet) this.set.clone();
+        }
+
+        @Override
+        void example(final StringBuilder out, final BitSet prefer) {
+            out.append(RegexAnalyzer.pick(this.set, prefer));
+        }
+
+        @Override
+        boolean prefix(final RegexAnalyzer.Node target, final StringBuilder out) {
+            this.example(out, new BitSet());
+            return false;
+        }
+
+        @Override
+        void scan(final BitSet follow, final RegexAnalyzer.Repeat loop,
+            final Map<RegexAnalyzer.Node, RegexAnalyzer.Candidate> candidates) {
+            // nothing to backtrack
+        }
+    }
+
+    /**
+     * Anchors, lookarounds and back references, which aren't pumped.
+     */
+    private static final class Empty extends RegexAnalyzer.Node {
+
+        @Override
+        boolean nullable() {
+            return true;
+        }
+
+        @Override
+        BitSet first() {
+            return new BitSet();
+        }
+
+        @Override
+        BitSet chars() {
+            return new BitSet();
+        }
+
+        @Override
+        void example(final StringBuilder out, final BitSet prefer) {
+            // matches the empty string
+        }
+
+        @Override
+        boolean prefix(final RegexAnalyzer.Node target, final StringBuilder out) {
+            return false;
+        }
+
+        @Override
+        void scan(final BitSet follow, final RegexAnalyzer.Repeat loop,
+            final Map<RegexAnalyzer.Node, RegexAnalyzer.Candidate> candidates) {
+            // nothing to backtrack
+        }
+    }
+
+    private static final class Sequence extends RegexAnalyzer.Node {
+
+        private final List<RegexAnalyzer.Node> nodes;
+
+        Sequence(final List<RegexAnalyzer.Node> nodes) {
+            this.nodes = nodes;
+        }
+
+        @Override
+        boolean nullable() {
+            for (final RegexAnalyzer.Node node : this.nodes) {
+                if (!node.nullable()) {
+                    return false;
+                }
+            }
+            return true;
+        }
+
+        @Override
+        BitSet first() {
+            final BitSet first = new BitSet();
+            for (final RegexAnalyzer.Node node : this.nodes) {
+                first.or(node.first());
+                if (!node.nullable()) {
+                    break;
+                }
+            }
+            return first;
+        }
+
+        @Override
+        BitSet chars() {
+            final BitSet chars = new BitSet();
+            for (final RegexAnalyzer.Node node : this.nodes) {
+                chars.or(node.chars());
+            }
+            return chars;
+        }
+
+        @Override
+        void example(final StringBuilder out, final BitSet prefer) {
+            for (final RegexAnalyzer.Node node : this.nodes) {
+                node.example(out, prefer);
+            }
+        }
+
+        @Override
+        boolean prefix(final RegexAnalyzer.Node target, final StringBuilder out) {
+            for (final RegexAnalyzer.Node node : this.nodes) {
+                if (node.prefix(target, out)) {
+                    return true;
+                }
+            }
+            return false;
+        }
+
+        @Override
+        void scan(final BitSet follow, final RegexAnalyzer.Repeat loop,
+            final Map<RegexAnalyzer.Node, RegexAnalyzer.Candidate> candidates) {
+            BitSet after = follow;
+            for (int i = this.nodes.size() - 1; i >= 0; --i) {
+                final RegexAnalyzer.Node node = this.nodes.get(i);
+                node.scan(after, loop, candidates);
+                final BitSet first = node.first();
+                if (node.nullable()) {
+                    first.or(after);
+                }
+                after = first;
+            }
+        }
+    }
+
+    private static final class Alternation extends RegexAnalyzer.Node {
+
+        private final List<RegexAnalyzer.Node> branches;
+
+        Alternation(final List<RegexAnalyzer.Node> branches) {
+            this.branches = branches;
+        }
+
+        @Override
+        boolean nullable() {
+            for (final RegexAnalyzer.Node branch : this.branches) {
+                if (branch.nullable()) {
+                    return true;
+                }
+            }
+            return false;
+        }
+
+        @Override
+        BitSet first() {
+            final BitSet first = new BitSet();
+            for (final RegexAnalyzer.Node branch : this.branches) {
+                first.or(branch.first());
+            }
+            return first;
+        }
+
+        @Override
+        BitSet chars() {
+            final BitSet chars = new BitSet();
+            for (final RegexAnalyzer.Node branch : this.branches) {
+                chars.or(branch.chars());
+            }
+            return chars;
+        }
+
+        /**
+         * @return Characters two branches may both start with
+         */
+        BitSet overlap() {
+            final BitSet seen = new BitSet();
+            final BitSet overlap = new BitSet();
+            for (final RegexAnalyzer.Node branch : this.branches) {
+                final BitSet first = branch.first();
+                final BitSet shared = (BitSet) first.clone();
+                shared.and(seen);
+                overlap.or(shared);
+                seen.or(first);
+            }
+            return overlap;
+        }
+
+        @Override
+        void example(final StringBuilder out, final BitSet prefer) {
+            String shortest = null;
+            for (final RegexAnalyzer.Node branch : this.branches) {
+                final StringBuilder example = new StringBuilder();
+                branch.example(example, prefer);
+                if (shortest == null || example.length() < shortest.length()) {
+                    shortest = example.toString();
+                }
+            }
+            out.append(shortest);
+        }
+
+        @Override
+        boolean prefix(final RegexAnalyzer.Node target, final StringBuilder out) {
+            for (final RegexAnalyzer.Node branch : this.branches) {
+                final StringBuilder prefix = new StringBuilder();
+                if (branch.prefix(target, prefix)) {
+                    out.append(prefix);
+                    return true;
+                }
+            }
+            this.example(out, new BitSet());
+            return false;
+        }
+
+        @Override
+        void scan(final BitSet follow, final RegexAnalyzer.Repeat loop,
+            final Map<RegexAnalyzer.Node, RegexAnalyzer.Candidate> candidates) {
+            for (final RegexAnalyzer.Node branch : this.branches) {
+                branch.scan(follow, loop, candidates);
+            }
+        }
+    }
+
+    private static final class Repeat extends RegexAnalyzer.Node {
+
+        private final RegexAnalyzer.Node body;
+
+        private final int min;
+
+        /**
+         * Most repetitions, negative if unbounded.
+         */
+        private final int max;
+
+        private final boolean possessive;
+
+        Repeat(final RegexAnalyzer.Node body, final int min, final int max,
+            final boolean possessive) {
+            this.body = body;
+            this.min = min;
+            this.max = max;
+            this.possessive = possessive;
+        }
+
+        RegexAnalyzer.Node body() {
+            return this.body;
+        }
+
+        /**
+         * @return Whether the quantifier may give back enough characters to backtrack heavily
+         */
+        boolean backtracks() {
+            return !this.possessive && (this.max < 0 || this.max > RegexAnalyzer.LARGE);
+        }
+
+        @Override
+        boolean nullable() {
+            return this.min == 0 || this.body.nullable();
+        }
+
+        @Override
+        BitSet first() {
+            return this.body.first();
+        }
+
+        @Override
+        BitSet chars() {
+            return this.body.chars();
+        }
+
+        @Override
+        void example(final StringBuilder out, final BitSet prefer) {
+            for (int i = 0; i < this.min; ++i) {
+                this.body.example(out, prefer);
+            }
+        }
+
+        @Override
+        boolean prefix(final RegexAnalyzer.Node target, final StringBuilder out) {
+            if (this == target) {
+                return true;
+            }
+            final StringBuilder prefix = new StringBuilder();
+            if (this.body.prefix(target, prefix)) {
+                out.append(prefix);
+                return true;
+            }
+            this.example(out, new BitSet());
+            return false;
+        }
+
+        @Override
+        void scan(final BitSet follow, final RegexAnalyzer.Repeat loop,
+            final Map<RegexAnalyzer.Node, RegexAnalyzer.Candidate> candidates) {
+            final boolean backtracks = this.backtracks();
+            if (backtracks) {
+                final BitSet overlap = this.body.chars();
+                overlap.and(follow);
+                if (!overlap.isEmpty()) {
+                    if (loop == null) {
+                        RegexAnalyzer.add(candidates, this, RegexAnalyzer.Risk.OVERLAPPING, overlap);
+                    } else {
+                        RegexAnalyzer.add(candidates, loop, RegexAnalyzer.Risk.NESTED, overlap);
+                    }
+                }
+                if (this.body instanceof RegexAnalyzer.Alternation) {
+                    final BitSet branches = ((RegexAnalyzer.Alternation) this.body).overlap();
+                    if (!branches.isEmpty()) {
+                        RegexAnalyzer.add(candidates, this, RegexAnalyzer.Risk.ALTERNATION, branches);
+                    }
+                }
+            }
+            final BitSet inner = (BitSet) follow.clone();
+            if (this.max < 0 || this.max > 1) {
+                inner.or(this.body.first());
+            }
+            this.body.scan(inner, backtracks ? this : loop, candidates);
+        }
+    }
+
+    /**
+     * Parses the subset of the {@link java.util.regex.Pattern} syntax that matters to
+     * backtracking, approximating character sets to ASCII.
+     */
+    private static final class Syntax {
+
+        private final String regex;
+
+        private boolean caseInsensitive;
+
+        private int pos;
+
+        Syntax(final String regex, final boolean caseInsensitive) {
+            this.regex = regex;
+            this.caseInsensitive = caseInsensitive;
+        }
+
+        RegexAnalyzer.Node parse() {
+            return this.alternation();
+        }
+
+        private RegexAnalyzer.Node alternation() {
+            final List<RegexAnalyzer.Node> branches = new ArrayList<>();
+            branches.add(this.sequence());
+            while (this.pos < this.regex.length() && this.regex.charAt(this.pos) == '|') {
+                ++this.pos;
+                branches.add(this.sequence());
+            }
+            return branches.size() == 1 ? branches.get(0) : new RegexAnalyzer.Alternation(branches);
+        }
+
+        private RegexAnalyzer.Node sequence() {
+            final List<RegexAnalyzer.Node> nodes = new ArrayList<>();
+            while (this.pos < this.regex.length()) {
+                final char c = this.regex.charAt(this.pos);
+                if (c == '|' || c == ')') {
+                    break;
+                }
+                nodes.add(this.quantified(this.atom()));
+            }
+            return nodes.size() == 1 ? nodes.get(0) : new RegexAnalyzer.Sequence(nodes);
+        }
+
+        private RegexAnalyzer.Node quantified(final RegexAnalyzer.Node atom) {
+            if (this.pos >= this.regex.length()) {
+                return atom;
+            }
+            final int min;
+            final int max;
+            switch (this.regex.charAt(this.pos)) {
+                case '*':
+                    min = 0;
+                    max = -1;
+                    ++this.pos;
+                    break;
+                case '+':
+                    min = 1;
+                    max = -1;
+                    ++this.pos;
+                    break;
+                case '?':
+                    min = 0;
+                    max = 1;
+                    ++this.pos;
+                    break;
+                case '{':
+                    final int end = this.regex.indexOf('}', this.pos);
+                    final String bounds = this.regex.substring(this.pos + 1, end);
+                    final int comma = bounds.indexOf(',');
+                    if (comma < 0) {
+                        min = Integer.parseInt(bounds.trim());
+                        max = min;
+                    } else {
+                        min = Integer.parseInt(bounds.substring(0, comma).trim());
+                        final String upper = bounds.substring(comma + 1).trim();
+                        max = upper.isEmpty() ? -1 : Integer.parseInt(upper);
+                    }
+                    this.pos = end + 1;
+                    break;
+                default:
+                    return atom;
+            }
+            boolean possessive = false;
+            if (this.pos < this.regex.length()) {
+                final char modifier = this.regex.charAt(this.pos);
+                if (modifier == '?') {
+                    ++this.pos;
+                } else if (modifier == '+') {
+                    possessive = true;
+                    ++this.pos;
+                }
+            }
+            return new RegexAnalyzer.Repeat(atom, min, max, possessive);
+        }
+
+        private RegexAnalyzer.Node atom() {
+            final char c = this.regex.charAt(this.pos++);
+            switch (c) {
+                case '(':
+                    return this.group();
+                case '[':
+                    return new RegexAnalyzer.Chars(this.characterClass());
+                case '.':
+                    final BitSet any = RegexAnalyzer.range(0, RegexAnalyzer.NON_ASCII);
+                    any.clear('\n');
+                    any.clear('\r');
+                    return new RegexAnalyzer.Chars(any);
+                case '^':
+                case '$':
+                    return new RegexAnalyzer.Empty();
+                case '\\':
+                    return this.escape();
+                default:
+                    return new RegexAnalyzer.Chars(this.fold(RegexAnalyzer.Syntax.single(c)));
+            }
+        }
+
+        private RegexAnalyzer.Node group() {
+            if (!this.regex.startsWith("?", this.pos)) {
+                return this.close(this.alternation());
+            }
+            if (this.regex.startsWith("?:", this.pos)) {
+                this.pos += 2;
+                return this.close(this.alternation());
+            }
+            if (this.regex.startsWith("?=", this.pos) || this.regex.startsWith("?!", this.pos)
+                || this.regex.startsWith("?<=", this.pos) || this.regex.startsWith("?<!", this.pos)) {
+                // lookarounds don't consume what they match
+                this.pos += this.regex.charAt(this.pos + 1) == '<' ? 3 : 2;
+                this.close(this.alternation());
+                return new RegexAnalyzer.Empty();
+            }
+            if (this.regex.startsWith("?<", this.pos)) {
+                this.pos = this.regex.indexOf('>', this.pos) + 1;
+                return this.close(this.alternation());
+            }
+            if (this.regex.startsWith("?>", this.pos)) {
+                // atomic groups never backtrack into
+                this.pos += 2;
+                return new RegexAnalyzer.Repeat(this.close(this.alternation()), 1, 1, true);
+            }
+            // inline flags, for the rest of the regex or for the group
+            ++this.pos;
+            final boolean outer = this.caseInsensitive;
+            boolean on = true;
+            while (this.pos < this.regex.length()) {
+                final char flag = this.regex.charAt(this.pos++);
+                if (flag == '-') {
+                    on = false;
+                } else if (flag == 'i') {
+                    this.caseInsensitive = on;
+                } else if (flag == ')') {
+                    return new RegexAnalyzer.Empty();
+                } else if (flag == ':') {
+                    final RegexAnalyzer.Node node = this.close(this.alternation());
+                    this.caseInsensitive = outer;
+                    return node;
+                }
+            }
+            return new RegexAnalyzer.Empty();
+        }
+
+        private RegexAnalyzer.Node close(final RegexAnalyzer.Node group) {
+            if (this.pos < this.regex.length() && this.regex.charAt(this.pos) == ')') {
+                ++this.pos;
+            }
+            return group;
+        }
+
+        private RegexAnalyzer.Node escape() {
+            final char c = this.regex.charAt(this.pos++);
+            if ("bBAGZz".indexOf(c) >= 0) {
+                return new RegexAnalyzer.Empty();
+            }
+            if (c == 'k') {
+                this.pos = this.regex.indexOf('>', this.pos) + 1;
+                return new RegexAnalyzer.Empty();
+            }
+            if (c >= '1' && c <= '9') {
+                // back references match what their group did, not pumped
+                while (this.pos < this.regex.length()
+                    && Character.isDigit(this.regex.charAt(this.pos))) {
+                    ++this.pos;
+                }
+                return new RegexAnalyzer.Empty();
+            }
+            if (c == 'Q') {
+                int end = this.regex.indexOf("\\E", this.pos);
+                if (end < 0) {
+                    end = this.regex.length();
+                }
+                final List<RegexAnalyzer.Node> quoted = new ArrayList<>();
+                for (int i = this.pos; i < end; ++i) {
+                    quoted.add(new RegexAnalyzer.Chars(
+                        this.fold(RegexAnalyzer.Syntax.single(this.regex.charAt(i)))
+                    ));
+                }
+                this.pos = Math.min(end + 2, this.regex.length());
+                return new RegexAnalyzer.Sequence(quoted);
+            }
+            final BitSet predefined = RegexAnalyzer.Syntax.predefined(c);
+            if (predefined != null) {
+                this.skipProperty(c);
+                return new RegexAnalyzer.Chars(predefined);
+            }
+            return new RegexAnalyzer.Chars(this.fold(RegexAnalyzer.Syntax.single(this.escaped(c))));
+        }
+
+        private BitSet characterClass() {
+            final BitSet set = new BitSet();
+            boolean negated = false;
+            if (this.pos < this.regex.length() && this.regex.charAt(this.pos) == '^') {
+                negated = true;
+                ++this.pos;
+            }
+            boolean leading = true;
+            while (this.pos < this.regex.length()) {
+                final char c = this.regex.charAt(this.pos);
+                if (c == ']' && !leading) {
+                    ++this.pos;
+                    break;
+                }
+                leading = false;
+                if (c == '[') {
+                    ++this.pos;
+                    set.or(this.characterClass());
+                    continue;
+                }
+                if (this.regex.startsWith("&&", this.pos)) {
+                    // intersections are approximated to unions
+                    this.pos += 2;
+                    continue;
+                }
+                ++this.pos;
+                final int from;
+                if (c == '\\') {
+                    final char escaped = this.regex.charAt(this.pos++);
+                    final BitSet predefined = RegexAnalyzer.Syntax.predefined(escaped);
+                    if (predefined != null) {
+                        this.skipProperty(escaped);
+                        set.or(predefined);
+                        continue;
+                    }
+                    from = this.escaped(escaped);
+                } else {
+                    from = c;
+                }
+                if (this.pos + 1 < this.regex.length() && this.regex.charAt(this.pos) == '-'
+                    && this.regex.charAt(this.pos + 1) != ']') {
+                    ++this.pos;
+                    final char last = this.regex.charAt(this.pos++);
+                    final int to = last == '\\' ? this.escaped(this.regex.charAt(this.pos++)) : last;
+                    set.or(RegexAnalyzer.Syntax.span(from, to));
+                } else {
+                    set.or(RegexAnalyzer.Syntax.single(from));
+                }
+            }
+            this.fold(set);
+            return negated ? RegexAnalyzer.complement(set) : set;
+        }
+
+        /**
+         * @param c Escaped character, its digits being consumed as needed
+         * @return The character the escape stands for
+         */
+        private int escaped(final char c) {
+            switch (c) {
+                case 't':
+                    return '\t';
+                case 'n':
+                    return '\n';
+                case 'r':
+                    return '\r';
+                case 'f':
+                    return '\f';
+                case 'a':
+                    return '\u0007';
+                case 'e':
+                    return '\u001B';
+                case 'c':
+                    return this.regex.charAt(this.pos++) ^ 64;
+                case '0':
+                    return this.number(8, 3);
+                case 'x':
+                    if (this.regex.startsWith("{", this.pos)) {
+                        final int end = this.regex.indexOf('}', this.pos);
+                        final int value = Integer.parseInt(this.regex.substring(this.pos + 1, end), 16);
+                        this.pos = end + 1;
+                        return value;
+                    }
+                    return this.number(16, 2);
+                case 'u':
+                    return this.number(16, 4);
+                default:
+                    return c;
+            }
+        }
+
+        private int number(final int radix, final int digits) {
+            int value = 0;
+            int read = 0;
+            while (read < digits && this.pos < this.regex.length()
+                && Character.digit(this.regex.charAt(this.pos), radix) >= 0) {
+                value = value * radix + Character.digit(this.regex.charAt(this.pos), radix);
+                ++this.pos;
+                ++read;
+            }
+            return value;
+        }
+
+        private void skipProperty(final char c) {
+            if ((c == 'p' || c == 'P') && this.pos < this.regex.length()) {
+                this.pos = this.regex.charAt(this.pos) == '{'
+                    ? this.regex.indexOf('}', this.pos) + 1 : this.pos + 1;
+            }
+        }
+
+        /**
+         * Adds the other case of the letters of the set, if case insensitive.
+         */
+        private BitSet fold(final BitSet set) {
+            if (this.caseInsensitive) {
+                for (int c = 'a'; c <= 'z'; ++c) {
+                    final int upper = c - 'a' + 'A';
+                    if (set.get(c) || set.get(upper)) {
+                        set.set(c);
+                        set.set(upper);
+                    }
+                }
+            }
+            return set;
+        }
+
+        /**
+         * @return The characters of a predefined class, {@code null} if not one
+         */
+        private static BitSet predefined(final char c) {
+            switch (c) {
+                case 'd':
+                    return RegexAnalyzer.range('0', '9');
+                case 'w':
+                    return RegexAnalyzer.Syntax.word();
+                case 's':
+                    return RegexAnalyzer.Syntax.space();
+                case 'h':
+                    final BitSet horizontal = RegexAnalyzer.Syntax.single(' ');
+                    horizontal.set('\t');
+                    horizontal.set(RegexAnalyzer.NON_ASCII);
+                    return horizontal;
+                case 'v':
+                case 'R':
+                    return RegexAnalyzer.range('\n', '\r');
+                case 'p':
+                    final BitSet letters = RegexAnalyzer.range('a', 'z');
+                    letters.or(RegexAnalyzer.range('A', 'Z'));
+                    letters.set(RegexAnalyzer.NON_ASCII);
+                    return letters;
+                case 'D':
+                    return RegexAnalyzer.complement(RegexAnalyzer.range('0', '9'));
+                case 'W':
+                    return RegexAnalyzer.complement(RegexAnalyzer.Syntax.word());
+                case 'S':
+                    return RegexAnalyzer.complement(RegexAnalyzer.Syntax.space());
+                case 'H':
+                case 'V':
+                case 'P':
+                    return RegexAnalyzer.range(0, RegexAnalyzer.NON_ASCII);
+                default:
+                    return null;
+            }
+        }
+
+        private static BitSet word() {
+            final BitSet word = RegexAnalyzer.range('a', 'z');
+            word.or(RegexAnalyzer.range('A', 'Z'));
+            word.or(RegexAnalyzer.range('0', '9'));
+            word.set('_');
+            return word;
+        }
+
+        private static BitSet space() {
+            final BitSet space = RegexAnalyzer.range('\t', '\r');
+            space.set(' ');
+            return space;
+        }
+
+        private static BitSet single(final int c) {
+            final BitSet set = new BitSet(RegexAnalyzer.NON_ASCII + 1);
+            set.set(Math.min(c, RegexAnalyzer.NON_ASCII));
+            return set;
+        }
+
+        private static BitSet span(final int from, final int to) {
+            if (to >= RegexAnalyzer.NON_ASCII) {
+                return RegexAnalyzer.range(
+                    Math.min(from, RegexAnalyzer.NON_ASCII), RegexAnalyzer.NON_ASCII
+                );
+            }
+            return RegexAnalyzer.range(from, to);
+        }
+    }
+}
@@ -0,0 +1,233 @@
+/*
+ * Licensed to Elasticsearch under one or more contributor
+ * license agreements. See the NOTICE file distributed with
+ * this work for additional information regarding copyright
+ * ownership. Elasticsearch licenses this file to you under
+ * the Apache License, Version 2.0 (the "License"); you may
+ * not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing,
+ * software distributed under the License is distributed on an
+ * "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+ * KIND, either express or implied.  See the License for the
+ * specific language governing permissions and limitations
+ * under the License.
+ */
+package org.logstash.uaparser;
+
+import java.util.List;
+import java.util.concurrent.atomic.LongAdder;
+import java.util.regex.Matcher;
+import java.util.regex.Pattern;
+
+/**
+ * A {@link Rule} matched with a regex.
+ *
+ * The regex is compiled when the rule is first evaluated rather than when it's loaded, most
+ * rules are never reached by the agent strings of a given pipeline. {@link #compile()} compiles
+ * it ahead of that.
+ *
+ * Rules can be profiled, counting their evaluations, matches and the time spent evaluating
+ * them, see {@link Parser#profileRules(boolean)}.
+ */
+abstract class RegexRule extends Rule {
+
+    private final RuleDefinition definition;
+
+    /**
+     * The compiled regex, {@code null} until first needed.
+     */
+    private volatile Pattern pattern;
+
+    private final String literal;
+
+    private final boolean anchored;
+
+    /**
+     * Counters of the evaluations of the rule, {@code null} unless profiled.
+     */
+    private volatile RegexRule.Counters counters;
+
+    RegexRule(final int index, final RuleDefinition definition, final Object... fields) {
+        super(index, fields);
+        this.definition = definition;
+        this.literal = definition.literal();
+        this.anchored = definition.anchored();
+    }
+
+    /**
+     * Compares rules with the definitions replacing them.
+     * @param rules Current rules of a section
+     * @param definitions New definitions of the section
+     * @return Index of the first rule which changed, was added or removed,
+     * {@link Integer#MAX_VALUE} if none did
+     */
+    static int unchanged(final List<? extends RegexRule> rules,
+        final List<RuleDefinition> definitions) {
+        final int common = Math.min(rules.size(), definitions.size());
+        for (int i = 0; i < common; ++i) {
+            final RegexRule rule = rules.get(i);
+            if (!rule.definition.config().equals(definitions.get(i).config())) {
+                return i;
+            }
+        }
+        return rules.size() == definitions.size() ? Integer.MAX_VALUE : common;
+    }
+
+    /**
+     * @param rules Rules of a section
+     * @param enabled Whether to profile the rules, see {@link #profile(boolean)}
+     */
+    static void profile(final List<? extends RegexRule> rules, final boolean enabled) {
+        for (final RegexRule rule : rules) {
+            rule.profile(enabled);
+        }
+    }
+
+    /**
+     * @param rules Rules of a section
+     * @param component Section of the rules
+     * @param profiles Profiles to add those of the profiled rules to
+     */
+    static void profiles(final List<? extends RegexRule> rules, final Component component,
+        final List<RuleProfile> profiles) {
+        for (final RegexRule rule : rules) {
+            final RuleProfile profile = rule.profile(component);
+            if (profile != null) {
+                profiles.add(profile);
+            }
+        }
+    }
+
+    /**
+     * @return The regex, compiled by the first caller
+     */
+    final Pattern compile() {
+        Pattern compiled = this.pattern;
+        if (compiled == null) {
+            synchronized (this) {
+                compiled = this.pattern;
+                if (compiled == null) {
+                    compiled = this.definition.compile();
+                    this.pattern = compiled;
+                }
+            }
+        }
+        return compiled;
+    }
+
+    /**
+     * @param agentString Agent string to match
+     * @param input Same agent string, as the regex is run against
+     * @return Offsets of the groups as recorded by {@link Rule#groups(Matcher)}, {@code null}
+     * if the regex does not match
+     */
+    final int[] find(final String agentString, final RegexRule.Input input) {
+        final RegexRule.Counters profile = this.counters;
+        if (profile == null) {
+            return this.search(agentString, input);
+        }
+        final long start = System.nanoTime();
+        int[] groups = null;
+        try {
+            groups = this.search(agentString, input);
+            return groups;
+        } finally {
+            profile.record(System.nanoTime() - start, groups != null);
+        }
+    }
+
+    /**
+     * @param enabled Whether to count the evaluations of this rule from now on, counts are
+     * discarded when disabled
+     */
+    final void profile(final boolean enabled) {
+        if (!enabled) {
+            this.counters = null;
+        } else if (this.counters == null) {
+            synchronized (this) {
+                if (this.counters == null) {
+                    this.counters = new RegexRule.Counters();
+                }
+            }
+        }
+    }
+
+    /**
+     * @param component Section of the rule
+     * @return Counts of the evaluations of this rule, {@code null} unless profiled
+     */
+    final RuleProfile profile(final Component component) {
+        final RegexRule.Counters profile = this.counters;
+        if (profile == null) {
+            return null;
+        }
+        return new RuleProfile(
+            component, this.index, this.definition.get("regex"), profile.evaluations.sum(),
+            profile.matches.sum(), profile.nanos.sum()
+        );
+    }
+
+    private int[] search(final String agentString, final RegexRule.Input input) {
+        if (this.literal != null && !agentString.contains(this.literal)) {
+            return null;
+        }
+        final Matcher matcher = input.matcher(this.compile());
+        if (!(this.anchored ? matcher.lookingAt() : matcher.find())) {
+            return null;
+        }
+        return Rule.groups(matcher);
+    }
+
+    /**
+     * Agent string as the regexes of a single parse run against it, with the matcher they
+     * share. Nothing is kept once the parse is done, so neither the agent string nor the rules
+     * outlive it.
+     */
+    static final class Input {
+
+        private final CharSequence chars;
+
+        private Matcher matcher;
+
+        /**
+         * @param chars Agent string the regexes are run against
+         */
+        Input(final CharSequence chars) {
+            this.chars = chars;
+        }
+
+        /**
+         * @param pattern Regex to run
+         * @return Matcher of the regex over the agent string, reset to its start
+         */
+        Matcher matcher(final Pattern pattern) {
+            if (this.matcher == null) {
+                this.matcher = pattern.matcher(this.chars);
+            } else {
+                this.matcher.usePattern(pattern).reset();
+            }
+            return this.matcher;
+        }
+    }
+
+    private static final class Counters {
+
+        private final LongAdder evaluations = new LongAdder();
+
+        private final LongAdder matches = new LongAdder();
+
+        private final LongAdder nanos = new LongAdder();
+
+        void record(final long duration, final boolean matched) {
+            this.evaluations.increment();
+            if (matched) {
+                this.matches.increment();
+            }
+            this.nanos.add(duration);
+        }
+    }
+}
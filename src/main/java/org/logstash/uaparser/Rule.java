@@ -0,0 +1,252 @@
+/*
+ * Licensed to Elasticsearch under one or more contributor
+ * license agreements. See the NOTICE file distributed with
+ * this work for additional information regarding copyright
+ * ownership. Elasticsearch licenses this file to you under
+ * the Apache License, Version 2.0 (the "License"); you may
+ * not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing,
+ * software distributed under the License is distributed on an
+ * "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+ * KIND, either express or implied.  See the License for the
+ * specific language governing permissions and limitations
+ * under the License.
+ */
+package org.logstash.uaparser;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.regex.Matcher;
+
+/**
+ * A rule of one of the regexes.yaml sections, describing how each value of a parsed result is
+ * built from the groups captured by the rule's regex.
+ *
+ * Parsed results only keep a reference to the rule that matched and the group offsets into the
+ * agent string, values are materialized when read. Each field of a rule is either {@code null},
+ * a constant {@link String} or a {@link Rule.Capture} resolved against the group offsets.
+ */
+class Rule {
+
+    static final int NO_INDEX = -1;
+
+    /**
+     * Position of the rule in its section, {@link #NO_INDEX} for rules not coming from a
+     * regexes.yaml.
+     */
+    final int index;
+
+    private final Object[] fields;
+
+    Rule(final int index, final Object... fields) {
+        this.index = index;
+        this.fields = fields;
+    }
+
+    final String value(final int field, final CharSequence source, final int[] groups) {
+        final Object value = this.fields[field];
+        if (value instanceof Rule.Capture) {
+            return ((Rule.Capture) value).resolve(source, groups);
+        }
+        return (String) value;
+    }
+
+    final boolean isNull(final int field, final int[] groups) {
+        final Object value = this.fields[field];
+        if (value instanceof Rule.Capture) {
+            return ((Rule.Capture) value).isNull(groups);
+        }
+        return value == null;
+    }
+
+    /**
+     * Records the start and end offsets of all the groups of a successful match, {@code -1}
+     * for groups which did not participate in it.
+     */
+    static int[] groups(final Matcher matcher) {
+        final int count = matcher.groupCount() + 1;
+        final int[] groups = new int[count * 2];
+        for (int i = 0; i < count; ++i) {
+            groups[2 * i] = matcher.start(i);
+            groups[2 * i + 1] = matcher.end(i);
+        }
+        return groups;
+    }
+
+    static Rule.Capture group(final int group) {
+        return new Rule.Group(group, false);
+    }
+
+    static Rule.Capture nonBlankGroup(final int group) {
+        return new Rule.Group(group, true);
+    }
+
+    private static boolean isMatched(final int[] groups, final int group) {
+        return 2 * group < groups.length && groups[2 * group] >= 0;
+    }
+
+    private static String substring(final CharSequence source, final int[] groups, final int group) {
+        final int start = groups[2 * group];
+        final int end = groups[2 * group + 1];
+        if (source instanceof String) {
+            return ((String) source).substring(start, end);
+        }
+        return source.subSequence(start, end).toString();
+    }
+
+    /**
+     * A value derived from the captured groups.
+     */
+    abstract static class Capture {
+
+        abstract String resolve(CharSequence source, int[] groups);
+
+        abstract boolean isNull(int[] groups);
+    }
+
+    /**
+     * The text captured by a single group, {@code null} if the group did not participate in
+     * the match.
+     */
+    private static final class Group extends Rule.Capture {
+
+        private final int group;
+
+        private final boolean nonBlank;
+
+        Group(final int group, final boolean nonBlank) {
+            this.group = group;
+            this.nonBlank = nonBlank;
+        }
+
+        @Override
+        String resolve(final CharSequence source, final int[] groups) {
+            if (this.isNull(groups)) {
+                return null;
+            }
+            return Rule.substring(source, groups, this.group);
+        }
+
+        @Override
+        boolean isNull(final int[] groups) {
+            if (!Rule.isMatched(groups, this.group)) {
+                return true;
+            }
+            return this.nonBlank && groups[2 * this.group] == groups[2 * this.group + 1];
+        }
+    }
+
+    /**
+     * A replacement string with {@code $n} references to groups, substituted literally.
+     */
+    static final class Template extends Rule.Capture {
+
+        private final String template;
+
+        private final String[] literals;
+
+        private final int[] references;
+
+        private final String unmatched;
+
+        private final boolean trim;
+
+        /**
+         * @param template Replacement string
+         * @param references Parsed {@code $n} references, each one followed by the literal text
+         * up to the next one
+         * @param unmatched Substitute for references to groups which did not participate in the
+         * match, {@code null} to use the template as is whenever that happens
+         * @param trim Whether to trim the result
+         */
+        private Template(final String template, final List<Object> references,
+            final String unmatched, final boolean trim) {
+            this.template = template;
+            this.literals = new String[references.size() / 2 + 1];
+            this.references = new int[references.size() / 2];
+            this.literals[0] = (String) references.get(0);
+            for (int i = 0; i < this.references.length; ++i) {
+                this.references[i] = (Integer) references.get(2 * i + 1);
+                this.literals[i + 1] = (String) references.get(2 * i + 2);
+            }
+            this.unmatched = unmatched;
+            this.trim = trim;
+        }
+
+        /**
+         * Substitutes the first {@code $1} only, leaving the template untouched if group 1 did
+         * not participate in the match.
+         */
+        static Rule.Template first(final String template) {
+            final int at = template.indexOf("$1");
+            final List<Object> parts = new ArrayList<>(3);
+            parts.add(template.substring(0, at));
+            parts.add(1);
+            parts.add(template.substring(at + 2));
+            return new Rule.Template(template, parts, null, false);
+        }
+
+        /**
+         * Substitutes every {@code $1}, unmatched group 1 being replaced by the empty string.
+         */
+        static Rule.Template all(final String template) {
+            final List<Object> parts = new ArrayList<>();
+            int from = 0;
+            int at;
+            while ((at = template.indexOf("$1", from)) >= 0) {
+                parts.add(template.substring(from, at));
+                parts.add(1);
+                from = at + 2;
+            }
+            parts.add(template.substring(from));
+            return new Rule.Template(template, parts, "", false);
+        }
+
+        /**
+         * Substitutes every {@code $0}..{@code $9} and trims the result, unmatched groups being
+         * replaced by the empty string.
+         */
+        static Rule.Template trimmed(final String template) {
+            final List<Object> parts = new ArrayList<>();
+            int from = 0;
+            for (int i = 0; i < template.length() - 1; ++i) {
+                final char digit = template.charAt(i + 1);
+                if (template.charAt(i) == '$' && digit >= '0' && digit <= '9') {
+                    parts.add(template.substring(from, i));
+                    parts.add(digit - '0');
+                    from = i + 2;
+                    ++i;
+                }
+            }
+            parts.add(template.substring(from));
+            return new Rule.Template(template, parts, "", true);
+        }
+
+        @Override
+        String resolve(final CharSequence source, final int[] groups) {
+            final StringBuilder result = new StringBuilder(this.template.length() + 16);
+            result.append(this.literals[0]);
+            for (int i = 0; i < this.references.length; ++i) {
+                final int group = this.references[i];
+                if (Rule.isMatched(groups, group)) {
+                    result.append(source, groups[2 * group], groups[2 * group + 1]);
+                } else if (this.unmatched == null) {
+                    return this.template;
+                } else {
+                    result.append(this.unmatched);
+                }
+                result.append(this.literals[i + 1]);
+            }
+            return this.trim ? result.toString().trim() : result.toString();
+        }
+
+        @Override
+        boolean isNull(final int[] groups) {
+            return false;
+        }
+    }
+}
@@ -0,0 +1,353 @@
+/*
+ * Licensed to Elasticsearch under one or more contributor
+ * license agreements. See the NOTICE file distributed with
+ * this work for additional information regarding copyright
+ * ownership. Elasticsearch licenses this file to you under
+ * the Apache License, Version 2.0 (the "License"); you may
+ * not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing,
+ * software distributed under the License is distributed on an
+ * "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+ * KIND, either express or implied.  See the License for the
+ * specific language governing permissions and limitations
+ * under the License.
+ */
+package org.logstash.uaparser;
+
+import java.util.Map;
+import java.util.regex.Pattern;
+
+/**
+ * A rule as declared in one of the regexes.yaml sections, along with metadata derived from its
+ * regex that lets agent strings which can't match be skipped without running the regex.
+ */
+final class RuleDefinition {
+
+    private final Map<String, String> config;
+
+    private final String literal;
+
+    private final boolean anchored;
+
+    /**
+     * @param config The rule's entries, i.e. {@code regex} and its replacements
+     * @param literal Text any matching agent string contains, or {@code null}
+     * @param anchored Whether the regex only matches at the start of agent strings
+     */
+    RuleDefinition(final Map<String, String> config, final String literal, final boolean anchored) {
+        this.config = config;
+        this.literal = literal;
+        this.anchored = anchored;
+    }
+
+    /**
+     * @param config The rule's entries, i.e. {@code regex} and its replacements
+     * @return Definition with the metadata derived from the regex
+     */
+    static RuleDefinition of(final Map<String, String> config) {
+        final String regex = config.get("regex");
+        if (regex == null) {
+            return new RuleDefinition(config, null, false);
+        }
+        return new RuleDefinition(
+            config,
+            isCaseInsensitive(config) ? null : requiredLiteral(regex),
+            isAnchored(regex)
+        );
+    }
+
+    Map<String, String> config() {
+        return this.config;
+    }
+
+    String get(final String key) {
+        return this.config.get(key);
+    }
+
+    String literal() {
+        return this.literal;
+    }
+
+    boolean anchored() {
+        return this.anchored;
+    }
+
+    /**
+     * Counts the capturing groups of the regex without compiling it.
+     * @return Number of capturing groups, as {@link java.util.regex.Matcher#groupCount()}
+     */
+    int groupCount() {
+        final String regex = this.config.get("regex");
+        int count = 0;
+        int i = 0;
+        while (i < regex.length()) {
+            final char c = regex.charAt(i);
+            if (c == '\\') {
+                i += 2;
+                continue;
+            }
+            if (c == '[') {
+                final int end = skipClass(regex, i);
+                if (end < 0) {
+                    break;
+                }
+                i = end;
+                continue;
+            }
+            if (c == '(' && (!regex.startsWith("(?", i) || regex.startsWith("(?<", i)
+                && i + 3 < regex.length() && Character.isLetter(regex.charAt(i + 3)))) {
+                ++count;
+            }
+            ++i;
+        }
+        return count;
+    }
+
+    Pattern compile() {
+        final String regex = this.config.get("regex");
+        // no other flags used (by now)
+        return isCaseInsensitive(this.config)
+            ? Pattern.compile(regex, Pattern.CASE_INSENSITIVE) : Pattern.compile(regex);
+    }
+
+    private static boolean isCaseInsensitive(final Map<String, String> config) {
+        return "i".equals(config.get("regex_flag"));
+    }
+
+    /**
+     * Finds the longest literal text every match of the regex contains.
+     *
+     * Characters made optional by a quantifier, character classes and optional groups are
+     * skipped, required groups are searched recursively. Regexes, or groups, with an
+     * alternation, inline flags or escapes that aren't plain characters give up.
+     * @param regex Regex
+     * @return Longest required literal, {@code null} if none was found
+     */
+    static String requiredLiteral(final String regex) {
+        return requiredLiteral(regex, null);
+    }
+
+    private static String requiredLiteral(final String regex, final String none) {
+        String longest = null;
+        final StringBuilder run = new StringBuilder();
+        final int length = regex.length();
+        int i = 0;
+        while (i < length) {
+            final char c = regex.charAt(i);
+            switch (c) {
+                case '|':
+                    return none;
+                case '(':
+                    if (regex.startsWith("(?", i) && i + 2 < length
+                        && Character.isLetter(regex.charAt(i + 2))) {
+                        // inline flags
+                        return none;
+                    }
+                    longest = longest(longest, run);
+                    final int end = skipGroup(regex, i);
+                    if (end < 0) {
+                        return none;
+                    }
+                    // a group that is not optional requires whatever its content requires
+                    final int content = groupContent(regex, i);
+                    if (content >= 0 && (end == length || "?*{".indexOf(regex.charAt(end)) < 0)) {
+                        run.append(requiredLiteral(regex.substring(content, end - 1), ""));
+                        longest = longest(longest, run);
+                    }
+                    i = end;
+                    continue;
+                case '[':
+                    longest = longest(longest, run);
+                    i = skipClass(regex, i);
+                    if (i < 0) {
+                        return none;
+                    }
+                    continue;
+                case '?':
+                case '*':
+                case '{':
+                    // the preceding character is optional
+                    if (run.length() > 0) {
+                        run.setLength(run.length() - 1);
+                    }
+                    longest = longest(longest, run);
+                    i = skipQuantifier(regex, i);
+                    if (i < 0) {
+                        return none;
+                    }
+                    continue;
+                case '+':
+                    // the preceding character is required but may repeat
+                    longest = longest(longest, run);
+                    i = skipQuantifier(regex, i);
+                    continue;
+                case '.':
+                case '^':
+                case '$':
+                    longest = longest(longest, run);
+                    ++i;
+                    continue;
+                case '\\':
+                    if (i + 1 >= length) {
+                        return none;
+                    }
+                    final char escaped = regex.charAt(i + 1);
+                    if (Character.isLetterOrDigit(escaped)) {
+                        if ("dDwWsSbBhHvV".indexOf(escaped) < 0) {
+                            // quoting, hexadecimal or unicode escapes, properties, back references, ...
+                            return none;
+                        }
+                        longest = longest(longest, run);
+                    } else {
+                        run.append(escaped);
+                    }
+                    i += 2;
+                    continue;
+                default:
+                    run.append(c);
+                    ++i;
+            }
+        }
+        final String result = longest(longest, run);
+        return result == null ? none : result;
+    }
+
+    /**
+     * @param regex Regex
+     * @return Whether the regex can only match at the start of the input, i.e. starts with
+     * {@code ^} and has no top level alternation
+     */
+    static boolean isAnchored(final String regex) {
+        if (!regex.startsWith("^")) {
+            return false;
+        }
+        int i = 1;
+        while (i < regex.length()) {
+            final char c = regex.charAt(i);
+            if (c == '|') {
+                return false;
+            }
+            if (c == '\\') {
+                i += 2;
+            } else if (c == '(') {
+                i = skipGroup(regex, i);
+            } else if (c == '[') {
+                i = skipClass(regex, i);
+            } else {
+                ++i;
+            }
+            if (i < 0) {
+                return false;
+            }
+        }
+        return true;
+    }
+
+    private static String longest(final String longest, final StringBuilder run) {
+        final String result;
+        if (run.length() > 0 && (longest == null || run.length() > longest.length())) {
+            result = run.toString();
+        } else {
+            result = longest;
+        }
+        run.setLength(0);
+        return result;
+    }
+
+    /**
+     * @return Index of the content of the group opened at {@code start}, -1 for lookarounds
+     */
+    private static int groupContent(final String regex, final int start) {
+        if (!regex.startsWith("(?", start)) {
+            return start + 1;
+        }
+        if (regex.startsWith("(?:", start)) {
+            return start + 3;
+        }
+        if (regex.startsWith("(?<", start) && start + 3 < regex.length()
+            && Character.isLetter(regex.charAt(start + 3))) {
+            return regex.indexOf('>', start) + 1;
+        }
+        return -1;
+    }
+
+    /**
+     * @return Index following the group opened at {@code start}, -1 if it isn't closed
+     */
+    private static int skipGroup(final String regex, final int start) {
+        int depth = 0;
+        int i = start;
+        while (i < regex.length()) {
+            final char c = regex.charAt(i);
+            if (c == '\\') {
+                i += 2;
+                continue;
+            }
+            if (c == '[') {
+                i = skipClass(regex, i);
+                if (i < 0) {
+                    return -1;
+                }
+                continue;
+            }
+            if (c == '(') {
+                ++depth;
+            } else if (c == ')' && --depth == 0) {
+                return i + 1;
+            }
+            ++i;
+        }
+        return -1;
+    }
+
+    /**
+     * @return Index following the character class opened at {@code start}, -1 if it isn't
+     * closed
+     */
+    private static int skipClass(final String regex, final int start) {
+        int depth = 0;
+        int i = start;
+        while (i < regex.length()) {
+            final char c = regex.charAt(i);
+            if (c == '\\') {
+                i += 2;
+                continue;
+            }
+            if (c == '[') {
+                ++depth;
+                if (regex.startsWith("[^]", i) || regex.startsWith("[]", i)) {
+                    // leading ] is a literal member
+                    i += regex.charAt(i + 1) == '^' ? 3 : 2;
+                    continue;
+                }
+            } else if (c == ']' && --depth == 0) {
+                return i + 1;
+            }
+            ++i;
+        }
+        return -1;
+    }
+
+    /**
+     * @return Index following the quantifier at {@code start} and its lazy or possessive
+     * modifier, -1 if a bounded quantifier isn't closed
+     */
+    private static int skipQuantifier(final String regex, final int start) {
+        int i = start;
+        if (regex.charAt(i) == '{') {
+            i = regex.indexOf('}', i);
+            if (i < 0) {
+                return -1;
+            }
+        }
+        ++i;
+        if (i < regex.length() && (regex.charAt(i) == '?' || regex.charAt(i) == '+')) {
+            ++i;
+        }
+        return i;
+    }
+}
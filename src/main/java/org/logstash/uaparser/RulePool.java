@@ -0,0 +1,88 @@
+/*
+ * Licensed to Elasticsearch under one or more contributor
+ * license agreements. See the NOTICE file distributed with
+ * this work for additional information regarding copyright
+ * ownership. Elasticsearch licenses this file to you under
+ * the Apache License, Version 2.0 (the "License"); you may
+ * not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing,
+ * software distributed under the License is distributed on an
+ * "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+ * KIND, either express or implied.  See the License for the
+ * specific language governing permissions and limitations
+ * under the License.
+ */
+package org.logstash.uaparser;
+
+import java.util.List;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.ForkJoinTask;
+import java.util.function.Consumer;
+import java.util.function.Function;
+import java.util.stream.Collectors;
+
+/**
+ * Fork-join pool that rules are loaded and compiled on, and caches warmed, shared by all parsers.
+ *
+ * Its parallelism is bounded so that loading rules during a pipeline reload doesn't take all
+ * the cores from the running pipelines, and its threads exit once idle.
+ */
+final class RulePool {
+
+    private static final int MAX_PARALLELISM = 4;
+
+    private static final int PARALLELISM =
+        Math.min(Runtime.getRuntime().availableProcessors(), RulePool.MAX_PARALLELISM);
+
+    /**
+     * {@code null} on a single core, where items are processed on the calling thread.
+     */
+    private static final ForkJoinPool POOL =
+        RulePool.PARALLELISM > 1 ? new ForkJoinPool(RulePool.PARALLELISM) : null;
+
+    private RulePool() {
+        // Utility Class
+    }
+
+    /**
+     * @param items Items to map
+     * @param function Function to apply to each item
+     * @param <T> Type of the items
+     * @param <R> Type of the results
+     * @return Results in the order of their items
+     */
+    static <T, R> List<R> map(final List<T> items, final Function<? super T, ? extends R> function) {
+        if (RulePool.POOL == null) {
+            return items.stream().map(function).collect(Collectors.<R>toList());
+        }
+        return RulePool.run(
+            () -> items.parallelStream().map(function).collect(Collectors.<R>toList())
+        );
+    }
+
+    /**
+     * @param items Items to process
+     * @param action Action to run on each item
+     * @param <T> Type of the items
+     */
+    static <T> void forEach(final List<T> items, final Consumer<? super T> action) {
+        if (RulePool.POOL == null) {
+            items.forEach(action);
+            return;
+        }
+        RulePool.run(() -> {
+            items.parallelStream().forEach(action);
+            return null;
+        });
+    }
+
+    private static <R> R run(final Callable<R> task) {
+        // parallel streams run on the pool of the fork-join task they're started from
+        return RulePool.POOL.submit(ForkJoinTask.adapt(task)).join();
+    }
+}
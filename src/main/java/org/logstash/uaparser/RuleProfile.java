@@ -0,0 +1,105 @@
+/*
+ * Licensed to Elasticsearch under one or more contributor
+ * license agreements. See the NOTICE file distributed with
+ * this work for additional information regarding copyright
+ * ownership. Elasticsearch licenses this file to you under
+ * the Apache License, Version 2.0 (the "License"); you may
+ * not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing,
+ * software distributed under the License is distributed on an
+ * "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+ * KIND, either express or implied.  See the License for the
+ * specific language governing permissions and limitations
+ * under the License.
+ */
+package org.logstash.uaparser;
+
+import java.util.Comparator;
+import java.util.Locale;
+
+/**
+ * Counts of the evaluations of a rule, as recorded once {@link Parser#profileRules(boolean)}
+ * was enabled.
+ */
+public final class RuleProfile {
+
+    /**
+     * Orders profiles by decreasing time spent evaluating their rule.
+     */
+    public static final Comparator<RuleProfile> BY_COST =
+        Comparator.comparingLong(RuleProfile::nanos).reversed();
+
+    private final Component component;
+
+    private final int index;
+
+    private final String regex;
+
+    private final long evaluations;
+
+    private final long matches;
+
+    private final long nanos;
+
+    RuleProfile(final Component component, final int index, final String regex,
+        final long evaluations, final long matches, final long nanos) {
+        this.component = component;
+        this.index = index;
+        this.regex = regex;
+        this.evaluations = evaluations;
+        this.matches = matches;
+        this.nanos = nanos;
+    }
+
+    /**
+     * @return Section of the rule
+     */
+    public Component component() {
+        return this.component;
+    }
+
+    /**
+     * @return Index of the rule in its section
+     */
+    public int index() {
+        return this.index;
+    }
+
+    public String regex() {
+        return this.regex;
+    }
+
+    /**
+     * @return Number of agent strings the rule was evaluated against
+     */
+    public long evaluations() {
+        return this.evaluations;
+    }
+
+    /**
+     * @return Number of agent strings the rule's regex matched
+     */
+    public long matches() {
+        return this.matches;
+    }
+
+    /**
+     * @return Total time spent evaluating the rule, in nanoseconds
+     */
+    public long nanos() {
+        return this.nanos;
+    }
+
+    @Override
+    public String toString() {
+        return String.format(
+            Locale.ROOT, "%s[%d] %.3fms over %d evaluations, %d matches: %s",
+            this.component.name().toLowerCase(Locale.ROOT), this.index, this.nanos / 1_000_000.0,
+            this.evaluations, this.matches, this.regex
+        );
+    }
+}
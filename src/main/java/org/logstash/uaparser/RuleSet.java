@@ -0,0 +1,256 @@
+/*
+ * Licensed to Elasticsearch under one or more contributor
+ * license agreements. See the NOTICE file distributed with
+ * this work for additional information regarding copyright
+ * ownership. Elasticsearch licenses this file to you under
+ * the Apache License, Version 2.0 (the "License"); you may
+ * not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing,
+ * software distributed under the License is distributed on an
+ * "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+ * KIND, either express or implied.  See the License for the
+ * specific language governing permissions and limitations
+ * under the License.
+ */
+package org.logstash.uaparser;
+
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.io.UncheckedIOException;
+import java.nio.file.Files;
+import java.nio.file.Paths;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import org.yaml.snakeyaml.Yaml;
+
+/**
+ * The rules of the three sections of a regexes.yaml.
+ *
+ * Rule sets are read either from the YAML or from a compact binary form produced by
+ * {@link #main(String[])}, which also carries the metadata of {@link RuleDefinition} so that
+ * it's not derived again on load. The binary form is a stream of:
+ * <pre>
+ * magic "UAPR", format version (byte)
+ * for each of user_agent_parsers, os_parsers and device_parsers:
+ *   rule count (int)
+ *   for each rule:
+ *     flags (byte): 1 = anchored, 2 = has a required literal
+ *     required literal (UTF, if flagged)
+ *     entry count (short), then each entry key and value (UTF)
+ * </pre>
+ * {@link #load(InputStream)} tells both forms apart from the magic header.
+ */
+final class RuleSet {
+
+    static final String USER_AGENT_PARSERS = "user_agent_parsers";
+
+    static final String OS_PARSERS = "os_parsers";
+
+    static final String DEVICE_PARSERS = "device_parsers";
+
+    private static final byte[] MAGIC = {'U', 'A', 'P', 'R'};
+
+    private static final byte VERSION = 1;
+
+    private static final int ANCHORED = 1;
+
+    private static final int LITERAL = 2;
+
+    private final List<RuleDefinition> userAgents;
+
+    private final List<RuleDefinition> os;
+
+    private final List<RuleDefinition> devices;
+
+    private RuleSet(final List<RuleDefinition> userAgents, final List<RuleDefinition> os,
+        final List<RuleDefinition> devices) {
+        this.userAgents = userAgents;
+        this.os = os;
+        this.devices = devices;
+    }
+
+    List<RuleDefinition> userAgents() {
+        return this.userAgents;
+    }
+
+    List<RuleDefinition> os() {
+        return this.os;
+    }
+
+    List<RuleDefinition> devices() {
+        return this.devices;
+    }
+
+    /**
+     * @return The same rules without the metadata that lets agent strings skip them, i.e. with
+     * every regex run as declared, as a reference for the optimized ones
+     */
+    RuleSet plain() {
+        return new RuleSet(
+            RuleSet.plain(this.userAgents), RuleSet.plain(this.os), RuleSet.plain(this.devices)
+        );
+    }
+
+    /**
+     * Reads a rule set in either the binary or the YAML form.
+     * @param input Rule set
+     * @return Rule set
+     */
+    static RuleSet load(final InputStream input) {
+        final InputStream buffered = input instanceof BufferedInputStream
+            ? input : new BufferedInputStream(input);
+        try {
+            buffered.mark(MAGIC.length);
+            final byte[] header = new byte[MAGIC.length];
+            int read = 0;
+            int n;
+            while (read < header.length && (n = buffered.read(header, read, header.length - read)) > 0) {
+                read += n;
+            }
+            buffered.reset();
+            if (read == MAGIC.length && Arrays.equals(header, MAGIC)) {
+                return RuleSet.read(buffered);
+            }
+        } catch (final IOException ex) {
+            throw new UncheckedIOException(ex);
+        }
+        return RuleSet.fromYaml(buffered);
+    }
+
+    @SuppressWarnings("unchecked")
+    static RuleSet fromYaml(final InputStream regexYaml) {
+        final Map<String, List<Map<String, String>>> regexConfig =
+            (Map<String, List<Map<String, String>>>) new Yaml().load(regexYaml);
+        return new RuleSet(
+            RuleSet.definitions(regexConfig, USER_AGENT_PARSERS),
+            RuleSet.definitions(regexConfig, OS_PARSERS),
+            RuleSet.definitions(regexConfig, DEVICE_PARSERS)
+        );
+    }
+
+    /**
+     * Reads the binary form, which must start with the magic header.
+     */
+    static RuleSet read(final InputStream input) throws IOException {
+        final DataInputStream data = new DataInputStream(input);
+        final byte[] header = new byte[MAGIC.length];
+        data.readFully(header);
+        if (!Arrays.equals(header, MAGIC)) {
+            throw new IllegalArgumentException("Not a binary rule set");
+        }
+        final byte version = data.readByte();
+        if (version != VERSION) {
+            throw new IllegalArgumentException("Unsupported binary rule set version " + version);
+        }
+        return new RuleSet(RuleSet.read(data), RuleSet.read(data), RuleSet.read(data));
+    }
+
+    /**
+     * Writes the binary form.
+     */
+    void write(final OutputStream output) throws IOException {
+        final DataOutputStream data = new DataOutputStream(new BufferedOutputStream(output));
+        data.write(MAGIC);
+        data.writeByte(VERSION);
+        RuleSet.write(data, this.userAgents);
+        RuleSet.write(data, this.os);
+        RuleSet.write(data, this.devices);
+        data.flush();
+    }
+
+    /**
+     * Converts a regexes.yaml to the binary form.
+     * @param args Path to the regexes.yaml and path to write the binary rule set to
+     * @throws IOException On failure to read or write either file
+     */
+    public static void main(final String[] args) throws IOException {
+        if (args.length != 2) {
+            System.err.println("Usage: RuleSet <regexes.yaml> <output>");
+            System.exit(1);
+        }
+        final RuleSet rules;
+        try (InputStream input = Files.newInputStream(Paths.get(args[0]))) {
+            rules = RuleSet.fromYaml(input);
+        }
+        try (OutputStream output = Files.newOutputStream(Paths.get(args[1]))) {
+            rules.write(output);
+        }
+    }
+
+    private static List<RuleDefinition> definitions(
+        final Map<String, List<Map<String, String>>> regexConfig, final String section) {
+        final List<Map<String, String>> configs = regexConfig.get(section);
+        if (configs == null) {
+            throw new IllegalArgumentException(section + " is missing from yaml");
+        }
+        return RulePool.map(configs, RuleDefinition::of);
+    }
+
+    private static List<RuleDefinition> plain(final List<RuleDefinition> definitions) {
+        final List<RuleDefinition> plain = new ArrayList<>(definitions.size());
+        for (final RuleDefinition definition : definitions) {
+            plain.add(new RuleDefinition(definition.config(), null, false));
+        }
+        return plain;
+    }
+
+    private static List<RuleDefinition> read(final DataInputStream data) throws IOException {
+        final int count = data.readInt();
+        final List<RuleDefinition> definitions = new ArrayList<>(count);
+        for (int i = 0; i < count; ++i) {
+            final int flags = data.readByte();
+            final String literal = (flags & LITERAL) != 0 ? data.readUTF() : null;
+            final int entries = data.readShort();
+            final Map<String, String> config = new HashMap<>(entries * 2);
+            for (int j = 0; j < entries; ++j) {
+                config.put(data.readUTF().intern(), data.readUTF());
+            }
+            definitions.add(new RuleDefinition(config, literal, (flags & ANCHORED) != 0));
+        }
+        return definitions;
+    }
+
+    private static void write(final DataOutputStream data, final List<RuleDefinition> definitions)
+        throws IOException {
+        data.writeInt(definitions.size());
+        for (final RuleDefinition definition : definitions) {
+            int flags = 0;
+            if (definition.anchored()) {
+                flags |= ANCHORED;
+            }
+            if (definition.literal() != null) {
+                flags |= LITERAL;
+            }
+            data.writeByte(flags);
+            if (definition.literal() != null) {
+                data.writeUTF(definition.literal());
+            }
+            final Map<String, String> config = definition.config();
+            int entries = 0;
+            for (final String value : config.values()) {
+                if (value != null) {
+                    ++entries;
+                }
+            }
+            data.writeShort(entries);
+            for (final Map.Entry<String, String> entry : config.entrySet()) {
+                if (entry.getValue() != null) {
+                    data.writeUTF(entry.getKey());
+                    data.writeUTF(entry.getValue());
+                }
+            }
+        }
+    }
+}
@@ -0,0 +1,215 @@
+/*
+ * Licensed to Elasticsearch under one or more contributor
+ * license agreements. See the NOTICE file distributed with
+ * this work for additional information regarding copyright
+ * ownership. Elasticsearch licenses this file to you under
+ * the Apache License, Version 2.0 (the "License"); you may
+ * not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing,
+ * software distributed under the License is distributed on an
+ * "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+ * KIND, either express or implied.  See the License for the
+ * specific language governing permissions and limitations
+ * under the License.
+ */
+package org.logstash.uaparser;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.List;
+import java.util.Locale;
+import java.util.concurrent.atomic.AtomicReferenceArray;
+
+/**
+ * The slowest parses since last {@link #drain() drained}, i.e. the agent strings to reproduce a
+ * rise of the miss latency with.
+ *
+ * Parses are offered from all the parsing threads without locking: the slots are replaced by
+ * compare-and-set, and parses faster than the slowest ones kept are rejected after reading a
+ * single volatile field, which is all most parses cost.
+ */
+public final class SlowParses {
+
+    /**
+     * Number of parses kept.
+     */
+    public static final int SIZE = 10;
+
+    /**
+     * Length agent strings are truncated to.
+     */
+    static final int MAX_AGENT_LENGTH = 512;
+
+    private final AtomicReferenceArray<SlowParses.Sample> slots =
+        new AtomicReferenceArray<>(SlowParses.SIZE);
+
+    /**
+     * Duration of the fastest parse kept, 0 while there are free slots. Only a hint, parses
+     * racing on the slots can leave it lower than it should be.
+     */
+    private volatile long threshold;
+
+    SlowParses() {
+    }
+
+    /**
+     * @return The parses kept, slowest first, the slots being cleared for the next ones
+     */
+    public List<SlowParses.Sample> drain() {
+        final List<SlowParses.Sample> samples = new ArrayList<>(SlowParses.SIZE);
+        for (int i = 0; i < SlowParses.SIZE; ++i) {
+            final SlowParses.Sample sample = this.slots.getAndSet(i, null);
+            if (sample != null) {
+                samples.add(sample);
+            }
+        }
+        this.threshold = 0L;
+        Collections.sort(samples, SlowParses.Sample.SLOWEST_FIRST);
+        return samples;
+    }
+
+    /**
+     * Keeps a parse if it's slower than one of those kept, which it replaces.
+     * @param agentString Parsed agent string
+     * @param nanos Time spent on each component, indexed by ordinal, -1 for those not parsed
+     * @param rules Index of the rule matching each component, {@link Rule#NO_INDEX} if none did
+     * @param limited Whether parsing was cut short by the {@link ParseLimits}
+     */
+    void offer(final String agentString, final long[] nanos, final int[] rules,
+        final boolean limited) {
+        long total = 0L;
+        for (final long duration : nanos) {
+            total += Math.max(duration, 0L);
+        }
+        if (total <= this.threshold) {
+            return;
+        }
+        SlowParses.Sample sample = null;
+        while (true) {
+            int fastest = 0;
+            SlowParses.Sample replaced = this.slots.get(0);
+            for (int i = 1; i < SlowParses.SIZE && replaced != null; ++i) {
+                final SlowParses.Sample current = this.slots.get(i);
+                if (current == null || current.nanos < replaced.nanos) {
+                    fastest = i;
+                    replaced = current;
+                }
+            }
+            if (replaced != null && replaced.nanos >= total) {
+                this.threshold = replaced.nanos;
+                return;
+            }
+            if (sample == null) {
+                sample = new SlowParses.Sample(agentString, total, nanos, rules, limited);
+            }
+            if (this.slots.compareAndSet(fastest, replaced, sample)) {
+                this.threshold = this.fastest();
+                return;
+            }
+        }
+    }
+
+    private long fastest() {
+        long fastest = Long.MAX_VALUE;
+        for (int i = 0; i < SlowParses.SIZE; ++i) {
+            final SlowParses.Sample sample = this.slots.get(i);
+            if (sample == null) {
+                return 0L;
+            }
+            fastest = Math.min(fastest, sample.nanos);
+        }
+        return fastest;
+    }
+
+    /**
+     * A slow parse.
+     */
+    public static final class Sample {
+
+        static final Comparator<SlowParses.Sample> SLOWEST_FIRST =
+            Comparator.comparingLong((SlowParses.Sample sample) -> sample.nanos).reversed();
+
+        private final String agentString;
+
+        private final long nanos;
+
+        private final long[] componentNanos;
+
+        private final int[] rules;
+
+        private final boolean limited;
+
+        Sample(final String agentString, final long nanos, final long[] componentNanos,
+            final int[] rules, final boolean limited) {
+            this.agentString = agentString.length() > SlowParses.MAX_AGENT_LENGTH
+                ? agentString.substring(0, SlowParses.MAX_AGENT_LENGTH) : agentString;
+            this.nanos = nanos;
+            this.componentNanos = componentNanos;
+            this.rules = rules;
+            this.limited = limited;
+        }
+
+        /**
+         * @return Agent string, truncated to its first 512 characters
+         */
+        public String agentString() {
+            return this.agentString;
+        }
+
+        /**
+         * @return Time spent parsing, in nanoseconds
+         */
+        public long nanos() {
+            return this.nanos;
+        }
+
+        /**
+         * @param component Component
+         * @return Time spent matching the component, in nanoseconds, -1 if it wasn't
+         */
+        public long nanos(final Component component) {
+            return this.componentNanos[component.ordinal()];
+        }
+
+        /**
+         * @param component Component
+         * @return Index of the rule matching the component in its section, -1 if none did
+         */
+        public int rule(final Component component) {
+            return this.rules[component.ordinal()];
+        }
+
+        /**
+         * @return Whether parsing was cut short by the {@link ParseLimits}, the agent string
+         * yielding {@code "Other"}
+         */
+        public boolean limited() {
+            return this.limited;
+        }
+
+        @Override
+        public String toString() {
+            final StringBuilder result = new StringBuilder(
+                String.format(Locale.ROOT, "%.3fms", this.nanos / 1_000_000.0)
+            );
+            for (final Component component : Component.values()) {
+                final long duration = this.nanos(component);
+                if (duration >= 0L) {
+                    result.append(String.format(
+                        Locale.ROOT, " %s[%d] %.3fms", component.name().toLowerCase(Locale.ROOT),
+                        this.rule(component), duration / 1_000_000.0
+                    ));
+                }
+            }
+            if (this.limited) {
+                result.append(" limited");
+            }
+            return result.append(": ").append(this.agentString).toString();
+        }
+    }
+}
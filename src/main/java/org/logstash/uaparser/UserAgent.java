@@ -19,6 +19,7 @@
 package org.logstash.uaparser;
 
 import java.util.Map;
+import java.util.Objects;
 
 /**
  * User Agent parsed data class
@@ -26,47 +27,87 @@ import java.util.Map;
  */
 public final class UserAgent {
 
-    public final String family;
+    private static final int FAMILY = 0;
 
-    public final String major;
+    private static final int MAJOR = 1;
 
-    public final String minor;
+    private static final int MINOR = 2;
 
-    public final String patch;
+    private static final int PATCH = 3;
 
-    public final String patchMinor;
+    private static final int PATCH_MINOR = 4;
+
+    private final Rule rule;
+
+    private final CharSequence source;
+
+    private final int[] groups;
 
     public UserAgent(String family, String major, String minor, String patch, String patchMinor) {
-        this.family = family;
-        this.major = major;
-        this.minor = minor;
-        this.patch = patch;
-        this.patchMinor = patchMinor;
+        this(new Rule(Rule.NO_INDEX, family, major, minor, patch, patchMinor), null, null);
     }
 
     UserAgent(String family, String major, String minor, String patch) {
         this(family, major, minor, patch, null);
     }
 
+    /**
+     * @param rule Matched rule, with its fields in family, major, minor, patch, patchMinor order
+     * @param source Agent string the rule matched
+     * @param groups Group offsets of the match
+     */
+    UserAgent(Rule rule, CharSequence source, int[] groups) {
+        this.rule = rule;
+        this.source = source;
+        this.groups = groups;
+    }
+
     // test-only
     static UserAgent fromMap(Map<String, String> m) {
         return new UserAgent(m.get("family"), m.get("major"), m.get("minor"), m.get("patch"));
     }
 
+    public String family() {
+        return rule.value(FAMILY, source, groups);
+    }
+
+    public String major() {
+        return rule.value(MAJOR, source, groups);
+    }
+
+    public String minor() {
+        return rule.value(MINOR, source, groups);
+    }
+
+    public String patch() {
+        return rule.value(PATCH, source, groups);
+    }
+
+    public String patchMinor() {
+        return rule.value(PATCH_MINOR, source, groups);
+    }
+
+    /**
+     * @return Index of the matched rule in the user_agent_parsers section, or
+     * {@link Rule#NO_INDEX} if no rule matched
+     */
+    public int ruleIndex() {
+        return rule.index;
+    }
+
     @Override
     public boolean equals(Object other) {
         if (other == this) return true;
         if (!(other instanceof UserAgent)) return false;
         UserAgent o = (UserAgent) other;
-        return ((this.family != null && this.family.equals(o.family)) || this.family == o.family) &&
-            ((this.major != null && this.major.equals(o.major)) || this.major == o.major) &&
-            ((this.minor != null && this.minor.equals(o.minor)) || this.minor == o.minor) &&
-            ((this.patch != null && this.patch.equals(o.patch)) || this.patch == o.patch) &&
-            ((this.patchMinor != null && this.patchMinor.equals(o.patchMinor)) || this.patchMinor == o.patchMinor);
+        return Objects.equals(family(), o.family()) && Objects.equals(major(), o.major()) &&
+            Objects.equals(minor(), o.minor()) && Objects.equals(patch(), o.patch()) &&
+            Objects.equals(patchMinor(), o.patchMinor());
     }
 
     @Override
     public int hashCode() {
+        String family = family(), major = major(), minor = minor(), patch = patch(), patchMinor = patchMinor();
         int h = family == null ? 0 : family.hashCode();
         h += major == null ? 0 : major.hashCode();
         h += minor == null ? 0 : minor.hashCode();
@@ -77,6 +118,7 @@ public final class UserAgent {
 
     @Override
     public String toString() {
+        String family = family(), major = major(), minor = minor(), patch = patch(), patchMinor = patchMinor();
         return String.format(
             "{\"family\": %s, \"major\": %s, \"minor\": %s, \"patch\": %s, \"patchMinor\": %s}",
             family == null ? Constants.EMPTY_STRING : '"' + family + '"',
@@ -21,8 +21,6 @@ package org.logstash.uaparser;
 import java.util.ArrayList;
 import java.util.List;
 import java.util.Map;
-import java.util.regex.Matcher;
-import java.util.regex.Pattern;
 
 /**
  * User Agent parser using ua-parser regexes
@@ -30,7 +28,7 @@ import java.util.regex.Pattern;
  */
 final class UserAgentParser {
 
-    private static final UserAgent OTHER = new UserAgent("Other", null, null, null);
+    static final UserAgent OTHER = new UserAgent("Other", null, null, null);
 
     private final List<UserAgentParser.UAPattern> patterns;
 
@@ -39,107 +37,163 @@ final class UserAgentParser {
     }
 
     public static UserAgentParser fromList(final List<Map<String, String>> configList) {
-        final List<UserAgentParser.UAPattern> configPatterns = new ArrayList<>();
+        final List<RuleDefinition> definitions = new ArrayList<>(configList.size());
         for (final Map<String, String> configMap : configList) {
-            configPatterns.add(UserAgentParser.patternFromMap(configMap));
+            definitions.add(RuleDefinition.of(configMap));
+        }
+        return UserAgentParser.fromDefinitions(definitions);
+    }
+
+    static UserAgentParser fromDefinitions(final List<RuleDefinition> definitions) {
+        final List<UserAgentParser.UAPattern> configPatterns = new ArrayList<>(definitions.size());
+        for (final RuleDefinition definition : definitions) {
+            configPatterns.add(UserAgentParser.patternFromDefinition(configPatterns.size(), definition));
         }
         return new UserAgentParser(configPatterns);
     }
 
     public UserAgent parse(final String agentString) {
+        return parse(agentString, agentString);
+    }
+
+    /**
+     * @param agentString Agent string to match
+     * @param source Equivalent agent string retained by the result
+     */
+    UserAgent parse(final String agentString, final CharSequence source) {
+        return parse(agentString, new RegexRule.Input(agentString), source);
+    }
+
+    /**
+     * @param agentString Agent string to match
+     * @param input Agent string the regexes are run against, e.g. to bound their evaluation
+     * @param source Equivalent agent string retained by the result
+     */
+    UserAgent parse(final String agentString, final RegexRule.Input input, final CharSequence source) {
         if (agentString == null) {
             return null;
         }
         for (final UserAgentParser.UAPattern p : this.patterns) {
             final UserAgent agent;
-            if ((agent = p.match(agentString)) != null) {
+            if ((agent = p.match(agentString, input, source)) != null) {
                 return agent;
             }
         }
         return UserAgentParser.OTHER;
     }
 
-    private static UserAgentParser.UAPattern patternFromMap(final Map<String, String> configMap) {
-        final String regex = configMap.get("regex");
-        if (regex == null) {
-            throw new IllegalArgumentException("User agent is missing regex");
-        }
-        return new UserAgentParser.UAPattern(
-            Pattern.compile(regex),
-            configMap.get("family_replacement"),
-            configMap.get("v1_replacement"),
-            configMap.get("v2_replacement")
-        );
+    /**
+     * @param definitions Rules replacing this parser's ones
+     * @return Index of the first rule which changed, see {@link RegexRule#unchanged}
+     */
+    int unchanged(final List<RuleDefinition> definitions) {
+        return RegexRule.unchanged(this.patterns, definitions);
     }
 
-    private static final class UAPattern {
-
-        private static final Pattern FIRST_PATTERN = Pattern.compile("\\$1");
+    /**
+     * @param definitions Rules replacing this parser's ones
+     * @return Parser of the given rules, sharing this parser's rules up to the first one which
+     * changed
+     */
+    UserAgentParser reload(final List<RuleDefinition> definitions) {
+        final int unchanged = this.unchanged(definitions);
+        final List<UserAgentParser.UAPattern> configPatterns = new ArrayList<>(definitions.size());
+        for (final RuleDefinition definition : definitions) {
+            final int index = configPatterns.size();
+            configPatterns.add(
+                index < unchanged ? this.patterns.get(index)
+                    : UserAgentParser.patternFromDefinition(index, definition)
+            );
+        }
+        return new UserAgentParser(configPatterns);
+    }
 
-        private final Matcher matcher;
+    /**
+     * @param enabled Whether to profile the rules, see {@link RegexRule#profile(boolean)}
+     */
+    void profile(final boolean enabled) {
+        RegexRule.profile(this.patterns, enabled);
+    }
 
-        private final boolean familyContainsPos;
+    /**
+     * @param profiles Profiles to add those of the profiled rules to
+     */
+    void profiles(final List<RuleProfile> profiles) {
+        RegexRule.profiles(this.patterns, Component.USER_AGENT, profiles);
+    }
 
-        private final String familyReplacement;
+    /**
+     * Compiles the regexes of the rules not evaluated yet.
+     */
+    void compileAll() {
+        RulePool.forEach(this.patterns, RegexRule::compile);
+    }
 
-        private final String v1Replacement;
+    private static UserAgentParser.UAPattern patternFromDefinition(final int index,
+        final RuleDefinition definition) {
+        final String regex = definition.get("regex");
+        if (regex == null) {
+            throw new IllegalArgumentException("User agent is missing regex");
+        }
+        return new UserAgentParser.UAPattern(
+            index,
+            definition,
+            definition.get("family_replacement"),
+            definition.get("v1_replacement"),
+            definition.get("v2_replacement")
+        );
+    }
 
-        private final String v2Replacement;
+    private static final class UAPattern extends RegexRule {
 
-        UAPattern(final Pattern pattern, final String familyReplacement, final String v1Replacement,
-            final String v2Replacement) {
-            this.matcher = pattern.matcher("");
-            this.familyReplacement = familyReplacement;
-            this.v1Replacement = v1Replacement;
-            this.v2Replacement = v2Replacement;
-            if (this.familyReplacement == null) {
-                this.familyContainsPos = false;
-            } else {
-                this.familyContainsPos = this.familyReplacement.contains("$1");
-            }
+        UAPattern(final int index, final RuleDefinition definition,
+            final String familyReplacement, final String v1Replacement, final String v2Replacement) {
+            super(
+                index, definition,
+                fields(definition.groupCount(), familyReplacement, v1Replacement, v2Replacement)
+            );
         }
 
-        public synchronized UserAgent match(final CharSequence agentString) {
-            this.matcher.reset(agentString);
-            if (!this.matcher.find()) {
+        UserAgent match(final String agentString, final RegexRule.Input input,
+            final CharSequence source) {
+            final int[] groups = this.find(agentString, input);
+            if (groups == null) {
                 return null;
             }
-            final int groupCount = this.matcher.groupCount();
-            String family = null;
-            if (this.familyReplacement != null) {
-                if (this.familyContainsPos && groupCount >= 1 &&
-                    this.matcher.group(1) != null) {
-                    family = FIRST_PATTERN.matcher(this.familyReplacement)
-                        .replaceFirst(Matcher.quoteReplacement(this.matcher.group(1)));
+            return this.isNull(0, groups) ? null : new UserAgent(this, source, groups);
+        }
+
+        private static Object[] fields(final int groupCount, final String familyReplacement,
+            final String v1Replacement, final String v2Replacement) {
+            Object family = null;
+            if (familyReplacement != null) {
+                if (familyReplacement.contains("$1")) {
+                    family = Rule.Template.first(familyReplacement);
                 } else {
-                    family = this.familyReplacement;
+                    family = familyReplacement;
                 }
             } else if (groupCount >= 1) {
-                family = this.matcher.group(1);
+                family = Rule.group(1);
             }
-            String v1 = null;
-            if (this.v1Replacement != null) {
-                v1 = this.v1Replacement;
+            Object v1 = null;
+            if (v1Replacement != null) {
+                v1 = v1Replacement;
             } else if (groupCount >= 2) {
-                v1 = nonBlank(matcher.group(2));
+                v1 = Rule.nonBlankGroup(2);
             }
-            String v2 = null, v3 = null, v4 = null;
-            if (this.v2Replacement != null) {
-                v2 = this.v2Replacement;
+            Object v2 = null, v3 = null, v4 = null;
+            if (v2Replacement != null) {
+                v2 = v2Replacement;
             } else if (groupCount >= 3) {
-                v2 = nonBlank(matcher.group(3));
+                v2 = Rule.nonBlankGroup(3);
                 if (groupCount >= 4) {
-                    v3 = nonBlank(matcher.group(4));
+                    v3 = Rule.nonBlankGroup(4);
                     if (groupCount >= 5) {
-                        v4 = nonBlank(matcher.group(5));
+                        v4 = Rule.nonBlankGroup(5);
                     }
                 }
             }
-            return family == null ? null : new UserAgent(family, v1, v2, v3, v4);
-        }
-
-        private static String nonBlank(String value) {
-            return (value == null || value.isEmpty()) ? null : value;
+            return new Object[]{family, v1, v2, v3, v4};
         }
     }
 }
@@ -0,0 +1,331 @@
+/*
+ * Licensed to Elasticsearch under one or more contributor
+ * license agreements. See the NOTICE file distributed with
+ * this work for additional information regarding copyright
+ * ownership. Elasticsearch licenses this file to you under
+ * the Apache License, Version 2.0 (the "License"); you may
+ * not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing,
+ * software distributed under the License is distributed on an
+ * "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+ * KIND, either express or implied.  See the License for the
+ * specific language governing permissions and limitations
+ * under the License.
+ */
+package org.logstash.uaparser.tools;
+
+import java.io.BufferedReader;
+import java.io.IOException;
+import java.io.InputStreamReader;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Paths;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Locale;
+import java.util.Map;
+
+/**
+ * Replays a stream of agent strings through a simulated LRU cache, the policy of
+ * {@link org.logstash.uaparser.CachingParser}, to tell the hit ratio and memory of every cache
+ * size at once.
+ *
+ * Each access is assigned its stack distance, i.e. the number of distinct agent strings
+ * accessed since the previous access to the same one, plus one: an LRU cache of {@code size}
+ * entries hits exactly the accesses at a distance of at most {@code size}. Distances are counted
+ * with a Fenwick tree over the time of the last access of each agent string, which is
+ * renumbered when full so that memory is bounded by the number of distinct agent strings.
+ */
+public final class CacheSimulator {
+
+    /**
+     * Estimated bytes of a cache entry on top of its agent string: the map entry, the packed
+     * key and the parsed client. Measured as the heap growth of a {@code CachingParser} parsing
+     * 100000 distinct agent strings of the {@link WorkloadGenerator}, 95 characters long on
+     * average, less their length, on Java 17 with compressed oops.
+     */
+    public static final int ENTRY_OVERHEAD = 240;
+
+    /**
+     * Holds the time of the last access of each agent string.
+     */
+    private final Map<String, int[]> last = new HashMap<>();
+
+    /**
+     * Fenwick tree, 1-based, counting the last accesses at each time.
+     */
+    private int[] tree;
+
+    private int time;
+
+    /**
+     * Number of accesses at each stack distance.
+     */
+    private long[] distances = new long[1024];
+
+    private long accesses;
+
+    private long keyLength;
+
+    public CacheSimulator() {
+        this(1 << 20);
+    }
+
+    CacheSimulator(final int capacity) {
+        this.tree = new int[capacity + 1];
+    }
+
+    /**
+     * @param agentString Accessed agent string
+     */
+    public void access(final String agentString) {
+        if (this.time == this.tree.length - 1) {
+            this.compact();
+        }
+        ++this.accesses;
+        int[] previous = this.last.get(agentString);
+        if (previous == null) {
+            previous = new int[1];
+            this.last.put(agentString, previous);
+            this.keyLength += agentString.length();
+        } else {
+            // the agent strings accessed since are those above it in the LRU order
+            this.record(this.count(this.time) - this.count(previous[0] + 1) + 1);
+            this.add(previous[0], -1);
+        }
+        previous[0] = this.time;
+        this.add(this.time, 1);
+        ++this.time;
+    }
+
+    /**
+     * @return Number of accesses
+     */
+    public long accesses() {
+        return this.accesses;
+    }
+
+    /**
+     * @return Number of distinct agent strings accessed, i.e. of misses of an unbounded cache
+     */
+    public int distinct() {
+        return this.last.size();
+    }
+
+    /**
+     * @param size Number of cache entries
+     * @return Number of accesses an LRU cache of {@code size} entries hits
+     */
+    public long hits(final int size) {
+        long hits = 0L;
+        for (int distance = 1; distance <= Math.min(size, this.distances.length - 1); ++distance) {
+            hits += this.distances[distance];
+        }
+        return hits;
+    }
+
+    /**
+     * @param size Number of cache entries
+     * @param entryOverhead Estimated bytes of an entry on top of its agent string, see
+     * {@link #ENTRY_OVERHEAD}
+     * @return Estimated bytes of the cache once full, from the average agent string length
+     */
+    public long memory(final int size, final int entryOverhead) {
+        final int distinct = this.distinct();
+        if (distinct == 0) {
+            return 0L;
+        }
+        return Math.min(size, distinct) * (entryOverhead + this.keyLength / distinct);
+    }
+
+    /**
+     * @param target Fraction of the hits of an unbounded cache to reach
+     * @return Smallest cache size hitting that fraction
+     */
+    public int sizeFor(final double target) {
+        final long reachable = this.accesses - this.distinct();
+        long hits = 0L;
+        int size = 0;
+        while (hits < target * reachable && size < this.distances.length - 1) {
+            hits += this.distances[++size];
+        }
+        return Math.max(size, 1);
+    }
+
+    /**
+     * Replays agent strings, one per line, and prints the hit ratio and estimated memory of a
+     * range of cache sizes along with the recommended one. Run with {@code --help} for the
+     * options.
+     * @param args Options followed by input files, the standard input if none
+     * @throws IOException On failure to read
+     */
+    public static void main(final String[] args) throws IOException {
+        double target = 0.95;
+        int entryOverhead = CacheSimulator.ENTRY_OVERHEAD;
+        int[] sizes = null;
+        boolean log = false;
+        int field = -1;
+        final List<String> files = new ArrayList<>();
+        try {
+            for (int i = 0; i < args.length; ++i) {
+                switch (args[i]) {
+                    case "--target":
+                        target = Double.parseDouble(args[++i]);
+                        break;
+                    case "--entry-overhead":
+                        entryOverhead = Integer.parseInt(args[++i]);
+                        break;
+                    case "--sizes":
+                        sizes = Arrays.stream(args[++i].split(",")).mapToInt(Integer::parseInt).toArray();
+                        break;
+                    case "--log":
+                        log = true;
+                        break;
+                    case "--field":
+                        log = true;
+                        field = Integer.parseInt(args[++i]);
+                        break;
+                    default:
+                        if (args[i].startsWith("--")) {
+                            throw new IllegalArgumentException("Unknown option " + args[i]);
+                        }
+                        files.add(args[i]);
+                }
+            }
+        } catch (final RuntimeException ex) {
+            System.err.println(String.join(System.lineSeparator(),
+                "Usage: CacheSimulator [options] [FILE...]",
+                "Replays the user agents of FILEs, or of the standard input, one per line, through",
+                "an LRU cache of every size, printing hit ratios and the lru_cache_size to use",
+                "  --target F          fraction of the hits of an unbounded cache to reach (0.95)",
+                "  --sizes N,N,...     cache sizes to print (powers of 10 times 1, 2 and 5)",
+                "  --entry-overhead N  estimated bytes per entry on top of its user agent (" + CacheSimulator.ENTRY_OVERHEAD + ")",
+                "  --log               FILEs are access logs in the combined log format",
+                "  --field N           FILEs are tab separated access logs, user agents in field N"
+            ));
+            System.exit(1);
+            return;
+        }
+        final CacheSimulator simulator = new CacheSimulator();
+        if (files.isEmpty()) {
+            CacheSimulator.replay(
+                new BufferedReader(new InputStreamReader(System.in, StandardCharsets.UTF_8)),
+                simulator, log, field
+            );
+        }
+        for (final String file : files) {
+            try (BufferedReader input = Files.newBufferedReader(Paths.get(file), StandardCharsets.UTF_8)) {
+                CacheSimulator.replay(input, simulator, log, field);
+            }
+        }
+        simulator.report(sizes, target, entryOverhead);
+    }
+
+    private static void replay(final BufferedReader input, final CacheSimulator simulator,
+        final boolean log, final int field) throws IOException {
+        if (log) {
+            WorkloadGenerator.replay(input, field, simulator::access);
+            return;
+        }
+        String line;
+        while ((line = input.readLine()) != null) {
+            simulator.access(line);
+        }
+    }
+
+    private void report(final int[] sizes, final double target, final int entryOverhead) {
+        final long accesses = this.accesses;
+        if (accesses == 0L) {
+            System.out.println("No user agents");
+            return;
+        }
+        System.out.printf(
+            Locale.ROOT, "%d user agents, %d distinct, %.4f hit ratio with an unbounded cache%n%n",
+            accesses, this.distinct(), (double) (accesses - this.distinct()) / accesses
+        );
+        System.out.printf(Locale.ROOT, "%12s %10s %12s%n", "cache size", "hit ratio", "memory (MB)");
+        for (final int size : sizes == null ? this.sizes() : sizes) {
+            System.out.printf(
+                Locale.ROOT, "%12d %10.4f %12.1f%n", size, (double) this.hits(size) / accesses,
+                this.memory(size, entryOverhead) / 1e6
+            );
+        }
+        final int recommended = this.sizeFor(target);
+        System.out.printf(
+            Locale.ROOT, "%nlru_cache_size => %d reaches %.0f%% of the unbounded hits: "
+                + "hit ratio %.4f, about %.1f MB%n",
+            recommended, target * 100, (double) this.hits(recommended) / accesses,
+            this.memory(recommended, entryOverhead) / 1e6
+        );
+    }
+
+    /**
+     * @return Powers of 10 times 1, 2 and 5 up to the number of distinct agent strings
+     */
+    private int[] sizes() {
+        final List<Integer> sizes = new ArrayList<>();
+        for (long power = 10L; power < 10L * Math.max(this.distinct(), 10); power *= 10L) {
+            for (final int factor : new int[] {1, 2, 5}) {
+                if (power * factor <= Math.max(this.distinct(), 10)) {
+                    sizes.add((int) (power * factor));
+                }
+            }
+        }
+        return sizes.stream().mapToInt(Integer::intValue).toArray();
+    }
+
+    private void record(final int distance) {
+        if (distance >= this.distances.length) {
+            this.distances = Arrays.copyOf(this.distances, Math.max(2 * this.distances.length, distance + 1));
+        }
+        ++this.distances[distance];
+    }
+
+    /**
+     * @return Number of last accesses before {@code end}
+     */
+    private int count(final int end) {
+        int count = 0;
+        for (int i = end; i > 0; i -= i & -i) {
+            count += this.tree[i];
+        }
+        return count;
+    }
+
+    private void add(final int time, final int delta) {
+        for (int i = time + 1; i < this.tree.length; i += i & -i) {
+            this.tree[i] += delta;
+        }
+    }
+
+    /**
+     * Renumbers the last accesses 0 to {@code distinct - 1} in order, growing the tree if they
+     * fill more than half of it.
+     */
+    private void compact() {
+        final int[][] accesses = this.last.values().toArray(new int[0][]);
+        Arrays.sort(accesses, (left, right) -> Integer.compare(left[0], right[0]));
+        final int capacity = Math.max(this.tree.length - 1, 4 * accesses.length);
+        this.tree = new int[capacity + 1];
+        for (int i = 0; i < accesses.length; ++i) {
+            accesses[i][0] = i;
+        }
+        // builds the tree in linear time, each node adding up into its parent
+        for (int i = 1; i <= capacity; ++i) {
+            if (i <= accesses.length) {
+                ++this.tree[i];
+            }
+            final int parent = i + (i & -i);
+            if (parent <= capacity) {
+                this.tree[parent] += this.tree[i];
+            }
+        }
+        this.time = accesses.length;
+    }
+}
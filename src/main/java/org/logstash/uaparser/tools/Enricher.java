@@ -0,0 +1,400 @@
+/*
+ * Licensed to Elasticsearch under one or more contributor
+ * license agreements. See the NOTICE file distributed with
+ * this work for additional information regarding copyright
+ * ownership. Elasticsearch licenses this file to you under
+ * the Apache License, Version 2.0 (the "License"); you may
+ * not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing,
+ * software distributed under the License is distributed on an
+ * "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+ * KIND, either express or implied.  See the License for the
+ * specific language governing permissions and limitations
+ * under the License.
+ */
+package org.logstash.uaparser.tools;
+
+import java.io.BufferedOutputStream;
+import java.io.FileDescriptor;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.io.UncheckedIOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.Channels;
+import java.nio.channels.FileChannel;
+import java.nio.channels.ReadableByteChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Paths;
+import java.nio.file.StandardOpenOption;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Locale;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.TimeUnit;
+import org.logstash.uaparser.CachingParser;
+import org.logstash.uaparser.Client;
+import org.logstash.uaparser.OS;
+import org.logstash.uaparser.UserAgent;
+
+/**
+ * Parses files of agent strings, one per line, writing the parsed fields of each line in the
+ * same order, as tab separated values or JSON lines.
+ *
+ * Input is read in large chunks, split at line boundaries, each chunk being parsed by one of a
+ * pool of threads sharing one {@link CachingParser}. Lines are parsed from their UTF-8 bytes, so
+ * that cached agent strings aren't even decoded. Parsed chunks are written in input order, with
+ * a bounded number of chunks in flight.
+ */
+public final class Enricher {
+
+    private static final int CHUNK_SIZE = 1 << 20;
+
+    private static final String[] FIELDS = {
+        "name", "version", "major", "minor", "patch", "os_name", "os_version", "os_major",
+        "os_minor", "os_patch", "os_full", "device"
+    };
+
+    /**
+     * Marks the end of the chunks.
+     */
+    private static final Future<byte[]> END = CompletableFuture.completedFuture(null);
+
+    private final CachingParser parser;
+
+    private final boolean json;
+
+    private final ExecutorService workers;
+
+    private final int threads;
+
+    private long lines;
+
+    private long bytes;
+
+    /**
+     * @param parser Parser shared by all the threads
+     * @param json Whether to write JSON lines rather than tab separated values
+     * @param threads Number of parsing threads
+     */
+    public Enricher(final CachingParser parser, final boolean json, final int threads) {
+        this.parser = parser;
+        this.json = json;
+        this.threads = threads;
+        this.workers = Executors.newFixedThreadPool(threads, Enricher::daemon);
+    }
+
+    /**
+     * Parses all the lines of the inputs in order.
+     * @param inputs Inputs of agent strings, one per line
+     * @param output Output of the parsed fields, one line per input line
+     * @throws IOException On failure to read or write
+     */
+    public void enrich(final List<ReadableByteChannel> inputs, final OutputStream output)
+        throws IOException {
+        final BlockingQueue<Future<byte[]>> chunks = new ArrayBlockingQueue<>(2 * this.threads);
+        final ExecutorService writer = Executors.newSingleThreadExecutor(Enricher::daemon);
+        final Future<?> written = writer.submit(() -> {
+            try {
+                Future<byte[]> chunk;
+                while ((chunk = chunks.take()) != Enricher.END) {
+                    output.write(chunk.get());
+                }
+                output.flush();
+            } catch (final IOException ex) {
+                throw new UncheckedIOException(ex);
+            } catch (final ExecutionException ex) {
+                throw new IllegalStateException(ex.getCause());
+            }
+            return null;
+        });
+        try {
+            for (final ReadableByteChannel input : inputs) {
+                this.read(input, chunks, written);
+            }
+            Enricher.queue(chunks, Enricher.END, written);
+            written.get();
+        } catch (final InterruptedException ex) {
+            Thread.currentThread().interrupt();
+            throw new IOException(ex);
+        } catch (final ExecutionException ex) {
+            if (ex.getCause() instanceof UncheckedIOException) {
+                throw ((UncheckedIOException) ex.getCause()).getCause();
+            }
+            throw new IOException("Failed to parse user agents", ex.getCause());
+        } finally {
+            writer.shutdownNow();
+            this.workers.shutdownNow();
+        }
+    }
+
+    /**
+     * @return Lines parsed
+     */
+    public long lines() {
+        return this.lines;
+    }
+
+    /**
+     * @return Bytes of input read
+     */
+    public long bytes() {
+        return this.bytes;
+    }
+
+    /**
+     * Parses agent strings and writes their fields, see {@link Enricher}. Run with
+     * {@code --help} for the options.
+     * @param args Options followed by input files, the standard input if none or {@code -}
+     * @throws IOException On failure to read or write
+     */
+    public static void main(final String[] args) throws IOException {
+        int threads = Runtime.getRuntime().availableProcessors();
+        int cacheSize = 100_000;
+        String regexes = null;
+        String out = null;
+        boolean json = false;
+        final List<String> files = new ArrayList<>();
+        try {
+            for (int i = 0; i < args.length; ++i) {
+                switch (args[i]) {
+                    case "--threads":
+                        threads = Integer.parseInt(args[++i]);
+                        break;
+                    case "--cache-size":
+                        cacheSize = Integer.parseInt(args[++i]);
+                        break;
+                    case "--regexes":
+                        regexes = args[++i];
+                        break;
+                    case "--output":
+                        out = args[++i];
+                        break;
+                    case "--format":
+                        json = "json".equals(args[++i]);
+                        if (!json && !"tsv".equals(args[i])) {
+                            throw new IllegalArgumentException("Unknown format " + args[i]);
+                        }
+                        break;
+                    default:
+                        if (args[i].startsWith("--") && args[i].length() > 2) {
+                            throw new IllegalArgumentException("Unknown option " + args[i]);
+                        }
+                        files.add(args[i]);
+                }
+            }
+        } catch (final RuntimeException ex) {
+            System.err.println(String.join(System.lineSeparator(),
+                "Usage: Enricher [options] [FILE...] > parsed.tsv",
+                "Parses the user agents of FILEs, or of the standard input, one per line",
+                "  --format tsv|json  tab separated " + String.join(",", Enricher.FIELDS),
+                "                     or JSON lines of the same fields (tsv)",
+                "  --output FILE      write to FILE instead of the standard output",
+                "  --threads N        parsing threads (number of cores)",
+                "  --cache-size N     cached user agents (100000)",
+                "  --regexes FILE     regexes.yaml or binary rule set to parse with (bundled)"
+            ));
+            System.exit(1);
+            return;
+        }
+        final CachingParser parser = regexes == null
+            ? new CachingParser(cacheSize) : new CachingParser(regexes, cacheSize);
+        final List<ReadableByteChannel> inputs = new ArrayList<>();
+        if (files.isEmpty()) {
+            files.add("-");
+        }
+        for (final String file : files) {
+            inputs.add("-".equals(file)
+                ? Channels.newChannel(System.in) : FileChannel.open(Paths.get(file), StandardOpenOption.READ));
+        }
+        final Enricher enricher = new Enricher(parser, json, threads);
+        final long start = System.nanoTime();
+        try (OutputStream output = out == null
+            ? new BufferedOutputStream(new FileOutputStream(FileDescriptor.out), 1 << 20)
+            : new BufferedOutputStream(new FileOutputStream(out), 1 << 20)) {
+            enricher.enrich(inputs, output);
+        } finally {
+            for (final ReadableByteChannel input : inputs) {
+                input.close();
+            }
+        }
+        final double seconds = (System.nanoTime() - start) / 1e9;
+        final long lookups = parser.hits() + parser.misses();
+        System.err.printf(
+            Locale.ROOT, "%d lines, %.1f MB in %.2fs: %.0f lines/s, %.1f MB/s, cache hit ratio %.3f%n",
+            enricher.lines(), enricher.bytes() / 1e6, seconds, enricher.lines() / seconds,
+            enricher.bytes() / 1e6 / seconds, lookups == 0 ? 0.0 : (double) parser.hits() / lookups
+        );
+    }
+
+    /**
+     * Reads an input in chunks of whole lines, queueing the parsing of each.
+     */
+    private void read(final ReadableByteChannel input, final BlockingQueue<Future<byte[]>> chunks,
+        final Future<?> written) throws IOException, InterruptedException {
+        ByteBuffer buffer = ByteBuffer.allocate(Enricher.CHUNK_SIZE);
+        while (true) {
+            final int read = input.read(buffer);
+            if (read > 0) {
+                this.bytes += read;
+            }
+            final byte[] array = buffer.array();
+            final int end = read < 0 ? buffer.position() : Enricher.lastLineEnd(array, buffer.position());
+            if (end > 0) {
+                final byte[] chunk = array;
+                if (!Enricher.queue(chunks, this.workers.submit(() -> this.parse(chunk, end)), written)) {
+                    return;
+                }
+                this.lines += Enricher.countLines(chunk, end);
+                // the partial line goes first in the next chunk
+                final int rest = buffer.position() - end;
+                final ByteBuffer next = ByteBuffer.allocate(Math.max(Enricher.CHUNK_SIZE, 2 * rest));
+                next.put(array, end, rest);
+                buffer = next;
+            } else if (!buffer.hasRemaining()) {
+                // a line longer than the buffer
+                buffer = ByteBuffer.allocate(2 * buffer.capacity()).put(array, 0, buffer.position());
+            }
+            if (read < 0) {
+                return;
+            }
+        }
+    }
+
+    /**
+     * Queues a chunk, waiting for room as long as the writer is running.
+     * @return Whether the chunk was queued, {@code false} if the writer failed
+     */
+    private static boolean queue(final BlockingQueue<Future<byte[]>> chunks,
+        final Future<byte[]> chunk, final Future<?> written) throws InterruptedException {
+        while (!chunks.offer(chunk, 100L, TimeUnit.MILLISECONDS)) {
+            if (written.isDone()) {
+                // the writer failed, its error is thrown by enrich
+                return false;
+            }
+        }
+        return true;
+    }
+
+    private static Thread daemon(final Runnable runnable) {
+        final Thread thread = new Thread(runnable, "useragent-enricher");
+        thread.setDaemon(true);
+        return thread;
+    }
+
+    private byte[] parse(final byte[] chunk, final int length) {
+        final StringBuilder result = new StringBuilder(length);
+        int start = 0;
+        while (start < length) {
+            int end = start;
+            while (end < length && chunk[end] != '\n') {
+                ++end;
+            }
+            int last = end;
+            if (last > start && chunk[last - 1] == '\r') {
+                --last;
+            }
+            this.append(result, this.parser.parse(chunk, start, last - start));
+            start = end + 1;
+        }
+        return result.toString().getBytes(StandardCharsets.UTF_8);
+    }
+
+    private void append(final StringBuilder result, final Client client) {
+        final UserAgent userAgent = client.userAgent();
+        final OS os = client.os();
+        final String[] values = {
+            userAgent == null ? null : userAgent.family(),
+            client.version(),
+            userAgent == null ? null : userAgent.major(),
+            userAgent == null ? null : userAgent.minor(),
+            userAgent == null ? null : userAgent.patch(),
+            os == null ? null : os.family(),
+            client.osVersion(),
+            os == null ? null : os.major(),
+            os == null ? null : os.minor(),
+            os == null ? null : os.patch(),
+            client.osFull(),
+            client.device()
+        };
+        if (this.json) {
+            result.append('{');
+            boolean first = true;
+            for (int i = 0; i < values.length; ++i) {
+                if (values[i] != null) {
+                    if (!first) {
+                        result.append(',');
+                    }
+                    first = false;
+                    result.append('"').append(Enricher.FIELDS[i]).append("\":");
+                    Enricher.appendJson(result, values[i]);
+                }
+            }
+            result.append("}\n");
+        } else {
+            for (int i = 0; i < values.length; ++i) {
+                if (i > 0) {
+                    result.append('\t');
+                }
+                if (values[i] != null) {
+                    Enricher.appendTsv(result, values[i]);
+                }
+            }
+            result.append('\n');
+        }
+    }
+
+    private static void appendJson(final StringBuilder result, final String value) {
+        result.append('"');
+        for (int i = 0; i < value.length(); ++i) {
+            final char c = value.charAt(i);
+            if (c == '"' || c == '\\') {
+                result.append('\\').append(c);
+            } else if (c < 0x20) {
+                result.append(String.format(Locale.ROOT, "\\u%04x", (int) c));
+            } else {
+                result.append(c);
+            }
+        }
+        result.append('"');
+    }
+
+    private static void appendTsv(final StringBuilder result, final String value) {
+        for (int i = 0; i < value.length(); ++i) {
+            final char c = value.charAt(i);
+            result.append(c == '\t' || c == '\n' || c == '\r' ? ' ' : c);
+        }
+    }
+
+    /**
+     * @return Index following the last line feed before {@code length}, 0 if none
+     */
+    private static int lastLineEnd(final byte[] bytes, final int length) {
+        for (int i = length - 1; i >= 0; --i) {
+            if (bytes[i] == '\n') {
+                return i + 1;
+            }
+        }
+        return 0;
+    }
+
+    private static long countLines(final byte[] bytes, final int length) {
+        long count = 0L;
+        for (int i = 0; i < length; ++i) {
+            if (bytes[i] == '\n') {
+                ++count;
+            }
+        }
+        return length > 0 && bytes[length - 1] != '\n' ? count + 1 : count;
+    }
+}
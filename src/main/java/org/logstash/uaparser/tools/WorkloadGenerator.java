@@ -0,0 +1,358 @@
+/*
+ * Licensed to Elasticsearch under one or more contributor
+ * license agreements. See the NOTICE file distributed with
+ * this work for additional information regarding copyright
+ * ownership. Elasticsearch licenses this file to you under
+ * the Apache License, Version 2.0 (the "License"); you may
+ * not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing,
+ * software distributed under the License is distributed on an
+ * "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+ * KIND, either express or implied.  See the License for the
+ * specific language governing permissions and limitations
+ * under the License.
+ */
+package org.logstash.uaparser.tools;
+
+import java.io.BufferedReader;
+import java.io.BufferedWriter;
+import java.io.IOException;
+import java.io.OutputStreamWriter;
+import java.io.UncheckedIOException;
+import java.io.Writer;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Paths;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.LinkedHashSet;
+import java.util.List;
+import java.util.Random;
+import java.util.function.Consumer;
+
+/**
+ * Generates streams of agent strings shaped like production traffic, to benchmark parsers and
+ * size caches with, or extracts the agent strings of real access logs.
+ *
+ * Generated streams draw from {@code cardinality} distinct agent strings following a Zipf
+ * distribution, so that a few of them make most of the stream. On top of that:
+ * <ul>
+ * <li>{@code burst} is the probability of an agent string repeating the previous one, as the
+ * requests of a page load do</li>
+ * <li>{@code bots} is the share of agent strings that are unique, as bots and apps putting
+ * session or device identifiers in their agent strings produce</li>
+ * </ul>
+ * The distinct agent strings are those given, or built in ones, followed by variants of them
+ * with a different version number.
+ */
+public final class WorkloadGenerator {
+
+    /**
+     * Common agent strings, the most frequent first.
+     */
+    private static final List<String> AGENTS = Arrays.asList(
+        "Mozilla/5.0 (Windows NT 10.0; Win64; x64) AppleWebKit/537.36 (KHTML, like Gecko) Chrome/120.0.0.0 Safari/537.36",
+        "Mozilla/5.0 (iPhone; CPU iPhone OS 17_1_2 like Mac OS X) AppleWebKit/605.1.15 (KHTML, like Gecko) Version/17.1.2 Mobile/15E148 Safari/604.1",
+        "Mozilla/5.0 (Linux; Android 10; K) AppleWebKit/537.36 (KHTML, like Gecko) Chrome/120.0.0.0 Mobile Safari/537.36",
+        "Mozilla/5.0 (Macintosh; Intel Mac OS X 10_15_7) AppleWebKit/537.36 (KHTML, like Gecko) Chrome/120.0.0.0 Safari/537.36",
+        "Mozilla/5.0 (Windows NT 10.0; Win64; x64; rv:121.0) Gecko/20100101 Firefox/121.0",
+        "Mozilla/5.0 (Windows NT 10.0; Win64; x64) AppleWebKit/537.36 (KHTML, like Gecko) Chrome/120.0.0.0 Safari/537.36 Edg/120.0.0.0",
+        "Mozilla/5.0 (Macintosh; Intel Mac OS X 10_15_7) AppleWebKit/605.1.15 (KHTML, like Gecko) Version/17.1 Safari/605.1.15",
+        "Mozilla/5.0 (Linux; Android 13; SM-S908B) AppleWebKit/537.36 (KHTML, like Gecko) Chrome/112.0.0.0 Mobile Safari/537.36",
+        "Mozilla/5.0 (iPad; CPU OS 17_1 like Mac OS X) AppleWebKit/605.1.15 (KHTML, like Gecko) Version/17.1 Mobile/15E148 Safari/604.1",
+        "Mozilla/5.0 (X11; Linux x86_64) AppleWebKit/537.36 (KHTML, like Gecko) Chrome/120.0.0.0 Safari/537.36",
+        "Mozilla/5.0 (Linux; Android 13; Pixel 7) AppleWebKit/537.36 (KHTML, like Gecko) Chrome/116.0.0.0 Mobile Safari/537.36",
+        "Mozilla/5.0 (X11; Ubuntu; Linux x86_64; rv:121.0) Gecko/20100101 Firefox/121.0",
+        "Mozilla/5.0 (Windows NT 10.0; Win64; x64) AppleWebKit/537.36 (KHTML, like Gecko) Chrome/120.0.0.0 Safari/537.36 OPR/106.0.0.0",
+        "Mozilla/5.0 (Linux; Android 12; SAMSUNG SM-A515F) AppleWebKit/537.36 (KHTML, like Gecko) SamsungBrowser/23.0 Chrome/115.0.0.0 Mobile Safari/537.36",
+        "Mozilla/5.0 (compatible; Googlebot/2.1; +http://www.google.com/bot.html)",
+        "Mozilla/5.0 (compatible; bingbot/2.0; +http://www.bing.com/bingbot.htm)",
+        "Mozilla/5.0 (Windows NT 6.1; WOW64; Trident/7.0; rv:11.0) like Gecko",
+        "curl/8.4.0",
+        "python-requests/2.31.0",
+        "okhttp/4.12.0"
+    );
+
+    /**
+     * Formats of the unique agent strings, filled with random numbers and identifiers.
+     */
+    private static final String[] BOTS = {
+        "Mozilla/5.0 (compatible; crawler-%2$s/%1$d.0; +https://%3$s.example.com/bot)",
+        "ShopApp/%1$d.4.2 (iPhone; iOS 17.1; Scale/3.00; device=%2$s; session=%3$s)",
+        "Dalvik/2.1.0 (Linux; U; Android 13; SM-G99%1$dB Build/TP1A.220624.014) NewsApp/%2$s",
+        "okhttp/4.%1$d.0 (request-id %2$s%3$s)",
+        "Mozilla/5.0 (Linux; Android 11; %2$s) AppleWebKit/537.36 (KHTML, like Gecko) Chrome/9%1$d.0.0.0 Mobile Safari/537.36 TrackingSDK/%3$s"
+    };
+
+    private final Random random;
+
+    private final String[] agents;
+
+    /**
+     * Cumulative weights of the agent strings.
+     */
+    private final double[] cumulative;
+
+    private final double burst;
+
+    private final double bots;
+
+    private String previous;
+
+    /**
+     * @param seeds Agent strings to draw, the most frequent first, varied when fewer than
+     * {@code cardinality}, the built in ones if empty
+     * @param cardinality Number of distinct agent strings drawn, bots aside
+     * @param skew Exponent of the Zipf distribution, 0 for a uniform distribution
+     * @param burst Probability of repeating the previous agent string
+     * @param bots Probability of a unique agent string
+     * @param seed Seed, the same parameters and seed generating the same stream
+     */
+    public WorkloadGenerator(final List<String> seeds, final int cardinality, final double skew,
+        final double burst, final double bots, final long seed) {
+        if (cardinality <= 0) {
+            throw new IllegalArgumentException("Cardinality must be positive");
+        }
+        this.random = new Random(seed);
+        this.agents = WorkloadGenerator.agents(
+            seeds.isEmpty() ? WorkloadGenerator.AGENTS : new ArrayList<>(new LinkedHashSet<>(seeds)),
+            cardinality
+        );
+        this.cumulative = new double[cardinality];
+        double sum = 0.0;
+        for (int rank = 0; rank < cardinality; ++rank) {
+            sum += Math.pow(rank + 1, -skew);
+            this.cumulative[rank] = sum;
+        }
+        this.burst = burst;
+        this.bots = bots;
+    }
+
+    /**
+     * @return Next agent string of the stream
+     */
+    public String next() {
+        final String next;
+        if (this.previous != null && this.random.nextDouble() < this.burst) {
+            next = this.previous;
+        } else if (this.random.nextDouble() < this.bots) {
+            next = this.bot();
+        } else {
+            final double target = this.random.nextDouble() * this.cumulative[this.cumulative.length - 1];
+            final int found = Arrays.binarySearch(this.cumulative, target);
+            next = this.agents[Math.min(found >= 0 ? found : -found - 1, this.agents.length - 1)];
+        }
+        this.previous = next;
+        return next;
+    }
+
+    /**
+     * @param count Number of agent strings
+     * @return The next agent strings of the stream
+     */
+    public List<String> next(final int count) {
+        final List<String> stream = new ArrayList<>(count);
+        for (int i = 0; i < count; ++i) {
+            stream.add(this.next());
+        }
+        return stream;
+    }
+
+    /**
+     * Extracts the agent string of an access log line: the last double quoted field in the
+     * combined log format, or the given field of tab separated lines.
+     * @param line Access log line
+     * @param field Index of the tab separated field holding the agent string, negative for
+     * the combined log format
+     * @return Agent string, {@code null} if the line has none
+     */
+    public static String userAgent(final String line, final int field) {
+        if (field >= 0) {
+            int start = 0;
+            for (int i = 0; i < field; ++i) {
+                start = line.indexOf('\t', start) + 1;
+                if (start == 0) {
+                    return null;
+                }
+            }
+            final int end = line.indexOf('\t', start);
+            return line.substring(start, end < 0 ? line.length() : end);
+        }
+        int end = line.length() - 1;
+        while (end >= 0 && line.charAt(end) != '"') {
+            --end;
+        }
+        int start = end - 1;
+        while (start >= 0 && (line.charAt(start) != '"' || WorkloadGenerator.escaped(line, start))) {
+            --start;
+        }
+        if (start < 0) {
+            return null;
+        }
+        return line.substring(start + 1, end).replace("\\\"", "\"");
+    }
+
+    /**
+     * Passes the agent strings of an access log, in order, see {@link #userAgent(String, int)}.
+     * @param log Access log
+     * @param field Index of the tab separated field holding the agent string, negative for
+     * the combined log format
+     * @param agents Consumer of the agent strings
+     * @throws IOException On failure to read the log
+     */
+    public static void replay(final BufferedReader log, final int field,
+        final Consumer<String> agents) throws IOException {
+        String line;
+        while ((line = log.readLine()) != null) {
+            final String agent = WorkloadGenerator.userAgent(line, field);
+            if (agent != null && !agent.isEmpty() && !"-".equals(agent)) {
+                agents.accept(agent);
+            }
+        }
+    }
+
+    /**
+     * Writes a generated stream, or the agent strings of an access log, one per line to the
+     * standard output. Run with {@code --help} for the options.
+     * @param args Options
+     * @throws IOException On failure to read or write
+     */
+    public static void main(final String[] args) throws IOException {
+        int count = 1_000_000;
+        int cardinality = 10_000;
+        double skew = 1.0;
+        double burst = 0.0;
+        double bots = 0.0;
+        long seed = 42L;
+        String agents = null;
+        String replay = null;
+        int field = -1;
+        try {
+            for (int i = 0; i < args.length; i += 2) {
+                final String value = args[i + 1];
+                switch (args[i]) {
+                    case "--count":
+                        count = Integer.parseInt(value);
+                        break;
+                    case "--cardinality":
+                        cardinality = Integer.parseInt(value);
+                        break;
+                    case "--skew":
+                        skew = Double.parseDouble(value);
+                        break;
+                    case "--burst":
+                        burst = Double.parseDouble(value);
+                        break;
+                    case "--bots":
+                        bots = Double.parseDouble(value);
+                        break;
+                    case "--seed":
+                        seed = Long.parseLong(value);
+                        break;
+                    case "--agents":
+                        agents = value;
+                        break;
+                    case "--replay":
+                        replay = value;
+                        break;
+                    case "--field":
+                        field = Integer.parseInt(value);
+                        break;
+                    default:
+                        throw new IllegalArgumentException("Unknown option " + args[i]);
+                }
+            }
+        } catch (final RuntimeException ex) {
+            System.err.println(String.join(System.lineSeparator(),
+                "Usage: WorkloadGenerator [options] > agents.txt",
+                "  --count N        agent strings to generate (1000000)",
+                "  --cardinality N  distinct agent strings, bots aside (10000)",
+                "  --skew S         Zipf exponent, 0 for uniform (1.0)",
+                "  --burst P        probability of repeating the previous agent string (0)",
+                "  --bots P         share of unique, high entropy agent strings (0)",
+                "  --seed N         random seed (42)",
+                "  --agents FILE    distinct agent strings to draw, one per line, most frequent first",
+                "  --replay LOG     extract the agent strings of an access log instead",
+                "  --field N        tab separated field of the agent strings in LOG, 0 based,",
+                "                   the last quoted field (combined log format) if not set"
+            ));
+            System.exit(1);
+            return;
+        }
+        try (Writer out = new BufferedWriter(new OutputStreamWriter(System.out, StandardCharsets.UTF_8), 1 << 16)) {
+            final Consumer<String> writer = agent -> {
+                try {
+                    out.write(agent);
+                    out.write('\n');
+                } catch (final IOException ex) {
+                    throw new UncheckedIOException(ex);
+                }
+            };
+            if (replay != null) {
+                try (BufferedReader log = Files.newBufferedReader(Paths.get(replay), StandardCharsets.UTF_8)) {
+                    WorkloadGenerator.replay(log, field, writer);
+                }
+                return;
+            }
+            final List<String> seeds = agents == null
+                ? WorkloadGenerator.AGENTS : Files.readAllLines(Paths.get(agents), StandardCharsets.UTF_8);
+            final WorkloadGenerator generator =
+                new WorkloadGenerator(seeds, cardinality, skew, burst, bots, seed);
+            for (int i = 0; i < count; ++i) {
+                writer.accept(generator.next());
+            }
+        }
+    }
+
+    private String bot() {
+        final String format = WorkloadGenerator.BOTS[this.random.nextInt(WorkloadGenerator.BOTS.length)];
+        return String.format(
+            format, this.random.nextInt(9) + 1, Long.toHexString(this.random.nextLong()),
+            Integer.toHexString(this.random.nextInt())
+        );
+    }
+
+    /**
+     * @return {@code cardinality} distinct agent strings, the seeds followed by variants of
+     * them with their last number increased
+     */
+    private static String[] agents(final List<String> seeds, final int cardinality) {
+        final String[] agents = new String[cardinality];
+        for (int i = 0; i < cardinality; ++i) {
+            final String seed = seeds.get(i % seeds.size());
+            agents[i] = i < seeds.size() ? seed : WorkloadGenerator.variant(seed, i / seeds.size());
+        }
+        return agents;
+    }
+
+    private static String variant(final String agent, final int variant) {
+        int end = agent.length();
+        while (end > 0 && !Character.isDigit(agent.charAt(end - 1))) {
+            --end;
+        }
+        if (end == 0) {
+            return agent + ' ' + variant;
+        }
+        int start = end;
+        while (start > 0 && Character.isDigit(agent.charAt(start - 1))) {
+            --start;
+        }
+        // long runs of digits may overflow, their variants just get the number appended
+        final String digits = agent.substring(start, end);
+        final String number = digits.length() < 10
+            ? Long.toString(Long.parseLong(digits) + variant) : digits + variant;
+        return agent.substring(0, start) + number + agent.substring(end);
+    }
+
+    private static boolean escaped(final String line, final int index) {
+        int backslashes = 0;
+        for (int i = index - 1; i >= 0 && line.charAt(i) == '\\'; --i) {
+            ++backslashes;
+        }
+        return backslashes % 2 == 1;
+    }
+}
@@ -0,0 +1,150 @@
+/*
+ * Licensed to Elasticsearch under one or more contributor
+ * license agreements. See the NOTICE file distributed with
+ * this work for additional information regarding copyright
+ * ownership. Elasticsearch licenses this file to you under
+ * the Apache License, Version 2.0 (the "License"); you may
+ * not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing,
+ * software distributed under the License is distributed on an
+ * "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+ * KIND, either express or implied.  See the License for the
+ * specific language governing permissions and limitations
+ * under the License.
+ */
+package org.logstash.uaparser;
+
+import static org.hamcrest.Matchers.instanceOf;
+import static org.hamcrest.Matchers.is;
+import static org.hamcrest.Matchers.not;
+
+import java.nio.charset.StandardCharsets;
+import org.hamcrest.MatcherAssert;
+import org.junit.Test;
+
+public class CacheKeyTest {
+
+  private static final String CHROME =
+      "Mozilla/5.0 (Windows NT 10.0; Win64; x64) AppleWebKit/537.36 (KHTML, like Gecko) Chrome/89.0.4389.90 Safari/537.36";
+
+  private static final String EDGE =
+      "Mozilla/5.0 (Windows NT 10.0; Win64; x64) AppleWebKit/537.36 (KHTML, like Gecko) Chrome/89.0.4389.90 Safari/537.36 Edg/89.0.774.50";
+
+  private static final String LINUX =
+      "Mozilla/5.0 (X11; Linux x86_64; rv:86.0) Gecko/20100101 Firefox/86.0";
+
+  @Test
+  public void testPackedKeyEqualsLookupKey() {
+    CacheKey packed = new CacheKey.Packer(16).pack(CHROME);
+    MatcherAssert.assertThat(packed, instanceOf(CacheKey.PackedKey.class));
+    MatcherAssert.assertThat(packed.hashCode(), is(CHROME.hashCode()));
+    MatcherAssert.assertThat(packed.toString(), is(CHROME));
+    MatcherAssert.assertThat(CacheKey.of(CHROME), is(packed));
+    MatcherAssert.assertThat(packed, is(CacheKey.of(CHROME)));
+    MatcherAssert.assertThat(CacheKey.of(EDGE), is(not(packed)));
+  }
+
+  @Test
+  public void testSubSequenceDecodesOnlyTheRange() {
+    CacheKey packed = new CacheKey.Packer(16).pack(CHROME);
+    int split = CHROME.lastIndexOf(") ") + 2;
+    MatcherAssert.assertThat(packed.subSequence(0, 11), is("Mozilla/5.0"));
+    MatcherAssert.assertThat(packed.subSequence(split - 6, split + 6), is(CHROME.substring(split - 6, split + 6)));
+    MatcherAssert.assertThat(packed.subSequence(split + 7, split + 9), is("89"));
+    MatcherAssert.assertThat(packed.subSequence(split, split), is(""));
+    byte[] bytes = ("[" + CHROME + "]").getBytes(StandardCharsets.UTF_8);
+    MatcherAssert.assertThat(CacheKey.of(bytes, 1, CHROME.length()).subSequence(0, 11), is("Mozilla/5.0"));
+  }
+
+  @Test
+  public void testReadsFieldsOfPackedKeyClient() {
+    CacheKey packed = new CacheKey.Packer(16).pack(CHROME);
+    Client client = new Parser().parse(CHROME, packed);
+    MatcherAssert.assertThat(client.userAgent().family(), is("Chrome"));
+    MatcherAssert.assertThat(client.userAgent().major(), is("89"));
+    MatcherAssert.assertThat(client.userAgent().patchMinor(), is("90"));
+    MatcherAssert.assertThat(client.version(), is("89.0.4389.90"));
+    MatcherAssert.assertThat(client.os().family(), is("Windows"));
+    MatcherAssert.assertThat(client.osFull(), is("Windows 10"));
+  }
+
+  @Test
+  public void testPrefixIsShared() {
+    CacheKey.Packer packer = new CacheKey.Packer(16);
+    CacheKey.PackedKey chrome = (CacheKey.PackedKey) packer.pack(CHROME);
+    CacheKey.PackedKey edge = (CacheKey.PackedKey) packer.pack(EDGE);
+    MatcherAssert.assertThat(chrome.sharesPrefixWith(edge), is(true));
+    MatcherAssert.assertThat(packer.size(), is(1));
+    MatcherAssert.assertThat(chrome, is(not(edge)));
+    MatcherAssert.assertThat(packer.pack(EDGE), is(edge));
+  }
+
+  @Test
+  public void testPrefixDictionaryIsBounded() {
+    CacheKey.Packer packer = new CacheKey.Packer(1);
+    CacheKey.PackedKey chrome = (CacheKey.PackedKey) packer.pack(CHROME);
+    CacheKey other = packer.pack(LINUX);
+    MatcherAssert.assertThat(packer.size(), is(1));
+    // the dictionary started over with the newest prefix
+    MatcherAssert.assertThat(chrome.sharesPrefixWith((CacheKey.PackedKey) packer.pack(EDGE)), is(false));
+    MatcherAssert.assertThat(chrome.toString(), is(CHROME));
+    MatcherAssert.assertThat(other.toString(), is(LINUX));
+    MatcherAssert.assertThat(CacheKey.of(other.toString()), is(other));
+  }
+
+  @Test
+  public void testReusedPrefixesAreKept() {
+    CacheKey.Packer packer = new CacheKey.Packer(2);
+    CacheKey.PackedKey chrome = (CacheKey.PackedKey) packer.pack(CHROME);
+    CacheKey.PackedKey linux = (CacheKey.PackedKey) packer.pack(LINUX);
+    // reused, the Chrome prefix gets a second chance over the Linux one
+    packer.pack(EDGE);
+    packer.pack("Mozilla/5.0 (Macintosh; Intel Mac OS X 10_15_7) AppleWebKit/605.1.15 (KHTML, like Gecko) Version/14.0 Safari/605.1.15");
+    MatcherAssert.assertThat(packer.size(), is(2));
+    MatcherAssert.assertThat(chrome.sharesPrefixWith((CacheKey.PackedKey) packer.pack(EDGE)), is(true));
+    MatcherAssert.assertThat(linux.sharesPrefixWith((CacheKey.PackedKey) packer.pack(LINUX)), is(false));
+  }
+
+  @Test
+  public void testNonLatin1KeysAreKeptAsStrings() {
+    String agent = "Mozilla/5.0 (Linux; Android 10; \u5c0f\u7c73) AppleWebKit/537.36 (KHTML, like Gecko) Mobile";
+    CacheKey key = new CacheKey.Packer(16).pack(agent);
+    MatcherAssert.assertThat(key, instanceOf(CacheKey.StringKey.class));
+    MatcherAssert.assertThat(CacheKey.of(agent), is(key));
+  }
+
+  @Test
+  public void testLatin1Supplement() {
+    String agent = "Mozilla/5.0 (Macintosh; fran\u00e7ais) Gecko/20100101 Caf\u00e9/1.0";
+    CacheKey key = new CacheKey.Packer(16).pack(agent);
+    MatcherAssert.assertThat(key, instanceOf(CacheKey.PackedKey.class));
+    MatcherAssert.assertThat(key.toString(), is(agent));
+    MatcherAssert.assertThat(CacheKey.of(agent), is(key));
+  }
+
+  @Test
+  public void testBytesKeyEqualsPackedKey() {
+    byte[] bytes = ("[" + CHROME + "]").getBytes(StandardCharsets.UTF_8);
+    CacheKey probe = CacheKey.of(bytes, 1, CHROME.length());
+    MatcherAssert.assertThat(probe, instanceOf(CacheKey.BytesKey.class));
+    MatcherAssert.assertThat(probe.hashCode(), is(CHROME.hashCode()));
+    MatcherAssert.assertThat(probe.toString(), is(CHROME));
+    MatcherAssert.assertThat(probe, is(new CacheKey.Packer(16).pack(CHROME)));
+    MatcherAssert.assertThat(probe, is(CacheKey.of(CHROME)));
+    MatcherAssert.assertThat(CacheKey.of(CHROME), is(probe));
+    MatcherAssert.assertThat(probe, is(not(new CacheKey.Packer(16).pack(EDGE))));
+  }
+
+  @Test
+  public void testNonAsciiBytesAreDecoded() {
+    String agent = "Mozilla/5.0 (Macintosh; fran\u00e7ais) Gecko/20100101 Caf\u00e9/1.0";
+    byte[] bytes = agent.getBytes(StandardCharsets.UTF_8);
+    CacheKey probe = CacheKey.of(bytes, 0, bytes.length);
+    MatcherAssert.assertThat(probe, instanceOf(CacheKey.StringKey.class));
+    MatcherAssert.assertThat(probe, is(new CacheKey.Packer(16).pack(agent)));
+  }
+}
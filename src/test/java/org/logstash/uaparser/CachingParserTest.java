@@ -17,6 +17,17 @@
  */
 package org.logstash.uaparser;
 
+import static org.hamcrest.Matchers.is;
+import static org.hamcrest.Matchers.not;
+import static org.hamcrest.Matchers.sameInstance;
+
+import java.io.ByteArrayInputStream;
+import java.nio.charset.StandardCharsets;
+import java.util.Arrays;
+import java.util.EnumSet;
+import java.util.List;
+import org.hamcrest.MatcherAssert;
+
 import org.junit.Before;
 import org.junit.Test;
 
@@ -106,4 +117,97 @@ public class CachingParserTest extends ParserTest {
         super.testReplacementQuoting();
     }
 
+    @Test
+    public void testParseAllBatch() {
+        String firefox = "Mozilla/5.0 (Macintosh; U; Intel Mac OS X 10.4; fr; rv:1.9.1.5) Gecko/20091102 Firefox/3.5.5,gzip(gfe),gzip(gfe)";
+        String safari = "Mozilla/5.0 (iPhone; CPU iPhone OS 5_1_1 like Mac OS X) AppleWebKit/534.46 (KHTML, like Gecko) Version/5.1 Mobile/9B206 Safari/7534.48.3";
+        CachingParser cachingParser = new CachingParser(10);
+        Client cached = cachingParser.parse(firefox);
+
+        List<Client> clients = cachingParser.parseAll(Arrays.asList(safari, firefox, null, safari));
+        MatcherAssert.assertThat(clients.size(), is(4));
+        MatcherAssert.assertThat(clients.get(0), is(new Parser().parse(safari)));
+        MatcherAssert.assertThat(clients.get(1), sameInstance(cached));
+        MatcherAssert.assertThat(clients.get(2), is((Client) null));
+        MatcherAssert.assertThat(clients.get(3), sameInstance(clients.get(0)));
+        MatcherAssert.assertThat(cachingParser.parse(safari), sameInstance(clients.get(0)));
+    }
+
+    @Test
+    public void testSelectedComponents() {
+        String safari = "Mozilla/5.0 (iPhone; CPU iPhone OS 5_1_1 like Mac OS X) AppleWebKit/534.46 (KHTML, like Gecko) Version/5.1 Mobile/9B206 Safari/7534.48.3";
+        Client device = new CachingParser(10, EnumSet.of(Component.DEVICE)).parse(safari);
+        MatcherAssert.assertThat(device.userAgent(), is((UserAgent) null));
+        MatcherAssert.assertThat(device.os(), is((OS) null));
+        MatcherAssert.assertThat(device.device(), is("iPhone"));
+
+        Client browser = new CachingParser(10, EnumSet.of(Component.USER_AGENT, Component.OS)).parse(safari);
+        MatcherAssert.assertThat(browser.userAgent(), is(new UserAgent("Mobile Safari", "5", "1", null)));
+        MatcherAssert.assertThat(browser.osFull(), is("iOS 5.1.1"));
+        MatcherAssert.assertThat(browser.device(), is((String) null));
+    }
+
+    @Test
+    public void testReloadEvictsAffectedEntriesOnly() throws Exception {
+        String rules = "user_agent_parsers:\n"
+                + "  - regex: '(Foo)/(\\d+)'\n"
+                + "  - regex: '(Bar)/(\\d+)'\n"
+                + "os_parsers:\n"
+                + "  - regex: '(FooOS)'\n"
+                + "device_parsers:\n"
+                + "  - regex: '(FooPhone)'\n";
+        CachingParser cachingParser = new CachingParser(rules);
+        Client foo = cachingParser.parse("Foo/1 FooOS FooPhone");
+        Client bar = cachingParser.parse("Bar/2 FooOS FooPhone");
+        Client other = cachingParser.parse("Baz/3 FooOS FooPhone");
+
+        int evicted = cachingParser.reload(new ByteArrayInputStream(rules
+                .replace("(Bar)/", "(Bar)/v?")
+                .getBytes(StandardCharsets.UTF_8)));
+        MatcherAssert.assertThat(evicted, is(2));
+        MatcherAssert.assertThat(cachingParser.parse("Foo/1 FooOS FooPhone"), sameInstance(foo));
+        MatcherAssert.assertThat(cachingParser.parse("Bar/2 FooOS FooPhone"), not(sameInstance(bar)));
+        MatcherAssert.assertThat(cachingParser.parse("Bar/v2 FooOS FooPhone").userAgent().family(), is("Bar"));
+        MatcherAssert.assertThat(cachingParser.parse("Baz/3 FooOS FooPhone"), not(sameInstance(other)));
+        // uncached parses use the reloaded rules too
+        String barV4 = "Bar/v4 FooOS FooPhone";
+        MatcherAssert.assertThat(cachingParser.parse(barV4, barV4).userAgent().family(), is("Bar"));
+
+        evicted = cachingParser.reload(new ByteArrayInputStream(rules
+                .replace("(Bar)/", "(Bar)/v?")
+                .replace("(FooOS)", "(FooOS) ?(\\d+)?")
+                .getBytes(StandardCharsets.UTF_8)));
+        MatcherAssert.assertThat(evicted, is(4));
+        MatcherAssert.assertThat(cachingParser.parseOS("FooOS 7").major(), is("7"));
+    }
+
+    @Test
+    public void testCacheStats() {
+        String firefox = "Mozilla/5.0 (Macintosh; U; Intel Mac OS X 10.4; fr; rv:1.9.1.5) Gecko/20091102 Firefox/3.5.5,gzip(gfe),gzip(gfe)";
+        String safari = "Mozilla/5.0 (iPhone; CPU iPhone OS 5_1_1 like Mac OS X) AppleWebKit/534.46 (KHTML, like Gecko) Version/5.1 Mobile/9B206 Safari/7534.48.3";
+        String chrome = "Mozilla/5.0 (Windows NT 10.0; Win64; x64) AppleWebKit/537.36 (KHTML, like Gecko) Chrome/89.0.4389.90 Safari/537.36";
+        CachingParser cachingParser = new CachingParser(2);
+        cachingParser.parse(firefox);
+        cachingParser.parse(firefox);
+        cachingParser.parseAll(Arrays.asList(firefox, safari, safari, null));
+        cachingParser.parse(chrome);
+        MatcherAssert.assertThat(cachingParser.hits(), is(3L));
+        MatcherAssert.assertThat(cachingParser.misses(), is(3L));
+        MatcherAssert.assertThat(cachingParser.evictions(), is(1L));
+        MatcherAssert.assertThat(cachingParser.size(), is(2));
+
+        for (Component component : Component.values()) {
+            ParseStats.Latency latency = cachingParser.stats().latency(component);
+            long parsed = 0;
+            for (int bucket = 0; bucket < latency.buckets(); ++bucket) {
+                parsed += latency.count(bucket);
+            }
+            MatcherAssert.assertThat(parsed, is(3L));
+        }
+    }
+
+    @Test (expected = IllegalArgumentException.class)
+    public void testNoComponents() {
+        new CachingParser(10, EnumSet.noneOf(Component.class));
+    }
 }
@@ -0,0 +1,156 @@
+/*
+ * Licensed to Elasticsearch under one or more contributor
+ * license agreements. See the NOTICE file distributed with
+ * this work for additional information regarding copyright
+ * ownership. Elasticsearch licenses this file to you under
+ * the Apache License, Version 2.0 (the "License"); you may
+ * not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing,
+ * software distributed under the License is distributed on an
+ * "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+ * KIND, either express or implied.  See the License for the
+ * specific language governing permissions and limitations
+ * under the License.
+ */
+package org.logstash.uaparser;
+
+import static org.hamcrest.Matchers.is;
+import static org.hamcrest.Matchers.nullValue;
+
+import java.io.StringWriter;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Random;
+import org.hamcrest.MatcherAssert;
+import org.junit.Test;
+
+public class HeavyHittersTest {
+
+  private static final String RULES = String.join("\n",
+      "user_agent_parsers:",
+      "  - regex: '(Firefox)/(\\d+)\\.(\\d+)'",
+      "os_parsers:",
+      "  - regex: '(Windows NT) (\\d+)\\.(\\d+)'",
+      "device_parsers:",
+      "  - regex: '(iPhone)'",
+      "");
+
+  @Test
+  public void testTracksFrequentAgentStrings() {
+    HeavyHitters sketch = new HeavyHitters(16);
+    Map<String, Long> exact = new HashMap<>();
+    Random random = new Random(42L);
+    for (int i = 0; i < 100_000; ++i) {
+      // skewed: a few frequent agent strings among many rare ones
+      String agentString = "Firefox/" + (int) Math.pow(random.nextInt(1 << 12), 2.0) / 8192 + ".0";
+      exact.merge(agentString, 1L, Long::sum);
+      sketch.offer(CacheKey.of(agentString), null);
+    }
+    MatcherAssert.assertThat(sketch.total(), is(100_000L));
+    List<HeavyHitters.Entry> top = sketch.top();
+    MatcherAssert.assertThat(top.size(), is(16));
+    for (int i = 1; i < top.size(); ++i) {
+      MatcherAssert.assertThat(top.get(i - 1).count() >= top.get(i).count(), is(true));
+    }
+    for (HeavyHitters.Entry entry : top) {
+      long count = exact.get(entry.agentString());
+      MatcherAssert.assertThat(entry.count() >= count, is(true));
+      MatcherAssert.assertThat(entry.count() - entry.error() <= count, is(true));
+    }
+    // every agent string above total / capacity is tracked
+    for (Map.Entry<String, Long> frequent : exact.entrySet()) {
+      if (frequent.getValue() > 100_000L / 16) {
+        MatcherAssert.assertThat(frequent.getKey(), top.stream()
+            .anyMatch(entry -> entry.agentString().equals(frequent.getKey())), is(true));
+      }
+    }
+  }
+
+  @Test
+  public void testCountsStringAndByteLookupsAlike() {
+    CachingParser parser = new CachingParser(RULES);
+    parser.trackHeavyHitters(4, 1);
+    byte[] bytes = "xx Firefox/3.5 xx".getBytes(StandardCharsets.UTF_8);
+    parser.parse(bytes, 3, 11);
+    parser.parse("Firefox/3.5");
+    parser.parseAll(Arrays.asList("Firefox/3.5", null, "Windows NT 6.1"));
+    // the tracked key doesn't view the caller's bytes
+    Arrays.fill(bytes, (byte) 'y');
+    List<HeavyHitters.Entry> top = parser.heavyHitters().top();
+    MatcherAssert.assertThat(top.size(), is(2));
+    MatcherAssert.assertThat(top.get(0).agentString(), is("Firefox/3.5"));
+    MatcherAssert.assertThat(top.get(0).count(), is(3L));
+    MatcherAssert.assertThat(top.get(0).client().userAgent().family(), is("Firefox"));
+    MatcherAssert.assertThat(top.get(1).agentString(), is("Windows NT 6.1"));
+    parser.trackHeavyHitters(0);
+    MatcherAssert.assertThat(parser.heavyHitters(), nullValue());
+  }
+
+  @Test
+  public void testSampledBatchesWeighAsManyLookups() {
+    HeavyHitters sketch = new HeavyHitters(2);
+    CacheKey[] keys = new CacheKey[100 * HeavyHitters.SAMPLING];
+    Arrays.fill(keys, CacheKey.of("Firefox/0.0"));
+    keys[0] = null;
+    sketch.sample(keys, Arrays.asList(new Client[keys.length]));
+    MatcherAssert.assertThat(sketch.total() % HeavyHitters.SAMPLING, is(0L));
+    MatcherAssert.assertThat(sketch.top().get(0).count(), is(sketch.total()));
+  }
+
+  @Test
+  public void testSamplesWeighAsManyLookups() {
+    HeavyHitters sketch = new HeavyHitters(2);
+    for (int i = 0; i < 100 * HeavyHitters.SAMPLING; ++i) {
+      sketch.sample(CacheKey.of("Firefox/0.0"), null);
+    }
+    MatcherAssert.assertThat(sketch.total() % HeavyHitters.SAMPLING, is(0L));
+    MatcherAssert.assertThat(sketch.top().get(0).count(), is(sketch.total()));
+  }
+
+  @Test
+  public void testExportWarmsNextCache() throws Exception {
+    CachingParser parser = new CachingParser(RULES);
+    parser.trackHeavyHitters(4, 1);
+    List<String> agentStrings = new ArrayList<>();
+    for (int i = 0; i < 30; ++i) {
+      agentStrings.add("Firefox/0.0");
+      agentStrings.add("Firefox/1." + i);
+    }
+    // tracked, but can't be exported
+    agentStrings.add("multi\nline");
+    parser.parseAll(agentStrings);
+    StringWriter written = new StringWriter();
+    parser.heavyHitters().write(written);
+    MatcherAssert.assertThat(written.toString().split("\n")[1], is("30\t0\tFirefox/0.0"));
+    Path export = Files.createTempFile("heavy-hitters", ".tsv");
+    try {
+      parser.heavyHitters().export(export.toString());
+      List<String> read = HeavyHitters.read(export.toString());
+      MatcherAssert.assertThat(read.get(0), is("Firefox/0.0"));
+      MatcherAssert.assertThat(read.size(), is(3));
+      CachingParser next = new CachingParser(RULES);
+      MatcherAssert.assertThat(next.warm(read), is(3));
+      MatcherAssert.assertThat(next.warm(read), is(0));
+      MatcherAssert.assertThat(next.size(), is(3));
+      MatcherAssert.assertThat(next.misses(), is(0L));
+      next.parse("Firefox/0.0");
+      MatcherAssert.assertThat(next.hits(), is(1L));
+      // only as many as the cache holds
+      CachingParser small = new CachingParser(2);
+      MatcherAssert.assertThat(small.warm(read), is(2));
+      MatcherAssert.assertThat(small.size(), is(2));
+    } finally {
+      Files.delete(export);
+    }
+  }
+}
@@ -0,0 +1,83 @@
+/*
+ * Licensed to Elasticsearch under one or more contributor
+ * license agreements. See the NOTICE file distributed with
+ * this work for additional information regarding copyright
+ * ownership. Elasticsearch licenses this file to you under
+ * the Apache License, Version 2.0 (the "License"); you may
+ * not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing,
+ * software distributed under the License is distributed on an
+ * "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+ * KIND, either express or implied.  See the License for the
+ * specific language governing permissions and limitations
+ * under the License.
+ */
+package org.logstash.uaparser;
+
+import static org.hamcrest.Matchers.is;
+
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.time.Duration;
+import java.util.ArrayList;
+import java.util.List;
+import jdk.jfr.FlightRecorder;
+import jdk.jfr.Recording;
+import jdk.jfr.consumer.RecordedEvent;
+import jdk.jfr.consumer.RecordingFile;
+import org.hamcrest.MatcherAssert;
+import org.junit.Assume;
+import org.junit.Test;
+
+public class ParseEventsTest {
+
+  @Test
+  public void testRecordedEvents() throws Exception {
+    Assume.assumeTrue(FlightRecorder.isAvailable());
+    String firefox = "Mozilla/5.0 (Macintosh; U; Intel Mac OS X 10.4; fr; rv:1.9.1.5) Gecko/20091102 Firefox/3.5.5,gzip(gfe),gzip(gfe)";
+    String safari = "Mozilla/5.0 (iPhone; CPU iPhone OS 5_1_1 like Mac OS X) AppleWebKit/534.46 (KHTML, like Gecko) Version/5.1 Mobile/9B206 Safari/7534.48.3";
+    CachingParser cachingParser = new CachingParser(1);
+    Path dump = Files.createTempFile("useragent", ".jfr");
+    try (Recording recording = new Recording()) {
+      recording.enable("org.logstash.uaparser.Parse");
+      recording.enable("org.logstash.uaparser.SlowParse").withThreshold(Duration.ZERO);
+      recording.enable("org.logstash.uaparser.CacheEviction");
+      recording.start();
+      cachingParser.parse(firefox);
+      cachingParser.parse(firefox);
+      cachingParser.parse(safari);
+      recording.stop();
+      recording.dump(dump);
+    }
+    List<RecordedEvent> parses = new ArrayList<>();
+    List<RecordedEvent> slowParses = new ArrayList<>();
+    List<RecordedEvent> evictions = new ArrayList<>();
+    try {
+      for (RecordedEvent event : RecordingFile.readAllEvents(dump)) {
+        String name = event.getEventType().getName();
+        if (name.equals("org.logstash.uaparser.Parse")) {
+          parses.add(event);
+        } else if (name.equals("org.logstash.uaparser.SlowParse")) {
+          slowParses.add(event);
+        } else if (name.equals("org.logstash.uaparser.CacheEviction")) {
+          evictions.add(event);
+        }
+      }
+    } finally {
+      Files.delete(dump);
+    }
+    MatcherAssert.assertThat(parses.size(), is(2));
+    MatcherAssert.assertThat(parses.get(0).getInt("agentLength"), is(firefox.length()));
+    MatcherAssert.assertThat(
+        parses.get(0).getInt("userAgentRule"), is(cachingParser.parse(firefox).userAgent().ruleIndex())
+    );
+    MatcherAssert.assertThat(slowParses.size(), is(2));
+    MatcherAssert.assertThat(slowParses.get(1).getString("agentString"), is(safari));
+    MatcherAssert.assertThat(evictions.size(), is(1));
+    MatcherAssert.assertThat(evictions.get(0).getString("agentString"), is(firefox));
+  }
+}
@@ -0,0 +1,316 @@
+/*
+ * Licensed to Elasticsearch under one or more contributor
+ * license agreements. See the NOTICE file distributed with
+ * this work for additional information regarding copyright
+ * ownership. Elasticsearch licenses this file to you under
+ * the Apache License, Version 2.0 (the "License"); you may
+ * not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing,
+ * software distributed under the License is distributed on an
+ * "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+ * KIND, either express or implied.  See the License for the
+ * specific language governing permissions and limitations
+ * under the License.
+ */
+package org.logstash.uaparser;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.UncheckedIOException;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Paths;
+import java.util.ArrayList;
+import java.util.LinkedHashMap;
+import java.util.LinkedHashSet;
+import java.util.List;
+import java.util.Locale;
+import java.util.Map;
+import java.util.Set;
+import java.util.function.Function;
+import org.yaml.snakeyaml.LoaderOptions;
+import org.yaml.snakeyaml.Yaml;
+
+/**
+ * Runs two parse paths over the same agent strings, diffing every field of their results and
+ * measuring the throughput of each, so that a faster path is only taken if its results are
+ * identical to those of the reference path.
+ *
+ * The agent strings are those of the uap-core test yamls on the test classpath, plus the files
+ * of one agent string per line listed, comma separated, by the {@code useragent.diff.corpus}
+ * system property, i.e. {@code ./gradlew test -PdiffCorpus=user_agents.txt}.
+ */
+final class ParserDiff {
+
+    /**
+     * uap-core test yamls, see the downloadTestYaml task.
+     */
+    private static final String[] TEST_YAMLS = {
+        "test_ua.yaml", "test_os.yaml", "test_device.yaml", "additional_os_tests.yaml",
+        "firefox_user_agent_strings.yaml", "opera_mini_user_agent_strings.yaml",
+        "pgts_browser_list.yaml"
+    };
+
+    /**
+     * Most agent strings the throughput is measured over, evenly spread over the corpus.
+     */
+    private static final int MEASURED = 2000;
+
+    /**
+     * Fields compared, as the filter sets them.
+     */
+    private static final Map<String, Function<Client, String>> FIELDS = ParserDiff.fields();
+
+    private final String referenceName;
+
+    private final Function<String, Client> reference;
+
+    private final String candidateName;
+
+    private final Function<String, Client> candidate;
+
+    /**
+     * @param referenceName Name of the reference path, in reports
+     * @param reference Reference path
+     * @param candidateName Name of the path checked against the reference, in reports
+     * @param candidate Path checked against the reference
+     */
+    ParserDiff(final String referenceName, final Function<String, Client> reference,
+        final String candidateName, final Function<String, Client> candidate) {
+        this.referenceName = referenceName;
+        this.reference = reference;
+        this.candidateName = candidateName;
+        this.candidate = candidate;
+    }
+
+    /**
+     * @return The distinct agent strings of the uap-core test yamls and of the extra corpora
+     */
+    static List<String> corpus() {
+        final Set<String> agents = new LinkedHashSet<>();
+        final LoaderOptions options = new LoaderOptions();
+        options.setCodePointLimit(10 * 1024 * 1024);
+        for (final String name : ParserDiff.TEST_YAMLS) {
+            try (InputStream input = ParserDiff.class.getResourceAsStream('/' + name)) {
+                if (input == null) {
+                    continue;
+                }
+                @SuppressWarnings("unchecked")
+                final Map<String, List<Map<String, Object>>> cases =
+                    (Map<String, List<Map<String, Object>>>) new Yaml(options).load(input);
+                for (final Map<String, Object> testCase : cases.get("test_cases")) {
+                    final Object agent = testCase.get("user_agent_string");
+                    if (agent != null) {
+                        agents.add(agent.toString());
+                    }
+                }
+            } catch (final IOException ex) {
+                throw new UncheckedIOException(ex);
+            }
+        }
+        final String extra = System.getProperty("useragent.diff.corpus", "");
+        for (final String path : extra.split(",")) {
+            if (path.trim().isEmpty()) {
+                continue;
+            }
+            try {
+                for (final String line : Files.readAllLines(Paths.get(path.trim()), StandardCharsets.UTF_8)) {
+                    if (!line.isEmpty()) {
+                        agents.add(line);
+                    }
+                }
+            } catch (final IOException ex) {
+                throw new UncheckedIOException(ex);
+            }
+        }
+        return new ArrayList<>(agents);
+    }
+
+    /**
+     * Compares the results of both paths on each agent string, then measures their throughput
+     * over a sample of the agent strings, alternating between both paths.
+     * @param agents Agent strings
+     * @param rounds Measured passes over the sample per path, after one to warm up
+     * @return Report
+     */
+    ParserDiff.Report run(final List<String> agents, final int rounds) {
+        final List<ParserDiff.Mismatch> mismatches = new ArrayList<>();
+        for (final String agent : agents) {
+            final Client expected = this.reference.apply(agent);
+            final Client actual = this.candidate.apply(agent);
+            for (final Map.Entry<String, Function<Client, String>> field : ParserDiff.FIELDS.entrySet()) {
+                final String want = field.getValue().apply(expected);
+                final String got = field.getValue().apply(actual);
+                if (want == null ? got != null : !want.equals(got)) {
+                    mismatches.add(new ParserDiff.Mismatch(agent, field.getKey(), want, got));
+                }
+            }
+        }
+        final List<String> sample = new ArrayList<>(Math.min(agents.size(), ParserDiff.MEASURED));
+        final double stride = Math.max(1.0, agents.size() / (double) ParserDiff.MEASURED);
+        for (double i = 0.0; i < agents.size(); i += stride) {
+            sample.add(agents.get((int) i));
+        }
+        long referenceNanos = 0L;
+        long candidateNanos = 0L;
+        for (int round = -1; round < rounds; ++round) {
+            final long reference = ParserDiff.time(this.reference, sample);
+            final long candidate = ParserDiff.time(this.candidate, sample);
+            if (round >= 0) {
+                referenceNanos += reference;
+                candidateNanos += candidate;
+            }
+        }
+        final long parses = (long) sample.size() * rounds;
+        return new ParserDiff.Report(
+            this.referenceName, this.candidateName, agents.size(), mismatches,
+            ParserDiff.throughput(parses, referenceNanos), ParserDiff.throughput(parses, candidateNanos)
+        );
+    }
+
+    private static long time(final Function<String, Client> path, final List<String> agents) {
+        final long start = System.nanoTime();
+        int blackhole = 0;
+        for (final String agent : agents) {
+            blackhole += path.apply(agent).hashCode();
+        }
+        final long elapsed = System.nanoTime() - start;
+        // keeps the results from being optimized away
+        return blackhole == 42 ? elapsed + 1L : elapsed;
+    }
+
+    private static double throughput(final long parses, final long nanos) {
+        return nanos == 0L ? 0.0 : parses * 1_000_000_000.0 / nanos;
+    }
+
+    private static Map<String, Function<Client, String>> fields() {
+        final Map<String, Function<Client, String>> fields = new LinkedHashMap<>();
+        fields.put("name", client -> client.userAgent() == null ? null : client.userAgent().family());
+        fields.put("major", client -> client.userAgent() == null ? null : client.userAgent().major());
+        fields.put("minor", client -> client.userAgent() == null ? null : client.userAgent().minor());
+        fields.put("patch", client -> client.userAgent() == null ? null : client.userAgent().patch());
+        fields.put("patch_minor", client -> client.userAgent() == null ? null : client.userAgent().patchMinor());
+        fields.put("version", Client::version);
+        fields.put("os_name", client -> client.os() == null ? null : client.os().family());
+        fields.put("os_major", client -> client.os() == null ? null : client.os().major());
+        fields.put("os_minor", client -> client.os() == null ? null : client.os().minor());
+        fields.put("os_patch", client -> client.os() == null ? null : client.os().patch());
+        fields.put("os_patch_minor", client -> client.os() == null ? null : client.os().patchMinor());
+        fields.put("os_version", Client::osVersion);
+        fields.put("os_full", Client::osFull);
+        fields.put("device", Client::device);
+        return fields;
+    }
+
+    /**
+     * A field both paths parsed differently from an agent string.
+     */
+    static final class Mismatch {
+
+        private final String agent;
+
+        private final String field;
+
+        private final String expected;
+
+        private final String actual;
+
+        Mismatch(final String agent, final String field, final String expected,
+            final String actual) {
+            this.agent = agent;
+            this.field = field;
+            this.expected = expected;
+            this.actual = actual;
+        }
+
+        @Override
+        public String toString() {
+            return String.format(
+                Locale.ROOT, "%s: expected %s but was %s for %s", this.field, this.expected,
+                this.actual, this.agent
+            );
+        }
+    }
+
+    /**
+     * Mismatches of both paths and their throughput.
+     */
+    static final class Report {
+
+        /**
+         * Mismatches listed by {@link #toString()}.
+         */
+        private static final int LISTED = 20;
+
+        private final String referenceName;
+
+        private final String candidateName;
+
+        private final int agents;
+
+        private final List<ParserDiff.Mismatch> mismatches;
+
+        private final double referenceThroughput;
+
+        private final double candidateThroughput;
+
+        Report(final String referenceName, final String candidateName, final int agents,
+            final List<ParserDiff.Mismatch> mismatches, final double referenceThroughput,
+            final double candidateThroughput) {
+            this.referenceName = referenceName;
+            this.candidateName = candidateName;
+            this.agents = agents;
+            this.mismatches = mismatches;
+            this.referenceThroughput = referenceThroughput;
+            this.candidateThroughput = candidateThroughput;
+        }
+
+        List<ParserDiff.Mismatch> mismatches() {
+            return this.mismatches;
+        }
+
+        /**
+         * @return Agent strings parsed per second by the reference path
+         */
+        double referenceThroughput() {
+            return this.referenceThroughput;
+        }
+
+        /**
+         * @return Agent strings parsed per second by the candidate path
+         */
+        double candidateThroughput() {
+            return this.candidateThroughput;
+        }
+
+        /**
+         * @return Throughput of the candidate path relative to the reference one
+         */
+        double speedup() {
+            return this.referenceThroughput == 0.0
+                ? 0.0 : this.candidateThroughput / this.referenceThroughput;
+        }
+
+        @Override
+        public String toString() {
+            final StringBuilder report = new StringBuilder(String.format(
+                Locale.ROOT,
+                "%s vs %s over %d agent strings: %d mismatches, %.0f vs %.0f parses/s (%.2fx)",
+                this.candidateName, this.referenceName, this.agents, this.mismatches.size(),
+                this.candidateThroughput, this.referenceThroughput, this.speedup()
+            ));
+            for (final ParserDiff.Mismatch mismatch
+                : this.mismatches.subList(0, Math.min(Report.LISTED, this.mismatches.size()))) {
+                report.append(System.lineSeparator()).append("  ").append(mismatch);
+            }
+            if (this.mismatches.size() > Report.LISTED) {
+                report.append(System.lineSeparator()).append("  ...");
+            }
+            return report.toString();
+        }
+    }
+}
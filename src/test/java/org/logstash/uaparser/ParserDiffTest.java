@@ -0,0 +1,102 @@
+/*
+ * Licensed to Elasticsearch under one or more contributor
+ * license agreements. See the NOTICE file distributed with
+ * this work for additional information regarding copyright
+ * ownership. Elasticsearch licenses this file to you under
+ * the Apache License, Version 2.0 (the "License"); you may
+ * not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing,
+ * software distributed under the License is distributed on an
+ * "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+ * KIND, either express or implied.  See the License for the
+ * specific language governing permissions and limitations
+ * under the License.
+ */
+package org.logstash.uaparser;
+
+import static org.hamcrest.Matchers.is;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.InputStream;
+import java.nio.charset.StandardCharsets;
+import java.util.Arrays;
+import java.util.List;
+import org.hamcrest.MatcherAssert;
+import org.junit.BeforeClass;
+import org.junit.Test;
+
+/**
+ * Checks the optimized parse paths against plain ones with {@link ParserDiff}, failing on any
+ * field parsed differently, or, only when the {@code useragent.diff.min.speedup} system property
+ * is set, on the optimized rules being slower than the plain ones by more than it allows.
+ */
+public class ParserDiffTest {
+
+  private static final String MIN_SPEEDUP = System.getProperty("useragent.diff.min.speedup", "");
+
+  private static List<String> corpus;
+
+  private static RuleSet rules;
+
+  @BeforeClass
+  public static void load() throws Exception {
+    corpus = ParserDiff.corpus();
+    try (InputStream yaml = ParserDiffTest.class.getResourceAsStream("/regexes.yaml")) {
+      rules = RuleSet.fromYaml(yaml);
+    }
+  }
+
+  @Test
+  public void testOptimizedRulesMatchPlainRules() throws Exception {
+    MatcherAssert.assertThat(corpus.isEmpty(), is(false));
+    ByteArrayOutputStream binary = new ByteArrayOutputStream();
+    rules.write(binary);
+    Parser plain = new Parser(rules.plain());
+    Parser optimized = new Parser(new ByteArrayInputStream(binary.toByteArray()));
+    ParserDiff.Report report =
+        new ParserDiff("plain rules", plain::parse, "binary rules", optimized::parse).run(corpus, 2);
+    MatcherAssert.assertThat(report.toString(), report.mismatches().size(), is(0));
+    // wall-clock throughput is too noisy to check unless asked to, on a quiet machine
+    if (!MIN_SPEEDUP.isEmpty()) {
+      MatcherAssert.assertThat(
+          report.toString(), report.speedup() >= Double.parseDouble(MIN_SPEEDUP), is(true));
+    }
+  }
+
+  @Test
+  public void testCachingParserMatchesParser() {
+    MatcherAssert.assertThat(corpus.isEmpty(), is(false));
+    Parser parser = new Parser(rules);
+    // smaller than the corpus, so that results come from both hits and misses
+    CachingParser cache = new CachingParser(1000);
+    ParserDiff.Report strings =
+        new ParserDiff("parser", parser::parse, "cache", cache::parse).run(corpus, 1);
+    MatcherAssert.assertThat(strings.toString(), strings.mismatches().size(), is(0));
+    ParserDiff.Report bytes = new ParserDiff("parser", parser::parse, "cache from bytes", agent -> {
+      byte[] utf8 = agent.getBytes(StandardCharsets.UTF_8);
+      return cache.parse(utf8, 0, utf8.length);
+    }).run(corpus, 1);
+    MatcherAssert.assertThat(bytes.toString(), bytes.mismatches().size(), is(0));
+  }
+
+  @Test
+  public void testReportsMismatches() {
+    Parser parser = new Parser(rules);
+    List<String> agents = Arrays.asList(
+        "Mozilla/5.0 (Windows NT 10.0; Win64; x64; rv:109.0) Gecko/20100101 Firefox/115.0",
+        "curl/7.68.0");
+    ParserDiff.Report report = new ParserDiff("parser", parser::parse, "no major", agent -> {
+      Client client = parser.parse(agent);
+      UserAgent ua = client.userAgent();
+      return new Client(new UserAgent(ua.family(), null, ua.minor(), ua.patch(), ua.patchMinor()),
+          client.os(), client.device());
+    }).run(agents, 0);
+    // major and the version derived from it, for both agent strings
+    MatcherAssert.assertThat(report.toString(), report.mismatches().size(), is(4));
+  }
+}
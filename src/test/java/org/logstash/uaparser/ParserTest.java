@@ -22,13 +22,16 @@ import static org.hamcrest.Matchers.is;
 
 import java.io.ByteArrayInputStream;
 import java.io.InputStream;
+import java.util.HashMap;
 import java.util.List;
 import java.util.Map;
 import java.util.concurrent.ExecutorService;
 import java.util.concurrent.Executors;
 import java.util.concurrent.Future;
+import java.util.regex.PatternSyntaxException;
 
 import org.hamcrest.MatcherAssert;
+import org.junit.Assert;
 import org.junit.Before;
 import org.junit.Test;
 import org.yaml.snakeyaml.LoaderOptions;
@@ -109,6 +112,25 @@ public class ParserTest {
     MatcherAssert.assertThat(parser.parse(agentString2), is(expected2));
   }
 
+  @Test
+  public void testDerivedVersions() {
+    Client vista = parser.parse("Mozilla/5.0 (Windows NT 6.0; WOW64) AppleWebKit/537.36 (KHTML, like Gecko) Chrome/49.0.2623.112 Safari/537.36");
+    MatcherAssert.assertThat(vista.version(), is("49.0.2623.112"));
+    MatcherAssert.assertThat(vista.osVersion(), is("Vista"));
+    MatcherAssert.assertThat(vista.osFull(), is("Windows Vista"));
+
+    // patchMinor not captured by the rule, completed from the agent string
+    Client headless = parser.parse("Mozilla/5.0 (X11; Linux x86_64) AppleWebKit/537.36 (KHTML, like Gecko) HeadlessChrome/91.0.4472.114 Safari/537.36");
+    MatcherAssert.assertThat(headless.userAgent().patchMinor(), is((String) null));
+    MatcherAssert.assertThat(headless.version(), is("91.0.4472.114"));
+    MatcherAssert.assertThat(headless.osVersion(), is((String) null));
+    MatcherAssert.assertThat(headless.osFull(), is("Linux"));
+
+    Client ios = parser.parse("Mozilla/5.0 (iPhone; CPU iPhone OS 5_1_1 like Mac OS X) AppleWebKit/534.46 (KHTML, like Gecko) Version/5.1 Mobile/9B206 Safari/7534.48.3");
+    MatcherAssert.assertThat(ios.version(), is("5.1"));
+    MatcherAssert.assertThat(ios.osFull(), is("iOS 5.1.1"));
+  }
+
   /**
    * Ensure that the parser is threadsafe.
    * @throws Exception On Failure
@@ -145,9 +167,103 @@ public class ParserTest {
 
     Parser testParser = parserFromStringConfig(testConfig);
     Client result = testParser.parse("ABC12\\34 (CashPhone-$9.0.1 CatOS OH-HAI=/^.^\\=)");
-    MatcherAssert.assertThat(result.userAgent.family, is("ABC (12\\34)"));
-    MatcherAssert.assertThat(result.os.family, is("CatOS 9000"));
-    MatcherAssert.assertThat(result.device, is("CashPhone $9"));
+    MatcherAssert.assertThat(result.userAgent().family(), is("ABC (12\\34)"));
+    MatcherAssert.assertThat(result.os().family(), is("CatOS 9000"));
+    MatcherAssert.assertThat(result.device(), is("CashPhone $9"));
+  }
+
+  @Test
+  public void testRegexesCompiledOnDemand() throws Exception {
+    String testConfig = "user_agent_parsers:\n"
+            + "  - regex: '(Foo)/(\\d+)'\n"
+            + "  - regex: '(Bar)/(\\d+'\n"
+            + "os_parsers:\n"
+            + "  - regex: '(FooOS) (\\d+)'\n"
+            + "device_parsers:\n"
+            + "  - regex: '(FooPhone)'\n";
+
+    Parser testParser = parserFromStringConfig(testConfig);
+    Client result = testParser.parse("Foo/12 (FooPhone; FooOS 7)");
+    MatcherAssert.assertThat(result.userAgent().family(), is("Foo"));
+    MatcherAssert.assertThat(result.userAgent().major(), is("12"));
+    MatcherAssert.assertThat(result.os().family(), is("FooOS"));
+    MatcherAssert.assertThat(result.device(), is("FooPhone"));
+    try {
+      testParser.compileAll();
+      Assert.fail("the invalid regex of a rule never evaluated should only fail when compiled");
+    } catch (PatternSyntaxException ex) {
+      MatcherAssert.assertThat(ex.getPattern(), is("(Bar)/(\\d+"));
+    }
+  }
+
+  @Test
+  public void testParseLimits() throws Exception {
+    String testConfig = "user_agent_parsers:\n"
+            + "  - regex: '(Foo)/(\\d+)'\n"
+            + "os_parsers:\n"
+            + "  - regex: '(FooOS)'\n"
+            + "device_parsers:\n"
+            + "  - regex: '(FooPhone)'\n";
+    Parser testParser = parserFromStringConfig(testConfig);
+    String agentString = "Foo/12 (FooPhone; FooOS 7)";
+
+    testParser.limits().maxLength(agentString.length() - 1);
+    Client tooLong = testParser.parse(agentString);
+    MatcherAssert.assertThat(tooLong.userAgent().family(), is("Other"));
+    MatcherAssert.assertThat(tooLong.os().family(), is("Other"));
+    MatcherAssert.assertThat(tooLong.device(), is("Other"));
+    MatcherAssert.assertThat(testParser.limits().tooLong(), is(1L));
+
+    testParser.limits().maxLength(0);
+    testParser.limits().stepBudget(10);
+    Client overBudget = testParser.parse(agentString + " ");
+    MatcherAssert.assertThat(overBudget.userAgent().family(), is("Other"));
+    MatcherAssert.assertThat(overBudget.device(), is("Other"));
+    MatcherAssert.assertThat(testParser.limits().overBudget(), is(1L));
+
+    testParser.limits().stepBudget(ParseLimits.RECOMMENDED_STEP_BUDGET);
+    Client parsed = testParser.parse(agentString + "  ");
+    MatcherAssert.assertThat(parsed.userAgent().family(), is("Foo"));
+    MatcherAssert.assertThat(parsed.os().family(), is("FooOS"));
+    MatcherAssert.assertThat(parsed.device(), is("FooPhone"));
+  }
+
+  @Test
+  public void testRuleProfile() throws Exception {
+    String testConfig = "user_agent_parsers:\n"
+            + "  - regex: '(Bar)/(\\d+)'\n"
+            + "  - regex: '(Foo)/(\\d+)'\n"
+            + "os_parsers:\n"
+            + "  - regex: '(FooOS)'\n"
+            + "device_parsers:\n"
+            + "  - regex: '(FooPhone)'\n";
+    Parser testParser = parserFromStringConfig(testConfig);
+    testParser.parse("Foo/0");
+    MatcherAssert.assertThat(testParser.ruleProfile().isEmpty(), is(true));
+
+    testParser.profileRules(true);
+    testParser.parse("Foo/1 (FooPhone)");
+    testParser.parse("Foo/2 (FooOS)");
+    testParser.parse("Bar/3");
+    List<RuleProfile> profiles = testParser.ruleProfile();
+    MatcherAssert.assertThat(profiles.size(), is(4));
+    for (int i = 1; i < profiles.size(); ++i) {
+      MatcherAssert.assertThat(
+          profiles.get(i - 1).nanos() >= profiles.get(i).nanos(), is(true));
+    }
+    Map<String, RuleProfile> byRule = new HashMap<>();
+    for (RuleProfile profile : profiles) {
+      byRule.put(profile.component() + "/" + profile.index(), profile);
+    }
+    MatcherAssert.assertThat(byRule.get("USER_AGENT/0").evaluations(), is(3L));
+    MatcherAssert.assertThat(byRule.get("USER_AGENT/0").matches(), is(1L));
+    MatcherAssert.assertThat(byRule.get("USER_AGENT/1").evaluations(), is(2L));
+    MatcherAssert.assertThat(byRule.get("USER_AGENT/1").matches(), is(2L));
+    MatcherAssert.assertThat(byRule.get("OS/0").matches(), is(1L));
+    MatcherAssert.assertThat(byRule.get("DEVICE/0").matches(), is(1L));
+
+    testParser.profileRules(false);
+    MatcherAssert.assertThat(testParser.ruleProfile().isEmpty(), is(true));
   }
 
   @Test (expected=IllegalArgumentException.class)
@@ -175,8 +291,8 @@ public class ParserTest {
       UserAgent actual = parser.parseUserAgent(uaString);
       // NOTE: the UA Java library does not (yet) parse patchMinor thus
       // assert some of these WITHOUT patchMinor (like we did before) :
-      if (actual.patchMinor != null && expect.patchMinor == null) {
-        actual = new UserAgent(actual.family, actual.major, actual.minor, actual.patch);
+      if (actual.patchMinor() != null && expect.patchMinor() == null) {
+        actual = new UserAgent(actual.family(), actual.major(), actual.minor(), actual.patch());
       }
       MatcherAssert.assertThat(uaString, actual, is(expect));
     }
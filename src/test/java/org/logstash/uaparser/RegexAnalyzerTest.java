@@ -0,0 +1,136 @@
+/*
+ * Licensed to Elasticsearch under one or more contributor
+ * license agreements. See the NOTICE file distributed with
+ * this work for additional information regarding copyright
+ * ownership. Elasticsearch licenses this file to you under
+ * the Apache License, Version 2.0 (the "License"); you may
+ * not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing,
+ * software distributed under the License is distributed on an
+ * "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+ * KIND, either express or implied.  See the License for the
+ * specific language governing permissions and limitations
+ * under the License.
+ */
+package org.logstash.uaparser;
+
+import static org.hamcrest.Matchers.containsString;
+import static org.hamcrest.Matchers.is;
+
+import java.io.ByteArrayInputStream;
+import java.io.InputStream;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.List;
+import org.hamcrest.MatcherAssert;
+import org.junit.Assert;
+import org.junit.Test;
+
+public class RegexAnalyzerTest {
+
+  private static final String RULES = String.join("\n",
+      "user_agent_parsers:",
+      "  - regex: '(Firefox)/(\\d+)\\.(\\d+)'",
+      "  - regex: '(Evil)/((?:a+)+)$'",
+      "os_parsers:",
+      "  - regex: '(Windows NT) (\\d+)\\.(\\d+)'",
+      "  - regex: '(Iron)/(\\d+)[\\d.]{0,100} Safari'",
+      "device_parsers:",
+      "  - regex: '(iPhone)'",
+      "  - regex: '(Bad) (\\w+\\s?)+x'",
+      "");
+
+  @Test
+  public void testFindsNestedQuantifiers() {
+    List<RegexAnalyzer.Finding> findings = analyze(new RegexAnalyzer());
+    for (RegexAnalyzer.Finding nested : findings.subList(0, 2)) {
+      MatcherAssert.assertThat(nested.dangerous(), is(true));
+      MatcherAssert.assertThat(nested.risk(), is(RegexAnalyzer.Risk.NESTED));
+      MatcherAssert.assertThat(nested.steps() >= ParseLimits.RECOMMENDED_STEP_BUDGET, is(true));
+      MatcherAssert.assertThat(nested.length() <= ParseLimits.RECOMMENDED_MAX_LENGTH, is(true));
+      // the agent string reaches the rule, which requires its literal
+      MatcherAssert.assertThat(nested.input(),
+          containsString(nested.component() == Component.USER_AGENT ? "Evil/" : "Bad "));
+    }
+    for (RegexAnalyzer.Finding finding : findings) {
+      // unambiguous quantifiers aren't flagged
+      MatcherAssert.assertThat(finding.regex().startsWith("(Firefox)"), is(false));
+      MatcherAssert.assertThat(finding.regex().startsWith("(Windows NT)"), is(false));
+      MatcherAssert.assertThat(finding.regex().startsWith("(iPhone)"), is(false));
+    }
+  }
+
+  @Test
+  public void testRanksFindingsWorstFirst() {
+    List<RegexAnalyzer.Finding> findings = analyze(new RegexAnalyzer());
+    MatcherAssert.assertThat(findings.size(), is(3));
+    for (int i = 1; i < findings.size(); ++i) {
+      MatcherAssert.assertThat(
+          RegexAnalyzer.Finding.WORST_FIRST.compare(findings.get(i - 1), findings.get(i)) <= 0,
+          is(true));
+    }
+    RegexAnalyzer.Finding overlapping = findings.get(findings.size() - 1);
+    MatcherAssert.assertThat(overlapping.component(), is(Component.OS));
+    MatcherAssert.assertThat(overlapping.index(), is(1));
+    MatcherAssert.assertThat(overlapping.risk(), is(RegexAnalyzer.Risk.OVERLAPPING));
+    MatcherAssert.assertThat(overlapping.dangerous(), is(false));
+  }
+
+  @Test
+  public void testDangerDependsOnLimits() {
+    ParseLimits limits = new ParseLimits();
+    limits.maxLength(64);
+    for (RegexAnalyzer.Finding finding : analyze(new RegexAnalyzer(limits))) {
+      MatcherAssert.assertThat(finding.toString(), finding.dangerous(), is(false));
+    }
+  }
+
+  @Test
+  public void testVerifyRejectsDangerousRules() throws Exception {
+    Path regexes = Files.createTempFile("regexes", ".yaml");
+    try {
+      Files.write(regexes, RULES.getBytes(StandardCharsets.UTF_8));
+      try {
+        new RegexAnalyzer().verify(regexes.toString());
+        Assert.fail("Dangerous rules were not rejected");
+      } catch (IllegalArgumentException ex) {
+        MatcherAssert.assertThat(ex.getMessage(), containsString("user_agent[1]"));
+      }
+      Files.write(regexes, RULES.replace("(Evil)/((?:a+)+)$", "(Evil)/(a+)$")
+          .replace("(Bad) (\\w+\\s?)+x", "(Bad) (\\w+)").getBytes(StandardCharsets.UTF_8));
+      new RegexAnalyzer().verify(regexes.toString());
+    } finally {
+      Files.delete(regexes);
+    }
+  }
+
+  @Test
+  public void testVerifyTrustsBundledRules() throws Exception {
+    final String bundled;
+    try (InputStream input = RegexAnalyzerTest.class.getResourceAsStream("/regexes.yaml")) {
+      bundled = new String(input.readAllBytes(), StandardCharsets.UTF_8);
+    }
+    final RegexAnalyzer analyzer = new RegexAnalyzer();
+    analyzer.verify(
+        new ByteArrayInputStream(bundled.getBytes(StandardCharsets.UTF_8)), "regexes.yaml"
+    );
+    final String evil = bundled.replace(
+        "user_agent_parsers:\n", "user_agent_parsers:\n  - regex: '(Evil)/((?:a+)+)$'\n"
+    );
+    try {
+      analyzer.verify(new ByteArrayInputStream(evil.getBytes(StandardCharsets.UTF_8)), "evil");
+      Assert.fail("Dangerous rules were not rejected");
+    } catch (IllegalArgumentException ex) {
+      MatcherAssert.assertThat(ex.getMessage(), containsString("user_agent[0]"));
+    }
+  }
+
+  private static List<RegexAnalyzer.Finding> analyze(RegexAnalyzer analyzer) {
+    return analyzer.analyze(new ByteArrayInputStream(RULES.getBytes(StandardCharsets.UTF_8)));
+  }
+}
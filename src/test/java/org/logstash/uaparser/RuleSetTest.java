@@ -0,0 +1,91 @@
+/*
+ * Licensed to Elasticsearch under one or more contributor
+ * license agreements. See the NOTICE file distributed with
+ * this work for additional information regarding copyright
+ * ownership. Elasticsearch licenses this file to you under
+ * the Apache License, Version 2.0 (the "License"); you may
+ * not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing,
+ * software distributed under the License is distributed on an
+ * "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+ * KIND, either express or implied.  See the License for the
+ * specific language governing permissions and limitations
+ * under the License.
+ */
+package org.logstash.uaparser;
+
+import static org.hamcrest.Matchers.is;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.util.List;
+import org.hamcrest.MatcherAssert;
+import org.junit.Test;
+
+public class RuleSetTest {
+
+  private static final String[] AGENTS = {
+      "Mozilla/5.0 (Windows NT 10.0; Win64; x64) AppleWebKit/537.36 (KHTML, like Gecko) Chrome/89.0.4389.90 Safari/537.36 Edg/89.0.774.50",
+      "Mozilla/5.0 (iPhone; CPU iPhone OS 5_1_1 like Mac OS X) AppleWebKit/534.46 (KHTML, like Gecko) Version/5.1 Mobile/9B206 Safari/7534.48.3",
+      "MacOutlook/16.24.0.190414 (Intelx64 Mac OS X Version 10.14.4 (Build 18E226))",
+      "Mozilla/5.0 (Linux; Android 10; SM-G973F) AppleWebKit/537.36 (KHTML, like Gecko) Chrome/86.0.4240.185 Mobile Safari/537.36"
+  };
+
+  @Test
+  public void testBinaryRoundTrip() throws IOException {
+    RuleSet yaml = RuleSet.fromYaml(RuleSetTest.class.getResourceAsStream("/regexes.yaml"));
+    ByteArrayOutputStream binary = new ByteArrayOutputStream();
+    yaml.write(binary);
+    RuleSet loaded = RuleSet.load(new ByteArrayInputStream(binary.toByteArray()));
+
+    assertSameRules(loaded.userAgents(), yaml.userAgents());
+    assertSameRules(loaded.os(), yaml.os());
+    assertSameRules(loaded.devices(), yaml.devices());
+
+    Parser fromYaml = new Parser(RuleSetTest.class.getResourceAsStream("/regexes.yaml"));
+    Parser fromBinary = new Parser(new ByteArrayInputStream(binary.toByteArray()));
+    for (String agent : AGENTS) {
+      MatcherAssert.assertThat(fromBinary.parse(agent), is(fromYaml.parse(agent)));
+    }
+  }
+
+  @Test(expected = IllegalArgumentException.class)
+  public void testUnsupportedVersion() throws IOException {
+    RuleSet.read(new ByteArrayInputStream(new byte[]{'U', 'A', 'P', 'R', 99}));
+  }
+
+  @Test
+  public void testRequiredLiteral() {
+    MatcherAssert.assertThat(RuleDefinition.requiredLiteral("(Firefox)/(\\d+)\\.(\\d+)"), is("Firefox"));
+    MatcherAssert.assertThat(RuleDefinition.requiredLiteral("Mozilla.*Android ([\\d.]+)"), is("Android "));
+    MatcherAssert.assertThat(RuleDefinition.requiredLiteral("com\\.esri\\.(earth)\\.phone/"), is("com.esri."));
+    MatcherAssert.assertThat(RuleDefinition.requiredLiteral("Win ?Phone"), is("Phone"));
+    MatcherAssert.assertThat(RuleDefinition.requiredLiteral("(?:Mobile )?Safari"), is("Safari"));
+    MatcherAssert.assertThat(RuleDefinition.requiredLiteral("(Opera Mini|Opera Mobi)"), is((String) null));
+    MatcherAssert.assertThat(RuleDefinition.requiredLiteral("Chrome|Chromium"), is((String) null));
+    MatcherAssert.assertThat(RuleDefinition.requiredLiteral("(?i)bot"), is((String) null));
+    MatcherAssert.assertThat(RuleDefinition.requiredLiteral("\\x41BC"), is((String) null));
+  }
+
+  @Test
+  public void testAnchored() {
+    MatcherAssert.assertThat(RuleDefinition.isAnchored("^(Opera)/(\\d+)"), is(true));
+    MatcherAssert.assertThat(RuleDefinition.isAnchored("^Opera|Mini"), is(false));
+    MatcherAssert.assertThat(RuleDefinition.isAnchored("^(Opera|Mini)"), is(true));
+    MatcherAssert.assertThat(RuleDefinition.isAnchored("(Opera)"), is(false));
+  }
+
+  private static void assertSameRules(List<RuleDefinition> actual, List<RuleDefinition> expected) {
+    MatcherAssert.assertThat(actual.size(), is(expected.size()));
+    for (int i = 0; i < actual.size(); ++i) {
+      MatcherAssert.assertThat(actual.get(i).config(), is(expected.get(i).config()));
+      MatcherAssert.assertThat(actual.get(i).literal(), is(expected.get(i).literal()));
+      MatcherAssert.assertThat(actual.get(i).anchored(), is(expected.get(i).anchored()));
+    }
+  }
+}
@@ -0,0 +1,92 @@
+/*
+ * Licensed to Elasticsearch under one or more contributor
+ * license agreements. See the NOTICE file distributed with
+ * this work for additional information regarding copyright
+ * ownership. Elasticsearch licenses this file to you under
+ * the Apache License, Version 2.0 (the "License"); you may
+ * not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing,
+ * software distributed under the License is distributed on an
+ * "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+ * KIND, either express or implied.  See the License for the
+ * specific language governing permissions and limitations
+ * under the License.
+ */
+package org.logstash.uaparser;
+
+import static org.hamcrest.Matchers.is;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import org.hamcrest.MatcherAssert;
+import org.junit.Test;
+
+public class SlowParsesTest {
+
+  @Test
+  public void testKeepsSlowestParses() throws Exception {
+    SlowParses slowest = new SlowParses();
+    List<Long> durations = new ArrayList<>();
+    for (long i = 1; i <= 1000; ++i) {
+      durations.add(i);
+    }
+    Collections.shuffle(durations);
+    ExecutorService executor = Executors.newFixedThreadPool(4);
+    try {
+      List<Future<?>> offers = new ArrayList<>();
+      for (int t = 0; t < 4; ++t) {
+        List<Long> part = durations.subList(t * 250, (t + 1) * 250);
+        offers.add(executor.submit(() -> {
+          for (long duration : part) {
+            slowest.offer("agent " + duration, new long[] {duration, -1L, -1L},
+                new int[] {(int) duration, Rule.NO_INDEX, Rule.NO_INDEX}, false);
+          }
+        }));
+      }
+      for (Future<?> offer : offers) {
+        offer.get();
+      }
+    } finally {
+      executor.shutdown();
+    }
+    List<SlowParses.Sample> samples = slowest.drain();
+    MatcherAssert.assertThat(samples.size(), is(SlowParses.SIZE));
+    for (int i = 0; i < SlowParses.SIZE; ++i) {
+      SlowParses.Sample sample = samples.get(i);
+      MatcherAssert.assertThat(sample.nanos(), is(1000L - i));
+      MatcherAssert.assertThat(sample.nanos(Component.USER_AGENT), is(1000L - i));
+      MatcherAssert.assertThat(sample.nanos(Component.OS), is(-1L));
+      MatcherAssert.assertThat(sample.rule(Component.USER_AGENT), is(1000 - i));
+      MatcherAssert.assertThat(sample.agentString(), is("agent " + (1000 - i)));
+    }
+    MatcherAssert.assertThat(slowest.drain().isEmpty(), is(true));
+
+    slowest.offer("fast", new long[] {1L, 1L, -1L}, new int[] {0, 0, Rule.NO_INDEX}, false);
+    MatcherAssert.assertThat(slowest.drain().get(0).nanos(), is(2L));
+  }
+
+  @Test
+  public void testParsesAreSampled() throws Exception {
+    Parser parser = new Parser();
+    StringBuilder longAgent = new StringBuilder("Mozilla/5.0 (X11; Linux x86_64) ");
+    while (longAgent.length() < 2 * SlowParses.MAX_AGENT_LENGTH) {
+      longAgent.append("Gecko/20100101 ");
+    }
+    parser.parse(longAgent.toString());
+    List<SlowParses.Sample> samples = parser.stats().slowest().drain();
+    MatcherAssert.assertThat(samples.size(), is(1));
+    SlowParses.Sample sample = samples.get(0);
+    MatcherAssert.assertThat(sample.agentString().length(), is(SlowParses.MAX_AGENT_LENGTH));
+    MatcherAssert.assertThat(sample.limited(), is(false));
+    MatcherAssert.assertThat(sample.nanos(), is(sample.nanos(Component.USER_AGENT)
+        + sample.nanos(Component.OS) + sample.nanos(Component.DEVICE)));
+  }
+}
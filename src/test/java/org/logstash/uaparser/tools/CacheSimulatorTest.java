@@ -0,0 +1,79 @@
+/*
+ * Licensed to Elasticsearch under one or more contributor
+ * license agreements. See the NOTICE file distributed with
+ * this work for additional information regarding copyright
+ * ownership. Elasticsearch licenses this file to you under
+ * the Apache License, Version 2.0 (the "License"); you may
+ * not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing,
+ * software distributed under the License is distributed on an
+ * "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+ * KIND, either express or implied.  See the License for the
+ * specific language governing permissions and limitations
+ * under the License.
+ */
+package org.logstash.uaparser.tools;
+
+import static org.hamcrest.Matchers.is;
+
+import java.util.Collections;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import org.hamcrest.MatcherAssert;
+import org.junit.Test;
+
+public class CacheSimulatorTest {
+
+  @Test
+  public void testMatchesLruCaches() {
+    List<String> stream = new WorkloadGenerator(
+        Collections.emptyList(), 2000, 0.9, 0.2, 0.05, 3L).next(50_000);
+    // a small tree, renumbered many times
+    CacheSimulator simulator = new CacheSimulator(1024);
+    for (String agent : stream) {
+      simulator.access(agent);
+    }
+    MatcherAssert.assertThat(simulator.accesses(), is(50_000L));
+    for (int size : new int[] {1, 10, 100, 500, 1000, 5000}) {
+      MatcherAssert.assertThat("size " + size, simulator.hits(size), is(lruHits(stream, size)));
+    }
+    MatcherAssert.assertThat(
+        simulator.hits(Integer.MAX_VALUE), is(50_000L - simulator.distinct()));
+  }
+
+  @Test
+  public void testSizeFor() {
+    CacheSimulator simulator = new CacheSimulator();
+    // a, b and c cycle: only a cache of 3 hits
+    for (int i = 0; i < 30; ++i) {
+      simulator.access(String.valueOf((char) ('a' + i % 3)));
+    }
+    MatcherAssert.assertThat(simulator.hits(2), is(0L));
+    MatcherAssert.assertThat(simulator.hits(3), is(27L));
+    MatcherAssert.assertThat(simulator.sizeFor(0.95), is(3));
+    MatcherAssert.assertThat(simulator.memory(10, 100), is(3L * 101L));
+  }
+
+  private static long lruHits(List<String> stream, int size) {
+    Map<String, Boolean> cache = new LinkedHashMap<String, Boolean>(16, 0.75f, true) {
+      @Override
+      protected boolean removeEldestEntry(Map.Entry<String, Boolean> eldest) {
+        return size() > size;
+      }
+    };
+    long hits = 0L;
+    for (String agent : stream) {
+      if (cache.get(agent) != null) {
+        ++hits;
+      } else {
+        cache.put(agent, Boolean.TRUE);
+      }
+    }
+    return hits;
+  }
+}
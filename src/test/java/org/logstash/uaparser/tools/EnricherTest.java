@@ -0,0 +1,75 @@
+/*
+ * Licensed to Elasticsearch under one or more contributor
+ * license agreements. See the NOTICE file distributed with
+ * this work for additional information regarding copyright
+ * ownership. Elasticsearch licenses this file to you under
+ * the Apache License, Version 2.0 (the "License"); you may
+ * not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing,
+ * software distributed under the License is distributed on an
+ * "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+ * KIND, either express or implied.  See the License for the
+ * specific language governing permissions and limitations
+ * under the License.
+ */
+package org.logstash.uaparser.tools;
+
+import static org.hamcrest.Matchers.is;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.nio.channels.Channels;
+import java.nio.channels.ReadableByteChannel;
+import java.nio.charset.StandardCharsets;
+import java.util.Arrays;
+import java.util.List;
+import org.hamcrest.MatcherAssert;
+import org.junit.Test;
+import org.logstash.uaparser.CachingParser;
+
+public class EnricherTest {
+
+  private static final String FIREFOX = "Mozilla/5.0 (Windows NT 10.0; Win64; x64; rv:121.0) Gecko/20100101 Firefox/121.0";
+
+  private static final String IPHONE = "Mozilla/5.0 (iPhone; CPU iPhone OS 17_1_2 like Mac OS X) AppleWebKit/605.1.15 (KHTML, like Gecko) Version/17.1.2 Mobile/15E148 Safari/604.1";
+
+  @Test
+  public void testTabSeparatedInOrder() throws Exception {
+    StringBuilder lines = new StringBuilder();
+    for (int i = 0; i < 50_000; ++i) {
+      lines.append(i % 3 == 0 ? IPHONE : FIREFOX).append(i % 2 == 0 ? "\n" : "\r\n");
+    }
+    String[] output = enrich(false, lines.toString(), "\n" + FIREFOX).split("\n", -1);
+    MatcherAssert.assertThat(output.length, is(50_003));
+    for (int i = 0; i < 50_000; ++i) {
+      MatcherAssert.assertThat(output[i].split("\t")[0], is(i % 3 == 0 ? "Mobile Safari" : "Firefox"));
+    }
+    MatcherAssert.assertThat(output[50_000], is("Other\t\t\t\t\tOther\t\t\t\t\tOther\tOther"));
+    MatcherAssert.assertThat(output[50_001],
+        is("Firefox\t121.0\t121\t0\t\tWindows\t10\t10\t\t\tWindows 10\tOther"));
+    MatcherAssert.assertThat(output[50_002], is(""));
+  }
+
+  @Test
+  public void testJson() throws Exception {
+    MatcherAssert.assertThat(enrich(true, IPHONE + "\n"), is(
+        "{\"name\":\"Mobile Safari\",\"version\":\"17.1.2\",\"major\":\"17\",\"minor\":\"1\","
+            + "\"patch\":\"2\",\"os_name\":\"iOS\",\"os_version\":\"17.1.2\",\"os_major\":\"17\","
+            + "\"os_minor\":\"1\",\"os_patch\":\"2\",\"os_full\":\"iOS 17.1.2\",\"device\":\"iPhone\"}\n"));
+  }
+
+  private static String enrich(boolean json, String... inputs) throws Exception {
+    List<ReadableByteChannel> channels = Arrays.asList(new ReadableByteChannel[inputs.length]);
+    for (int i = 0; i < inputs.length; ++i) {
+      channels.set(i, Channels.newChannel(
+          new ByteArrayInputStream(inputs[i].getBytes(StandardCharsets.UTF_8))));
+    }
+    ByteArrayOutputStream output = new ByteArrayOutputStream();
+    new Enricher(new CachingParser(100), json, 4).enrich(channels, output);
+    return new String(output.toByteArray(), StandardCharsets.UTF_8);
+  }
+}
@@ -0,0 +1,96 @@
+/*
+ * Licensed to Elasticsearch under one or more contributor
+ * license agreements. See the NOTICE file distributed with
+ * this work for additional information regarding copyright
+ * ownership. Elasticsearch licenses this file to you under
+ * the Apache License, Version 2.0 (the "License"); you may
+ * not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing,
+ * software distributed under the License is distributed on an
+ * "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+ * KIND, either express or implied.  See the License for the
+ * specific language governing permissions and limitations
+ * under the License.
+ */
+package org.logstash.uaparser.tools;
+
+import static org.hamcrest.Matchers.greaterThan;
+import static org.hamcrest.Matchers.is;
+import static org.hamcrest.Matchers.lessThan;
+import static org.hamcrest.Matchers.nullValue;
+
+import java.io.BufferedReader;
+import java.io.StringReader;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Map;
+import org.hamcrest.MatcherAssert;
+import org.junit.Test;
+
+public class WorkloadGeneratorTest {
+
+  @Test
+  public void testSkewedStream() {
+    List<String> stream = new WorkloadGenerator(
+        Collections.emptyList(), 1000, 1.0, 0.0, 0.0, 1L).next(100_000);
+    Map<String, Integer> counts = new HashMap<>();
+    for (String agent : stream) {
+      counts.merge(agent, 1, Integer::sum);
+    }
+    MatcherAssert.assertThat(counts.size(), lessThan(1001));
+    // the first of 1000 ranks has about 13% of the draws with an exponent of 1
+    int top = Collections.max(counts.values());
+    MatcherAssert.assertThat(top, greaterThan(11_000));
+    MatcherAssert.assertThat(top, lessThan(15_000));
+    MatcherAssert.assertThat(
+        new WorkloadGenerator(Collections.emptyList(), 1000, 1.0, 0.0, 0.0, 1L).next(100_000),
+        is(stream));
+  }
+
+  @Test
+  public void testVariants() {
+    List<String> seeds = Arrays.asList("Foo/1.0", "Bar");
+    WorkloadGenerator generator = new WorkloadGenerator(seeds, 6, 0.0, 0.0, 0.0, 1L);
+    MatcherAssert.assertThat(new HashSet<>(generator.next(10_000)), is(new HashSet<>(
+        Arrays.asList("Foo/1.0", "Bar", "Foo/1.1", "Bar 1", "Foo/1.2", "Bar 2"))));
+  }
+
+  @Test
+  public void testBurstsAndBots() {
+    List<String> stream = new WorkloadGenerator(
+        Collections.emptyList(), 1000, 0.0, 0.5, 0.2, 1L).next(100_000);
+    int repeats = 0;
+    for (int i = 1; i < stream.size(); ++i) {
+      if (stream.get(i).equals(stream.get(i - 1))) {
+        ++repeats;
+      }
+    }
+    MatcherAssert.assertThat(repeats, greaterThan(45_000));
+    // 10% of the stream are unique agent strings, bursts aside
+    MatcherAssert.assertThat(new HashSet<>(stream).size(), greaterThan(9_000));
+  }
+
+  @Test
+  public void testReplay() throws Exception {
+    String log = String.join("\n",
+        "127.0.0.1 - - [10/Oct/2023:13:55:36 +0000] \"GET / HTTP/1.1\" 200 2326 \"-\" \"Foo/1.0 (\\\"quoted\\\")\"",
+        "127.0.0.1 - - [10/Oct/2023:13:55:37 +0000] \"GET / HTTP/1.1\" 200 2326 \"-\" \"-\"",
+        "no agent",
+        "127.0.0.1 - - [10/Oct/2023:13:55:38 +0000] \"GET / HTTP/1.1\" 200 2326 \"http://example.com/\" \"Bar/2\"");
+    List<String> agents = new ArrayList<>();
+    WorkloadGenerator.replay(new BufferedReader(new StringReader(log)), -1, agents::add);
+    MatcherAssert.assertThat(agents, is(Arrays.asList("Foo/1.0 (\"quoted\")", "Bar/2")));
+
+    MatcherAssert.assertThat(WorkloadGenerator.userAgent("a\tb\tFoo/1.0\tc", 2), is("Foo/1.0"));
+    MatcherAssert.assertThat(WorkloadGenerator.userAgent("a\tFoo/1.0", 1), is("Foo/1.0"));
+    MatcherAssert.assertThat(WorkloadGenerator.userAgent("a\tb", 2), nullValue());
+  }
+}